@@ -0,0 +1,23 @@
+-- Each currency pool is split into shards so concurrent locks on the same currency
+-- do not all queue behind a single row lock. The balance of a pool is the sum of its shards.
+CREATE TABLE liquidity_pool_shard (
+  currency_code CHAR(3) NOT NULL REFERENCES liquidity_pool(currency_code),
+  shard_id INT NOT NULL,
+  available_balance DECIMAL(18,6) NOT NULL DEFAULT 0,
+  locked_balance DECIMAL(18,6) NOT NULL DEFAULT 0,
+  created_at TIMESTAMPTZ NOT NULL DEFAULT NOW(),
+  updated_at TIMESTAMPTZ,
+  PRIMARY KEY (currency_code, shard_id),
+  CONSTRAINT positive_shard_available_balance CHECK (available_balance >= 0),
+  CONSTRAINT positive_shard_locked_balance CHECK (locked_balance >= 0)
+);
+
+-- existing balances move into the first shard. They are spread across the configured shards at startup
+INSERT INTO liquidity_pool_shard (currency_code, shard_id, available_balance, locked_balance)
+SELECT currency_code, 0, available_balance, locked_balance FROM liquidity_pool;
+
+UPDATE liquidity_pool SET available_balance = 0, locked_balance = 0, updated_at = NOW();
+
+-- shard the funds were locked on. Unlocks and debits go back to the same shard.
+-- locks taken before sharding have no shard and belong to shard 0
+ALTER TABLE ledger ADD COLUMN shard_id INT;
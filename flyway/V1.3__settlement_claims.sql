@@ -0,0 +1,10 @@
+-- A settlement node claims a batch of transactions before processing them.
+-- The claim is committed with the batch, so other nodes skip the rows until the lease expires
+-- even though no row lock is held while the batch is being settled.
+ALTER TABLE transaction ADD COLUMN settlement_claimed_by VARCHAR(100);
+ALTER TABLE transaction ADD COLUMN settlement_claim_expires_at TIMESTAMPTZ;
+
+-- only unsettled rows are ever claimed, which keeps this index small
+CREATE INDEX idx_transaction_settlement_claim
+    ON transaction(scheduled_settlement_time, settlement_claim_expires_at)
+    WHERE settlement_status IS NULL;
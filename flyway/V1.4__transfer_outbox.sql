@@ -0,0 +1,15 @@
+-- Transfers waiting to be submitted to the transfer provider.
+-- A row is written together with the funds lock and removed once the provider result is recorded on the transaction.
+CREATE TABLE transfer_outbox (
+  id BIGSERIAL PRIMARY KEY,
+  transaction_id BIGINT NOT NULL REFERENCES transaction(id),
+  attempts INT NOT NULL DEFAULT 0,
+  next_attempt_at TIMESTAMPTZ NOT NULL DEFAULT NOW(),
+  last_error TEXT,
+  created_at TIMESTAMPTZ NOT NULL DEFAULT NOW(),
+
+  CONSTRAINT unique_outbox_transaction UNIQUE (transaction_id)
+);
+
+CREATE INDEX idx_transfer_outbox_due
+    ON transfer_outbox(next_attempt_at);
@@ -0,0 +1,19 @@
+-- Transactions whose processing broke off after they were inserted, waiting for the recovery processor
+-- to determine their final status
+CREATE TABLE recovery_task (
+  id BIGSERIAL PRIMARY KEY,
+  transaction_id BIGINT NOT NULL REFERENCES transaction(id),
+  attempts INT NOT NULL DEFAULT 0,
+  next_attempt_at TIMESTAMPTZ NOT NULL DEFAULT NOW(),
+  last_error TEXT,
+  created_at TIMESTAMPTZ NOT NULL DEFAULT NOW(),
+
+  CONSTRAINT unique_recovery_transaction UNIQUE (transaction_id)
+);
+
+CREATE INDEX idx_recovery_task_due
+    ON recovery_task(next_attempt_at);
+
+-- recovery looks up the lock entries of a transaction
+CREATE INDEX idx_ledger_transaction
+    ON ledger(transaction_id);
@@ -0,0 +1,103 @@
+-- Raw exchange rate ticks are partitioned by day (UTC) of their effective date, so retention drops whole partitions
+-- instead of deleting rows, and lookups only touch the partitions of the dates they ask for.
+-- Partitions are created ahead of time by the partition maintainer. Ticks for days without a partition land in
+-- exchange_rate_default and are moved when their partition is created.
+ALTER TABLE exchange_rate RENAME TO exchange_rate_unpartitioned;
+ALTER TABLE exchange_rate_unpartitioned RENAME CONSTRAINT exchange_rate_pkey TO exchange_rate_unpartitioned_pkey;
+DROP INDEX idx_exchange_rate_lookup;
+
+-- the primary key also serves the latest rate lookup, it is scanned backwards
+CREATE TABLE exchange_rate (
+  currency_pair CHAR(7) NOT NULL,
+  rate DECIMAL(18, 6) NOT NULL,
+  effective_date TIMESTAMPTZ NOT NULL,
+  created_at TIMESTAMPTZ DEFAULT NOW(),
+  -- sent ahead of its effective date. Cleared once the rate has been copied to latest_rate
+  scheduled BOOLEAN NOT NULL DEFAULT FALSE,
+  PRIMARY KEY (currency_pair, effective_date)
+) PARTITION BY RANGE (effective_date);
+
+CREATE INDEX idx_exchange_rate_scheduled
+    ON exchange_rate(effective_date)
+    WHERE scheduled;
+
+CREATE TABLE exchange_rate_default PARTITION OF exchange_rate DEFAULT;
+
+-- Creates the partition holding the ticks of one day. Returns false when it already exists
+CREATE FUNCTION create_exchange_rate_partition(day DATE) RETURNS BOOLEAN AS $$
+DECLARE
+  partition_name TEXT := 'exchange_rate_p' || to_char(day, 'YYYYMMDD');
+  lower_bound TIMESTAMPTZ := day::TIMESTAMP AT TIME ZONE 'UTC';
+  upper_bound TIMESTAMPTZ := (day + 1)::TIMESTAMP AT TIME ZONE 'UTC';
+BEGIN
+  -- nodes maintaining partitions at the same time take turns
+  PERFORM pg_advisory_xact_lock(hashtext('exchange_rate_partitions'));
+  IF to_regclass(partition_name) IS NOT NULL THEN
+    RETURN FALSE;
+  END IF;
+
+  EXECUTE format('CREATE TABLE %I (LIKE exchange_rate INCLUDING DEFAULTS)', partition_name);
+  EXECUTE format('WITH moved AS (DELETE FROM exchange_rate_default WHERE effective_date >= $1 AND effective_date < $2 RETURNING *) '
+                 'INSERT INTO %I SELECT * FROM moved', partition_name)
+    USING lower_bound, upper_bound;
+  EXECUTE format('ALTER TABLE exchange_rate ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)', partition_name, lower_bound, upper_bound);
+  RETURN TRUE;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Drops the partition holding the ticks of one day. Returns false when it does not exist
+CREATE FUNCTION drop_exchange_rate_partition(day DATE) RETURNS BOOLEAN AS $$
+DECLARE
+  partition_name TEXT := 'exchange_rate_p' || to_char(day, 'YYYYMMDD');
+BEGIN
+  PERFORM pg_advisory_xact_lock(hashtext('exchange_rate_partitions'));
+  IF to_regclass(partition_name) IS NULL THEN
+    RETURN FALSE;
+  END IF;
+
+  EXECUTE format('DROP TABLE %I', partition_name);
+  RETURN TRUE;
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT create_exchange_rate_partition(day::DATE)
+FROM generate_series((NOW() AT TIME ZONE 'UTC')::DATE - 1, (NOW() AT TIME ZONE 'UTC')::DATE + 7, INTERVAL '1 day') AS day;
+
+-- older ticks go to the default partition until they are rolled up
+INSERT INTO exchange_rate (currency_pair, rate, effective_date, created_at, scheduled)
+SELECT currency_pair, rate, effective_date, created_at, effective_date > NOW()
+FROM exchange_rate_unpartitioned;
+
+-- The latest effective rate of every pair, kept on every write. It survives the retention of the raw ticks
+CREATE TABLE latest_rate (
+  currency_pair CHAR(7) PRIMARY KEY,
+  rate DECIMAL(18, 6) NOT NULL,
+  effective_date TIMESTAMPTZ NOT NULL,
+  created_at TIMESTAMPTZ DEFAULT NOW()
+);
+
+INSERT INTO latest_rate (currency_pair, rate, effective_date, created_at)
+SELECT DISTINCT ON (currency_pair) currency_pair, rate, effective_date, created_at
+FROM exchange_rate_unpartitioned
+WHERE effective_date <= NOW()
+ORDER BY currency_pair, effective_date DESC;
+
+DROP TABLE exchange_rate_unpartitioned;
+
+-- Open, high, low and close of the ticks of a pair per minute and per hour. Ticks are rolled up before
+-- their partition is dropped
+CREATE TABLE exchange_rate_bar (
+  currency_pair CHAR(7) NOT NULL,
+  resolution VARCHAR(10) NOT NULL,
+  bucket_start TIMESTAMPTZ NOT NULL,
+  open DECIMAL(18, 6) NOT NULL,
+  high DECIMAL(18, 6) NOT NULL,
+  low DECIMAL(18, 6) NOT NULL,
+  close DECIMAL(18, 6) NOT NULL,
+  opened_at TIMESTAMPTZ NOT NULL,
+  closed_at TIMESTAMPTZ NOT NULL,
+  tick_count INT NOT NULL,
+  PRIMARY KEY (currency_pair, resolution, bucket_start),
+
+  CONSTRAINT exchange_rate_bar_resolution CHECK (resolution IN ('minute', 'hour'))
+);
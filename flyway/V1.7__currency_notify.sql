@@ -0,0 +1,11 @@
+-- every node drops its cached currencies once a change to the table is committed
+CREATE FUNCTION notify_currency_changed() RETURNS TRIGGER AS $$
+BEGIN
+  PERFORM pg_notify('currency_changed', TG_OP);
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER currency_changed
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON currency
+FOR EACH STATEMENT EXECUTE FUNCTION notify_currency_changed();
@@ -0,0 +1,26 @@
+-- when a transaction completed. updated_at moves on with every settlement attempt, this does not,
+-- so completions can be tailed without reading a row twice
+ALTER TABLE transaction ADD COLUMN completed_at TIMESTAMPTZ;
+
+-- clock_timestamp rather than now so a long database transaction does not date its completions back to its start
+CREATE FUNCTION set_transaction_completed_at() RETURNS TRIGGER AS $$
+BEGIN
+  NEW.completed_at := clock_timestamp();
+  RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER transaction_completed
+BEFORE UPDATE OF status ON transaction
+FOR EACH ROW
+WHEN (NEW.status = 'completed' AND OLD.status IS DISTINCT FROM 'completed')
+EXECUTE FUNCTION set_transaction_completed_at();
+
+-- recent completions only, older ones are outside of any flow window
+UPDATE transaction SET completed_at = COALESCE(updated_at, created_at)
+WHERE status = 'completed' AND created_at > NOW() - INTERVAL '1 day';
+
+-- only completed rows are ever tailed for flow metrics, which keeps this index small
+CREATE INDEX idx_transaction_completed
+    ON transaction(completed_at, id)
+    WHERE status = 'completed';
@@ -0,0 +1,23 @@
+package com.spherelabs.annotations;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Currency pair validation, run on every exchange rate received
+ */
+@State(Scope.Thread)
+public class CurrencyPairValidatorBenchmark {
+    private final CurrencyPairValidator validator = new CurrencyPairValidator();
+
+    @Benchmark
+    public boolean valid() {
+        return validator.isValid("USD/EUR", null);
+    }
+
+    @Benchmark
+    public boolean invalid() {
+        return validator.isValid("USD-EUR", null);
+    }
+}
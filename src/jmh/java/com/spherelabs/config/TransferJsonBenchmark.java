@@ -0,0 +1,56 @@
+package com.spherelabs.config;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.spherelabs.model.Transaction;
+import com.spherelabs.model.api.TransferRequest;
+import com.spherelabs.model.api.TransferResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.OffsetDateTime;
+
+/**
+ * (De)serialization of the transfer API bodies with the application's SNAKE_CASE object mapper
+ */
+@State(Scope.Thread)
+public class TransferJsonBenchmark {
+    private static final String REQUEST = """
+            {
+                "sender_account": "123456789",
+                "receiver_account": "987654321",
+                "from_currency": "USD",
+                "to_currency": "EUR",
+                "amount": 1250.75,
+                "description": "Payment for goods",
+                "reference": "ref-000123"
+            }
+            """;
+
+    private ObjectReader requestReader;
+    private ObjectWriter responseWriter;
+    private TransferResponse response;
+
+    @Setup
+    public void setup() {
+        ObjectMapper objectMapper = new ObjectMapperConfig().mapper();
+        requestReader = objectMapper.readerFor(TransferRequest.class);
+        responseWriter = objectMapper.writerFor(TransferResponse.class);
+        var now = OffsetDateTime.now();
+        response = new TransferResponse("system|ref-000123|USD|EUR", Transaction.Status.PROCESSING, now, now, null);
+    }
+
+    @Benchmark
+    public TransferRequest readRequest() throws JsonProcessingException {
+        return requestReader.readValue(REQUEST);
+    }
+
+    @Benchmark
+    public String writeResponse() throws JsonProcessingException {
+        return responseWriter.writeValueAsString(response);
+    }
+}
@@ -0,0 +1,27 @@
+package com.spherelabs.model;
+
+import com.spherelabs.model.api.TransferRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.math.BigDecimal;
+
+/**
+ * Building a transaction from a request, including the formatted internal id
+ */
+@State(Scope.Thread)
+public class TransactionBenchmark {
+    private TransferRequest request;
+
+    @Setup
+    public void setup() {
+        request = new TransferRequest("123456789", "987654321", "USD", "EUR", new BigDecimal("1250.75"), "Payment for goods", "ref-000123", null);
+    }
+
+    @Benchmark
+    public Transaction newTransaction() {
+        return Transaction.newTransaction(request);
+    }
+}
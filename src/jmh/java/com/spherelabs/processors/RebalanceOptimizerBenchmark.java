@@ -0,0 +1,66 @@
+package com.spherelabs.processors;
+
+import com.spherelabs.cache.CrossRateEngine;
+import com.spherelabs.cache.LatestRateCache;
+import com.spherelabs.config.AppConfiguration;
+import com.spherelabs.model.ExchangeRate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.util.ReflectionUtils;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Planning one rebalance of many pools against the in-memory rates, half of them short
+ */
+@State(Scope.Thread)
+public class RebalanceOptimizerBenchmark {
+    @Param({"10", "300"})
+    private int currencies;
+
+    private RebalanceOptimizer rebalanceOptimizer;
+    private List<RebalanceOptimizer.Position> positions;
+
+    @Setup
+    public void setup() {
+        // the rates are all quoted against the reference currency, nothing is read from the database
+        var latestRateCache = new LatestRateCache(null);
+        rebalanceOptimizer = new RebalanceOptimizer(latestRateCache, new CrossRateEngine(latestRateCache), new AppConfiguration());
+        set("pivots", List.of("USD"));
+        set("minimumRebalanceAmount", new BigDecimal("1000"));
+        set("donorMaxRatio", new BigDecimal("0.5"));
+
+        var random = new Random(42);
+        var now = OffsetDateTime.now().minusSeconds(1);
+        positions = new ArrayList<>();
+        for (int i = 0; i < currencies; i++) {
+            var currency = i == 0 ? "USD" : "C%03d".formatted(i);
+            if (i > 0) {
+                var rate = BigDecimal.valueOf(0.01 + random.nextDouble() * 2).setScale(6, RoundingMode.HALF_UP);
+                latestRateCache.put(new ExchangeRate(currency + "/USD", rate, now));
+            }
+            var target = BigDecimal.valueOf(10_000 + random.nextInt(1_000_000));
+            var available = i % 2 == 0 ? target.divide(BigDecimal.TEN) : target.multiply(BigDecimal.valueOf(4));
+            positions.add(new RebalanceOptimizer.Position(currency, available, target.divide(BigDecimal.TWO), target));
+        }
+    }
+
+    @Benchmark
+    public RebalanceOptimizer.Plan plan() {
+        return rebalanceOptimizer.plan(positions);
+    }
+
+    private void set(String name, Object value) {
+        var field = ReflectionUtils.findField(RebalanceOptimizer.class, name);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, rebalanceOptimizer, value);
+    }
+}
@@ -0,0 +1,55 @@
+package com.spherelabs.repository.impl;
+
+import com.assetiq.jooq.enums.TransactionStatus;
+import com.assetiq.jooq.tables.records.TransactionRecord;
+import com.spherelabs.model.Transaction;
+import org.jooq.types.YearToSecond;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+
+/**
+ * Mapping a transaction row into the domain model, done for every transaction read or written
+ */
+@State(Scope.Thread)
+public class TransactionMapperBenchmark {
+    private TransactionRecord record;
+
+    @Setup
+    public void setup() {
+        var now = OffsetDateTime.now();
+        record = new TransactionRecord();
+        record.setId(42L);
+        record.setTransferId("ref-000123");
+        record.setInternalTransferId("system|ref-000123|USD|EUR");
+        record.setSenderAccount("123456789");
+        record.setReceiverAccount("987654321");
+        record.setFromAmount(new BigDecimal("1250.750000"));
+        record.setFromCurrency("USD");
+        record.setToCurrency("EUR");
+        record.setToAmount(new BigDecimal("1411.460000"));
+        record.setMargin(new BigDecimal("43.650000"));
+        record.setMarginCurrency("EUR");
+        record.setMarginRate(new BigDecimal("0.03"));
+        record.setFxRate(new BigDecimal("1.163421"));
+        record.setRateEffectiveDate(now.minusMinutes(5));
+        record.setStatus(TransactionStatus.funds_locked);
+        record.setScheduledSettlementTime(now.plusHours(1));
+        record.setSettlementWindow(YearToSecond.valueOf(Duration.ofHours(1)));
+        record.setSettlementAttempts(0);
+        record.setCreatedAt(now);
+        record.setUpdatedAt(now);
+        record.setDescription("Payment for goods");
+        record.setLockedId(1001L);
+    }
+
+    @Benchmark
+    public Transaction map() {
+        return TransactionRepositoryImpl.MAPPER.map(record);
+    }
+}
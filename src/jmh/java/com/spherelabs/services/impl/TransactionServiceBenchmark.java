@@ -0,0 +1,112 @@
+package com.spherelabs.services.impl;
+
+import com.spherelabs.cache.CurrencyRegistryCache;
+import com.spherelabs.cache.QuoteStore;
+import com.spherelabs.config.AppConfiguration;
+import com.spherelabs.error.Failure;
+import com.spherelabs.metrics.TransferMetrics;
+import com.spherelabs.model.Currency;
+import com.spherelabs.model.CurrencyRegistry;
+import com.spherelabs.model.ExchangeRate;
+import com.spherelabs.model.Transaction;
+import com.spherelabs.model.api.TransferRequest;
+import com.spherelabs.providers.TransferProvider;
+import com.spherelabs.repository.RecoveryTaskRepository;
+import com.spherelabs.repository.TransactionRepository;
+import com.spherelabs.repository.TransferOutboxRepository;
+import com.spherelabs.services.ExchangeRateService;
+import com.spherelabs.services.LiquidityService;
+import io.vavr.control.Either;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FX and margin math and request validation of a transfer, without any I/O
+ */
+@State(Scope.Thread)
+public class TransactionServiceBenchmark {
+    // a power of two, so the next transaction is picked with a mask
+    private static final int TRANSACTIONS = 1024;
+
+    private TransactionServiceImpl transactionService;
+    private CurrencyRegistry currencies;
+    private ExchangeRate exchangeRate;
+    private Transaction transaction;
+    private Transaction[] transactions;
+    private int next;
+
+    @Setup
+    public void setup() {
+        var appConfiguration = new AppConfiguration();
+        appConfiguration.setMarginRates(Map.of(
+                "USD", new BigDecimal("0.02"),
+                "EUR", new BigDecimal("0.03"),
+                "GBP", new BigDecimal("0.04"),
+                "JPY", new BigDecimal("0.05"),
+                "AUD", new BigDecimal("0.06")));
+        // the benchmarked methods do not use any of the other dependencies. They are typed so a change to the
+        // constructor does not compile instead of passing a null where a dependency is now used
+        CurrencyRegistryCache currencyRegistry = null;
+        ExchangeRateService exchangeRateService = null;
+        TransactionRepository transactionRepository = null;
+        LiquidityService liquidityService = null;
+        TransferProvider transferProvider = null;
+        TransferOutboxRepository transferOutboxRepository = null;
+        RecoveryTaskRepository recoveryTaskRepository = null;
+        TransferMetrics transferMetrics = null;
+        QuoteStore quoteStore = null;
+        transactionService = new TransactionServiceImpl(currencyRegistry, exchangeRateService, appConfiguration, transactionRepository,
+                liquidityService, transferProvider, transferOutboxRepository, recoveryTaskRepository, transferMetrics, quoteStore);
+
+        var now = OffsetDateTime.now();
+        currencies = CurrencyRegistry.of(List.of(
+                new Currency("USD", Duration.ofHours(1), now, now, true, 2),
+                new Currency("EUR", Duration.ofHours(1), now, now, true, 2),
+                new Currency("GBP", Duration.ofHours(2), now, now, true, 2),
+                new Currency("JPY", Duration.ofHours(3), now, now, true, 0),
+                new Currency("AUD", Duration.ofHours(4), now, now, true, 2)), appConfiguration.getMarginRates());
+        exchangeRate = new ExchangeRate("USD/EUR", new BigDecimal("1.163421"), now);
+        transaction = Transaction.newTransaction(new TransferRequest("123456789", "987654321", "USD", "EUR",
+                new BigDecimal("1250.75"), "Payment for goods", "ref-000123", null));
+        // built outside of the measurement. Cycling through them prices different amounts on objects that are
+        // not all in cache, like transfers in flight, without a per invocation setup skewing sub-microsecond timings
+        transactions = new Transaction[TRANSACTIONS];
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            transactions[i] = Transaction.newTransaction(new TransferRequest("123456789", "987654321", "USD", "EUR",
+                    new BigDecimal("1250.75").add(BigDecimal.valueOf(i, 2)), "Payment for goods", "ref-" + i, null));
+        }
+    }
+
+    private Transaction nextTransaction() {
+        return transactions[next++ & (TRANSACTIONS - 1)];
+    }
+
+    @Benchmark
+    public Transaction modifyTransactionFees() {
+        var transaction = nextTransaction();
+        transactionService.modifyTransactionFees(transaction, currencies, exchangeRate);
+        return transaction;
+    }
+
+    /**
+     * The fee math alone, on a transaction built once. Run with -prof gc, gc.alloc.rate.norm is what it allocates per transfer
+     */
+    @Benchmark
+    public Transaction fees() {
+        transactionService.modifyTransactionFees(transaction, currencies, exchangeRate);
+        return transaction;
+    }
+
+    @Benchmark
+    public Either<Failure, Void> validate() {
+        return transactionService.validate(nextTransaction(), currencies);
+    }
+}
@@ -0,0 +1,100 @@
+package com.spherelabs.loadtest;
+
+import com.spherelabs.CrossBorderApplication;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * Boots the application against an embedded Postgres and drives /transfer and /fx-rate with open loop load.
+ * <p>
+ *     Run with ./gradlew loadTest -PloadTestArgs="--transfer-rate=200 --fx-rate=50 --duration=2m".
+ *     See {@link LoadTestOptions} for the available options. The report lists throughput, latency percentiles
+ *     and the number of statements each request executed against the database.
+ */
+public class LoadTest {
+    public static void main(String[] args) throws Exception {
+        var options = LoadTestOptions.parse(args);
+        var traffic = new TrafficMix(options);
+
+        try (var postgres = EmbeddedPostgres.builder().start();
+             var context = new SpringApplicationBuilder(CrossBorderApplication.class, LoadTestConfiguration.class)
+                     .run(applicationArgs(postgres, options))) {
+            var port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            var statementCounter = context.getBean(StatementCounter.class);
+            var client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .executor(Executors.newVirtualThreadPerTaskExecutor())
+                    .connectTimeout(Duration.ofSeconds(5))
+                    .build();
+
+            var fxRate = URI.create("http://localhost:%d/fx-rate".formatted(port));
+            for (var rate : traffic.initialRates()) {
+                client.send(HttpRequest.newBuilder(fxRate)
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(rate))
+                        .build(), HttpResponse.BodyHandlers.discarding());
+            }
+
+            var drivers = List.of(
+                    new OpenLoopDriver(client, URI.create("http://localhost:%d/transfer".formatted(port)), traffic::nextTransfer),
+                    new OpenLoopDriver(client, fxRate, traffic::nextRate));
+            var rates = List.of(options.transferRate(), options.fxRate());
+
+            System.out.printf("Warming up for %s%n", options.warmup());
+            OpenLoopDriver.runAll(drivers, rates, options.warmup());
+
+            System.out.printf("Measuring for %s%n", options.duration());
+            statementCounter.reset();
+            var results = OpenLoopDriver.runAll(drivers, rates, options.duration());
+            report(results, statementCounter.snapshot(), options.duration());
+        }
+    }
+
+    private static String[] applicationArgs(EmbeddedPostgres postgres, LoadTestOptions options) {
+        var args = new ArrayList<String>();
+        args.add("--spring.datasource.url=" + postgres.getJdbcUrl("postgres", "postgres"));
+        args.add("--spring.datasource.username=postgres");
+        args.add("--spring.datasource.password=postgres");
+        args.add("--server.port=0");
+        args.add("--spring.main.banner-mode=off");
+        // debug logging of every request would dominate the measurement
+        args.add("--logging.level.root=WARN");
+        args.add("--logging.level.com.spherelabs=WARN");
+        args.addAll(options.applicationArgs());
+        return args.toArray(String[]::new);
+    }
+
+    private static void report(List<OpenLoopDriver.Result> results, Map<String, Long> statements, Duration duration) {
+        var seconds = duration.toMillis() / 1000.0;
+        System.out.println();
+        System.out.printf("%-10s %9s %10s %9s %9s %9s %9s %12s  %s%n",
+                "endpoint", "requests", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "stmts/req", "statuses");
+        for (var result : results) {
+            var requestStatements = statements.getOrDefault(result.endpoint(), 0L);
+            System.out.printf("%-10s %9d %10.1f %9.2f %9.2f %9.2f %9.2f %12.2f  %s%n",
+                    result.endpoint(),
+                    result.requests(),
+                    result.requests() / seconds,
+                    result.percentileMillis(50),
+                    result.percentileMillis(99),
+                    result.percentileMillis(99.9),
+                    result.maxMillis(),
+                    result.requests() == 0 ? 0.0 : (double) requestStatements / result.requests(),
+                    result.statuses());
+        }
+        System.out.printf("%nbackground statements: %d (%.1f/s)%n",
+                statements.getOrDefault(StatementCounter.BACKGROUND, 0L),
+                statements.getOrDefault(StatementCounter.BACKGROUND, 0L) / seconds);
+    }
+}
@@ -0,0 +1,63 @@
+package com.spherelabs.loadtest;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.jooq.DSLContext;
+import org.jooq.ExecuteListenerProvider;
+import org.jooq.impl.DefaultExecuteListenerProvider;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Instrumentation added to the application while it is under load
+ */
+@Configuration
+public class LoadTestConfiguration {
+    @Bean
+    public StatementCounter statementCounter() {
+        return new StatementCounter();
+    }
+
+    /**
+     * Attaches the statement counter to the application's DSLContext. Transactions derive their configuration
+     * from it, so their statements are counted too
+     */
+    @Bean
+    public static BeanPostProcessor statementCounterInstaller(ObjectProvider<StatementCounter> statementCounter) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof DSLContext dslContext) {
+                    var providers = new ArrayList<>(List.of(dslContext.configuration().executeListenerProviders()));
+                    providers.add(new DefaultExecuteListenerProvider(statementCounter.getObject()));
+                    dslContext.configuration().set(providers.toArray(ExecuteListenerProvider[]::new));
+                }
+                return bean;
+            }
+        };
+    }
+
+    @Bean
+    public OncePerRequestFilter statementCounterFilter() {
+        return new OncePerRequestFilter() {
+            @Override
+            protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+                StatementCounter.enter(request.getRequestURI());
+                try {
+                    filterChain.doFilter(request, response);
+                } finally {
+                    StatementCounter.exit();
+                }
+            }
+        };
+    }
+}
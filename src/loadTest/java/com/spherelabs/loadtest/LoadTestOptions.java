@@ -0,0 +1,69 @@
+package com.spherelabs.loadtest;
+
+import org.springframework.boot.convert.DurationStyle;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Options of a load test run, given as --name=value arguments.
+ * Arguments that are not load test options are handed to the application, eg --app.async-transfer=true
+ *
+ * @param transferRate     transfers sent per second
+ * @param fxRate           exchange rates sent per second
+ * @param warmup           time the load is applied before measuring
+ * @param duration         time the load is measured for
+ * @param repeatRatio      share of transfers that resend an earlier request with the same reference
+ * @param badAccountRatio  share of transfers with an invalid sender or receiver account
+ * @param maxAmount        upper bound of a transfer amount
+ * @param replay           JSONL file of transfer request bodies to send instead of generated ones
+ * @param applicationArgs  arguments handed to the application
+ */
+public record LoadTestOptions(double transferRate,
+                              double fxRate,
+                              Duration warmup,
+                              Duration duration,
+                              double repeatRatio,
+                              double badAccountRatio,
+                              BigDecimal maxAmount,
+                              Optional<Path> replay,
+                              List<String> applicationArgs) {
+
+    public static LoadTestOptions parse(String[] args) {
+        var options = new HashMap<String, String>();
+        var applicationArgs = new ArrayList<String>();
+        for (var arg : args) {
+            var separator = arg.indexOf('=');
+            var name = separator < 0 ? arg : arg.substring(0, separator);
+            if (name.startsWith("--") && KNOWN.contains(name.substring(2)) && separator > 0) {
+                options.put(name.substring(2), arg.substring(separator + 1));
+            } else {
+                applicationArgs.add(arg);
+            }
+        }
+
+        return new LoadTestOptions(
+                Double.parseDouble(options.getOrDefault("transfer-rate", "100")),
+                Double.parseDouble(options.getOrDefault("fx-rate", "20")),
+                duration(options, "warmup", "10s"),
+                duration(options, "duration", "60s"),
+                Double.parseDouble(options.getOrDefault("repeat-ratio", "0.05")),
+                Double.parseDouble(options.getOrDefault("bad-account-ratio", "0.02")),
+                new BigDecimal(options.getOrDefault("max-amount", "100")),
+                Optional.ofNullable(options.get("replay")).map(Path::of),
+                List.copyOf(applicationArgs));
+    }
+
+    private static final List<String> KNOWN = List.of("transfer-rate", "fx-rate", "warmup", "duration",
+            "repeat-ratio", "bad-account-ratio", "max-amount", "replay");
+
+    private static Duration duration(Map<String, String> options, String name, String defaultValue) {
+        return DurationStyle.detectAndParse(options.getOrDefault(name, defaultValue));
+    }
+}
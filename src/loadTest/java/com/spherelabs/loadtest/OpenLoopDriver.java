@@ -0,0 +1,139 @@
+package com.spherelabs.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Sends requests to one endpoint at a fixed rate, whether or not earlier requests have been answered.
+ * <p>
+ *     Latency is measured from the time a request was due to be sent, not from when it was actually sent,
+ *     so a stalled server shows up in the tail instead of slowing the load down.
+ */
+class OpenLoopDriver {
+    private static final String STATUS_IO_ERROR = "io-error";
+
+    private final HttpClient client;
+    private final URI uri;
+    private final Supplier<String> bodies;
+
+    OpenLoopDriver(HttpClient client, URI uri, Supplier<String> bodies) {
+        this.client = client;
+        this.uri = uri;
+        this.bodies = bodies;
+    }
+
+    /**
+     * Drive the endpoint for the given time and wait for every request sent to be answered
+     */
+    Result run(double ratePerSecond, Duration duration) {
+        var result = new Result(uri.getPath(), duration);
+        if (ratePerSecond <= 0) {
+            return result;
+        }
+
+        var interval = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        var start = System.nanoTime();
+        var end = start + duration.toNanos();
+        var inFlight = new ArrayList<CompletableFuture<?>>();
+        for (long due = start; due < end; due += interval) {
+            var wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            var request = HttpRequest.newBuilder(uri)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(bodies.get()))
+                    .build();
+            var dueAt = due;
+            inFlight.add(client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, error) -> result.record(
+                            error == null ? Integer.toString(response.statusCode()) : STATUS_IO_ERROR,
+                            System.nanoTime() - dueAt)));
+        }
+
+        CompletableFuture.allOf(inFlight.toArray(CompletableFuture[]::new))
+                .exceptionally(__ -> null)
+                .join();
+        return result;
+    }
+
+    static final class Result {
+        private final String endpoint;
+        private final Duration duration;
+        private final Histogram latencyMicros = new ConcurrentHistogram(3);
+        private final ConcurrentMap<String, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        private Result(String endpoint, Duration duration) {
+            this.endpoint = endpoint;
+            this.duration = duration;
+        }
+
+        private void record(String status, long latencyNanos) {
+            latencyMicros.recordValue(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+            statuses.computeIfAbsent(status, __ -> new LongAdder()).increment();
+        }
+
+        String endpoint() {
+            return endpoint;
+        }
+
+        Duration duration() {
+            return duration;
+        }
+
+        long requests() {
+            return latencyMicros.getTotalCount();
+        }
+
+        double percentileMillis(double percentile) {
+            return latencyMicros.getValueAtPercentile(percentile) / 1000.0;
+        }
+
+        double maxMillis() {
+            return latencyMicros.getMaxValue() / 1000.0;
+        }
+
+        Map<String, Long> statuses() {
+            var snapshot = new TreeMap<String, Long>();
+            statuses.forEach((status, count) -> snapshot.put(status, count.sum()));
+            return snapshot;
+        }
+    }
+
+    static List<Result> runAll(List<OpenLoopDriver> drivers, List<Double> rates, Duration duration) {
+        var runs = new ArrayList<CompletableFuture<Result>>();
+        for (int i = 0; i < drivers.size(); i++) {
+            var driver = drivers.get(i);
+            var rate = rates.get(i);
+            // pacing loops spin on their own platform threads to keep the schedule accurate
+            var run = new CompletableFuture<Result>();
+            Thread.ofPlatform().name("load-" + driver.uri.getPath()).start(() -> {
+                try {
+                    run.complete(driver.run(rate, duration));
+                } catch (RuntimeException e) {
+                    run.completeExceptionally(e);
+                }
+            });
+            runs.add(run);
+        }
+        return runs.stream().map(CompletableFuture::join).toList();
+    }
+}
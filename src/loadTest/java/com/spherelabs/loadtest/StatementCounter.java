@@ -0,0 +1,47 @@
+package com.spherelabs.loadtest;
+
+import org.jooq.ExecuteContext;
+import org.jooq.ExecuteListener;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the jOOQ statements executed, by the endpoint whose request thread executed them.
+ * <p>
+ *     Statements run outside of a request, by the processors or the lock batcher, are counted as background.
+ */
+public class StatementCounter implements ExecuteListener {
+    public static final String BACKGROUND = "background";
+
+    private static final ThreadLocal<String> ENDPOINT = new ThreadLocal<>();
+
+    private final ConcurrentMap<String, LongAdder> statements = new ConcurrentHashMap<>();
+
+    static void enter(String endpoint) {
+        ENDPOINT.set(endpoint);
+    }
+
+    static void exit() {
+        ENDPOINT.remove();
+    }
+
+    @Override
+    public void executeStart(ExecuteContext ctx) {
+        var endpoint = ENDPOINT.get();
+        statements.computeIfAbsent(endpoint == null ? BACKGROUND : endpoint, __ -> new LongAdder()).increment();
+    }
+
+    public void reset() {
+        statements.values().forEach(LongAdder::reset);
+    }
+
+    public Map<String, Long> snapshot() {
+        var snapshot = new TreeMap<String, Long>();
+        statements.forEach((endpoint, count) -> snapshot.put(endpoint, count.sum()));
+        return snapshot;
+    }
+}
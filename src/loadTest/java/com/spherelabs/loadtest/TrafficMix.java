@@ -0,0 +1,161 @@
+package com.spherelabs.loadtest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategies;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.spherelabs.model.api.ExchangeRateRequest;
+import com.spherelabs.model.api.TransferRequest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Request bodies resembling production traffic.
+ * <p>
+ *     Transfers spread over all 20 currency pairs. A share of them resends a recent request with the same
+ *     reference and a share uses an account that fails validation. Rates move around the same base rates
+ *     as mockFxRateSender.js. When a replay file is given, transfers are taken from it in order, round robin.
+ */
+class TrafficMix {
+    private static final Map<String, Double> BASE_RATES = new LinkedHashMap<>();
+
+    static {
+        BASE_RATES.put("USD/EUR", 1.085);
+        BASE_RATES.put("EUR/USD", 0.9217);
+        BASE_RATES.put("USD/JPY", 110.25);
+        BASE_RATES.put("JPY/USD", 0.0091);
+        BASE_RATES.put("USD/GBP", 0.75);
+        BASE_RATES.put("GBP/USD", 1.3333);
+        BASE_RATES.put("USD/AUD", 1.35);
+        BASE_RATES.put("AUD/USD", 0.7407);
+        BASE_RATES.put("EUR/JPY", 129.53);
+        BASE_RATES.put("JPY/EUR", 0.0077);
+        BASE_RATES.put("EUR/GBP", 0.85);
+        BASE_RATES.put("GBP/EUR", 1.1765);
+        BASE_RATES.put("EUR/AUD", 1.6);
+        BASE_RATES.put("AUD/EUR", 0.625);
+        BASE_RATES.put("GBP/JPY", 150.45);
+        BASE_RATES.put("JPY/GBP", 0.0066);
+        BASE_RATES.put("GBP/AUD", 1.8);
+        BASE_RATES.put("AUD/GBP", 0.5556);
+        BASE_RATES.put("AUD/JPY", 82.5);
+        BASE_RATES.put("JPY/AUD", 0.0121);
+    }
+
+    private static final List<String> PAIRS = List.copyOf(BASE_RATES.keySet());
+    private static final int RECENT_SIZE = 1024;
+
+    private final LoadTestOptions options;
+    private final ObjectMapper objectMapper;
+    private final List<String> replay;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicReferenceArray<String> recent = new AtomicReferenceArray<>(RECENT_SIZE);
+    private final String runId = Long.toString(System.currentTimeMillis() % 1_000_000, 36);
+
+    TrafficMix(LoadTestOptions options) {
+        this.options = options;
+        this.objectMapper = new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .setPropertyNamingStrategy(PropertyNamingStrategies.SNAKE_CASE);
+        this.replay = options.replay().map(TrafficMix::readLines).orElse(List.of());
+    }
+
+    String nextTransfer() {
+        var n = sequence.getAndIncrement();
+        if (!replay.isEmpty()) {
+            return replay.get((int) (n % replay.size()));
+        }
+
+        var random = ThreadLocalRandom.current();
+        if (n > 0 && random.nextDouble() < options.repeatRatio()) {
+            var earlier = recent.get((int) (random.nextLong(Math.min(n, RECENT_SIZE))));
+            if (earlier != null) {
+                return earlier;
+            }
+        }
+
+        var pair = PAIRS.get(random.nextInt(PAIRS.size())).split("/");
+        var badAccount = random.nextDouble() < options.badAccountRatio();
+        var sender = badAccount && random.nextBoolean() ? invalidAccount() : account();
+        var receiver = badAccount && !sender.endsWith("111") ? invalidAccount() : account();
+        var body = json(new TransferRequest(sender, receiver, pair[0], pair[1], amount(pair[0]),
+                "load test", "lt-%s-%d".formatted(runId, n), null));
+        recent.set((int) (n % RECENT_SIZE), body);
+        return body;
+    }
+
+    String nextRate() {
+        var pair = PAIRS.get(ThreadLocalRandom.current().nextInt(PAIRS.size()));
+        return rate(pair);
+    }
+
+    /**
+     * @return one rate for every pair, so transfers of any pair can be priced from the start
+     */
+    List<String> initialRates() {
+        var rates = new ArrayList<String>();
+        PAIRS.forEach(pair -> rates.add(rate(pair)));
+        return rates;
+    }
+
+    private String rate(String pair) {
+        // +/- 0.5% around the base rate
+        var fluctuation = (ThreadLocalRandom.current().nextDouble() - 0.5) * 0.01;
+        var rate = BigDecimal.valueOf(BASE_RATES.get(pair) * (1 + fluctuation)).setScale(6, RoundingMode.HALF_UP);
+        return json(new ExchangeRateRequest(pair, rate, OffsetDateTime.now(ZoneOffset.UTC)));
+    }
+
+    private BigDecimal amount(String currency) {
+        var scale = currency.equals("JPY") ? 0 : 2;
+        var amount = BigDecimal.valueOf(ThreadLocalRandom.current().nextDouble(1, options.maxAmount().doubleValue()))
+                .setScale(scale, RoundingMode.HALF_UP);
+        return amount.signum() > 0 ? amount : BigDecimal.ONE;
+    }
+
+    private static String account() {
+        // accounts ending in 111 are rejected, skip them
+        String account;
+        do {
+            account = Long.toString(ThreadLocalRandom.current().nextLong(100_000_000L, 1_000_000_000L));
+        } while (account.endsWith("111"));
+        return account;
+    }
+
+    private static String invalidAccount() {
+        return ThreadLocalRandom.current().nextInt(100_000, 1_000_000) + "111";
+    }
+
+    private String json(Object body) {
+        try {
+            return objectMapper.writeValueAsString(body);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<String> readLines(Path path) {
+        try (var lines = Files.lines(path)) {
+            var bodies = lines.filter(line -> !line.isBlank()).toList();
+            if (bodies.isEmpty()) {
+                throw new IllegalArgumentException("Replay file %s has no requests".formatted(path));
+            }
+            return bodies;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.spherelabs.cache;
+
+import com.spherelabs.model.ExchangeRate;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Derives the rates of pairs the feed does not quote from the latest rates of their legs through a pivot currency,
+ * eg GBP/JPY from GBP/USD and USD/JPY.
+ * <p>
+ *     A leg is the quoted pair or the inverse of the opposite pair. Pivots are tried in the order of
+ *     app.fx-pivot-currencies and the one whose older leg is the most recent wins. A derived rate is as old as its
+ *     older leg, so its timestamp is that leg's.
+ *     Derived rates are kept once asked for and recomputed when one of their legs ticks. They are checked against
+ *     their legs when read, which covers legs sent ahead of time that have become effective since.
+ */
+@Component
+@RequiredArgsConstructor
+public class CrossRateEngine {
+    // scale of exchange_rate.rate and transaction.fx_rate
+    private static final int RATE_SCALE = 6;
+
+    private final LatestRateCache latestRateCache;
+    private final ConcurrentMap<String, CrossRate> crossRates = new ConcurrentHashMap<>();
+
+    @Value("${app.fx-pivot-currencies:USD,EUR}")
+    private List<String> pivots;
+
+    @PostConstruct
+    void listen() {
+        latestRateCache.onPut(this::legTicked);
+    }
+
+    /**
+     * Get the latest rate of a pair derived through a pivot currency
+     *
+     * @param currencyPair pair of currencies to exchange eg GBP/JPY
+     * @return the derived rate or empty when no pivot has both legs
+     */
+    public Optional<ExchangeRate> get(String currencyPair) {
+        var crossRate = crossRates.get(currencyPair);
+        if (crossRate != null && crossRate.isCurrent(this)) {
+            return Optional.of(crossRate.rate());
+        }
+        return compute(currencyPair);
+    }
+
+    /**
+     * A leg between a currency and a pivot is used by the derived pairs of that currency
+     */
+    private void legTicked(ExchangeRate leg) {
+        var currencies = leg.currencyPair().split("/");
+        crossRates.keySet().stream()
+                .filter(currencyPair -> isLegOf(currencies[0], currencies[1], currencyPair) || isLegOf(currencies[1], currencies[0], currencyPair))
+                .forEach(this::compute);
+    }
+
+    private boolean isLegOf(String currency, String pivot, String currencyPair) {
+        var currencies = currencyPair.split("/");
+        return pivots.contains(pivot) && !pivot.equals(currencies[0]) && !pivot.equals(currencies[1])
+                && (currency.equals(currencies[0]) || currency.equals(currencies[1]));
+    }
+
+    private Optional<ExchangeRate> compute(String currencyPair) {
+        var currencies = currencyPair.split("/");
+        if (currencies[0].equals(currencies[1])) {
+            // not a conversion
+            return Optional.empty();
+        }
+        CrossRate best = null;
+        for (var pivot : pivots) {
+            if (pivot.equals(currencies[0]) || pivot.equals(currencies[1])) {
+                continue;
+            }
+            var from = leg(currencies[0], pivot);
+            var to = leg(pivot, currencies[1]);
+            if (from.isEmpty() || to.isEmpty()) {
+                continue;
+            }
+            var crossRate = CrossRate.of(currencyPair, pivot, from.get(), to.get());
+            if (best == null || crossRate.rate().timestamp().isAfter(best.rate().timestamp())) {
+                best = crossRate;
+            }
+        }
+
+        if (best == null) {
+            crossRates.remove(currencyPair);
+            return Optional.empty();
+        }
+        crossRates.put(currencyPair, best);
+        return Optional.of(best.rate());
+    }
+
+    private Optional<OffsetDateTime> legTimestamp(String from, String to) {
+        return latestRateCache.get(from + "/" + to)
+                .or(() -> latestRateCache.get(to + "/" + from))
+                .map(ExchangeRate::timestamp);
+    }
+
+    private Optional<ExchangeRate> leg(String from, String to) {
+        return latestRateCache.get(from + "/" + to)
+                .or(() -> latestRateCache.get(to + "/" + from)
+                        .filter(inverse -> inverse.rate().signum() > 0)
+                        .map(inverse -> new ExchangeRate(from + "/" + to, BigDecimal.ONE.divide(inverse.rate(), MathContext.DECIMAL64), inverse.timestamp())));
+    }
+
+    /**
+     * A derived rate and the timestamps of the legs it was derived from
+     */
+    private record CrossRate(ExchangeRate rate, String pivot, OffsetDateTime fromLeg, OffsetDateTime toLeg) {
+        static CrossRate of(String currencyPair, String pivot, ExchangeRate from, ExchangeRate to) {
+            var rate = from.rate().multiply(to.rate(), MathContext.DECIMAL64).setScale(RATE_SCALE, RoundingMode.HALF_UP);
+            var timestamp = from.timestamp().isBefore(to.timestamp()) ? from.timestamp() : to.timestamp();
+            return new CrossRate(new ExchangeRate(currencyPair, rate, timestamp), pivot, from.timestamp(), to.timestamp());
+        }
+
+        boolean isCurrent(CrossRateEngine engine) {
+            var currencies = rate.currencyPair().split("/");
+            return engine.legTimestamp(currencies[0], pivot).filter(fromLeg::isEqual).isPresent()
+                    && engine.legTimestamp(pivot, currencies[1]).filter(toLeg::isEqual).isPresent();
+        }
+    }
+}
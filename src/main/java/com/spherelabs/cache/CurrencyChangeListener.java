@@ -0,0 +1,104 @@
+package com.spherelabs.cache;
+
+import com.spherelabs.config.CacheConfig;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Drops the cached currencies of this node as soon as the currency table changes on any node.
+ * <p>
+ *     A trigger on the currency table notifies the currency_changed channel once a change is committed. This listener
+ *     keeps its own connection outside of the pool, listens on the channel and clears the currency cache on every
+ *     notification, then loads the currencies again so the next transfer does not wait for them.
+ *     Notifications sent while the connection is down are lost, so the cache is also cleared every time it connects.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class CurrencyChangeListener {
+    private static final String CHANNEL = "currency_changed";
+    // how long to wait for notifications before checking whether the listener was stopped
+    private static final int POLL_MILLISECONDS = 1000;
+
+    private final CacheManager cacheManager;
+    private final CurrencyRegistryCache currencyRegistry;
+
+    @Value("${spring.datasource.url}")
+    private String url;
+
+    @Value("${spring.datasource.username}")
+    private String username;
+
+    @Value("${spring.datasource.password}")
+    private String password;
+
+    @Value("${app.currency-listener-reconnect-delay:5s}")
+    private Duration reconnectDelay;
+
+    private volatile boolean running;
+    private Thread listener;
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        listener = Thread.ofPlatform().name("currency-listener").daemon().start(this::listen);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        listener.interrupt();
+    }
+
+    private void listen() {
+        while (running) {
+            try (var connection = DriverManager.getConnection(url, username, password)) {
+                try (var statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + CHANNEL);
+                }
+                log.info("Listening for currency changes");
+                refresh();
+
+                var notifications = connection.unwrap(PGConnection.class);
+                while (running) {
+                    var received = notifications.getNotifications(POLL_MILLISECONDS);
+                    if (received != null && received.length > 0) {
+                        log.info("Currencies changed. Reloading them");
+                        refresh();
+                    }
+                }
+            } catch (SQLException e) {
+                if (running) {
+                    log.error("Lost the currency change listener connection. Reconnecting in {}. Reason: {}", reconnectDelay, e.getMessage(), e);
+                    sleep(reconnectDelay);
+                }
+            }
+        }
+    }
+
+    private void refresh() {
+        Optional.ofNullable(cacheManager.getCache(CacheConfig.CURRENCY_CACHE)).ifPresent(Cache::clear);
+        currencyRegistry.get()
+                .peekLeft(failure -> log.error("Failed to reload currencies. Reason: {}", failure.message(), failure.cause()));
+    }
+
+    private static void sleep(Duration duration) {
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.spherelabs.cache;
+
+import com.spherelabs.config.AppConfiguration;
+import com.spherelabs.error.Failure;
+import com.spherelabs.model.CurrencyRegistry;
+import com.spherelabs.services.CurrencyService;
+import io.vavr.control.Either;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the {@link CurrencyRegistry} of the supported currencies.
+ * <p>
+ *     The registry is rebuilt whenever the supported currencies or the margin rates differ from the ones it was
+ *     built from and swapped in as a whole. Readers always see a complete registry.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class CurrencyRegistryCache {
+    private final CurrencyService currencyService;
+    private final AppConfiguration appConfiguration;
+    private final AtomicReference<CurrencyRegistry> registry = new AtomicReference<>();
+
+    /**
+     * Get the registry of the supported currencies
+     *
+     * @return Either a Failure in case the currencies could not be read or the registry
+     */
+    public Either<Failure, CurrencyRegistry> get() {
+        return currencyService.getSupportedCurrencies()
+                .map(currencies -> {
+                    var marginRates = appConfiguration.getMarginRates();
+                    var current = registry.get();
+                    if (current != null && current.isBuiltFrom(currencies, marginRates)) {
+                        return current;
+                    }
+
+                    var rebuilt = CurrencyRegistry.of(currencies, marginRates);
+                    // a registry built concurrently from the same currencies is as good as this one
+                    if (registry.compareAndSet(current, rebuilt)) {
+                        log.info("Rebuilt the currency registry with {} currencies", rebuilt.size());
+                    }
+                    return rebuilt;
+                });
+    }
+}
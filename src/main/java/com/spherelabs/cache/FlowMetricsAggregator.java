@@ -0,0 +1,244 @@
+package com.spherelabs.cache;
+
+import com.spherelabs.model.CompletedTransaction;
+import com.spherelabs.model.FlowMetrics;
+import com.spherelabs.repository.TransactionRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * In-memory totals of the transactions completed into every currency over the last app.rebalance-look-back-minutes.
+ * <p>
+ *     Totals are kept per currency in a ring of one minute buckets, so the flow of a currency is the sum of its
+ *     buckets. The buckets are loaded from the database once the application is ready and every
+ *     app.flow-metrics-refresh-milliseconds the transactions completed since are read on from the last one read,
+ *     app.flow-metrics-batch-size at a time. Completions are read again for app.flow-metrics-refresh-overlap since a
+ *     transaction can be committed a little after it completed, the ones already counted are skipped.
+ *     The window is to the minute, the current minute counts as one of its minutes.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class FlowMetricsAggregator {
+    private final TransactionRepository transactionRepository;
+    private final Map<String, MinuteBuckets> buckets = new HashMap<>();
+    // completions read since highWater minus the overlap, to skip them when they are read again
+    private final LinkedHashMap<Long, Instant> counted = new LinkedHashMap<>();
+
+    @Value("${app.rebalance-look-back-minutes:30}")
+    private int windowMinutes;
+
+    @Value("${app.flow-metrics-batch-size:1000}")
+    private int batchSize;
+
+    @Value("${app.flow-metrics-refresh-overlap:5s}")
+    private Duration refreshOverlap;
+
+    // the buckets are complete from the time they were loaded. False until then
+    private boolean loaded;
+    // the latest completion read
+    private Instant highWater;
+    // the last successful read started here
+    private Instant lastRead;
+
+    /**
+     * Get the flow of every currency over the window
+     *
+     * @return the flows of the currencies with completed transactions or empty when the buckets were not loaded yet
+     */
+    public synchronized Optional<Map<String, FlowMetrics>> getFlowMetrics() {
+        if (!loaded) {
+            return Optional.empty();
+        }
+        var oldest = minuteOf(Instant.now()) - windowMinutes + 1;
+        var flows = new HashMap<String, FlowMetrics>();
+        buckets.forEach((currency, currencyBuckets) -> currencyBuckets.sumFrom(oldest)
+                .ifPresent(flow -> flows.put(currency, flow)));
+        return Optional.of(flows);
+    }
+
+    /**
+     * Get the flow of every currency in each minute after a given one. Only minutes that are in the window and over
+     * are returned. A minute is over once the completions up to its end plus the overlap have been read, its flow
+     * does not change anymore
+     *
+     * @param after minute since the epoch, the minutes up to and including it are left out
+     * @return the flows of the currencies with completed transactions by minute since the epoch, minutes without any
+     * are included. Empty when the buckets were not loaded yet
+     */
+    public synchronized NavigableMap<Long, Map<String, FlowMetrics>> getClosedMinutes(long after) {
+        var minutes = new TreeMap<Long, Map<String, FlowMetrics>>();
+        if (!loaded) {
+            return minutes;
+        }
+        var first = Math.max(after + 1, minuteOf(Instant.now()) - windowMinutes + 1);
+        var last = minuteOf(lastRead.minus(refreshOverlap)) - 1;
+        for (var minute = first; minute <= last; minute++) {
+            var flows = new HashMap<String, FlowMetrics>();
+            var at = minute;
+            buckets.forEach((currency, currencyBuckets) -> currencyBuckets.get(at)
+                    .ifPresent(flow -> flows.put(currency, flow)));
+            minutes.put(minute, flows);
+        }
+        return minutes;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void load() {
+        var startedAt = Instant.now();
+        var from = Instant.ofEpochSecond((minuteOf(startedAt) - windowMinutes + 1) * 60);
+        if (read(from)) {
+            lastRead = startedAt;
+            if (highWater == null) {
+                // nothing completed in the window, later completions are read from here
+                highWater = from;
+            }
+            loaded = true;
+            log.info("Loaded the flow metrics from {}", from);
+        }
+    }
+
+    @Scheduled(initialDelayString = "${app.flow-metrics-refresh-milliseconds:5000}", fixedDelayString = "${app.flow-metrics-refresh-milliseconds:5000}")
+    public synchronized void refresh() {
+        if (!loaded) {
+            load();
+            return;
+        }
+
+        var startedAt = Instant.now();
+        if (read(highWater.minus(refreshOverlap))) {
+            lastRead = startedAt;
+        }
+        evict();
+    }
+
+    /**
+     * @param from completions after this are read
+     */
+    private boolean read(Instant from) {
+        var completedAt = from.atOffset(ZoneOffset.UTC);
+        var id = 0L;
+        var read = 0;
+        while (true) {
+            var page = transactionRepository.getCompletedAfter(completedAt, id, batchSize)
+                    .peekLeft(failure -> log.error("Failed to read completed transactions after {}. Reason: {}", from, failure.message(), failure.cause()));
+            if (page.isLeft()) {
+                // what was read is counted, the next read starts over and skips it
+                return false;
+            }
+
+            var transactions = page.get();
+            transactions.forEach(this::add);
+            read += transactions.size();
+            if (transactions.size() < batchSize) {
+                log.debug("Read {} completed transactions after {}", read, from);
+                return true;
+            }
+            var last = transactions.getLast();
+            completedAt = last.completedAt();
+            id = last.id();
+        }
+    }
+
+    private void add(CompletedTransaction transaction) {
+        var completedAt = transaction.completedAt().toInstant();
+        if (counted.putIfAbsent(transaction.id(), completedAt) != null) {
+            return;
+        }
+        if (highWater == null || completedAt.isAfter(highWater)) {
+            highWater = completedAt;
+        }
+        buckets.computeIfAbsent(transaction.toCurrency(), __ -> new MinuteBuckets(windowMinutes))
+                .add(minuteOf(completedAt), transaction.toAmount(), transaction.margin());
+    }
+
+    private void evict() {
+        if (highWater == null) {
+            return;
+        }
+        // completions are read in order, so the ones before the overlap are at the head
+        var before = highWater.minus(refreshOverlap);
+        var iterator = counted.values().iterator();
+        while (iterator.hasNext() && iterator.next().isBefore(before)) {
+            iterator.remove();
+        }
+    }
+
+    private static long minuteOf(Instant instant) {
+        return Math.floorDiv(instant.getEpochSecond(), 60);
+    }
+
+    /**
+     * Totals of one currency, bucket i holding the minute that is i modulo the number of buckets
+     */
+    private static final class MinuteBuckets {
+        private final long[] minutes;
+        private final int[] counts;
+        private final BigDecimal[] amounts;
+        private final BigDecimal[] margins;
+
+        MinuteBuckets(int size) {
+            this.minutes = new long[size];
+            this.counts = new int[size];
+            this.amounts = new BigDecimal[size];
+            this.margins = new BigDecimal[size];
+            Arrays.fill(minutes, Long.MIN_VALUE);
+        }
+
+        void add(long minute, BigDecimal amount, BigDecimal margin) {
+            var index = (int) Math.floorMod(minute, (long) minutes.length);
+            if (minutes[index] > minute) {
+                // the minute has already left the window
+                return;
+            }
+            if (minutes[index] < minute) {
+                minutes[index] = minute;
+                counts[index] = 0;
+                amounts[index] = BigDecimal.ZERO;
+                margins[index] = BigDecimal.ZERO;
+            }
+            counts[index]++;
+            amounts[index] = amounts[index].add(amount);
+            margins[index] = margins[index].add(margin == null ? BigDecimal.ZERO : margin);
+        }
+
+        Optional<FlowMetrics> get(long minute) {
+            var index = (int) Math.floorMod(minute, (long) minutes.length);
+            return minutes[index] != minute || counts[index] == 0
+                    ? Optional.empty()
+                    : Optional.of(new FlowMetrics(counts[index], amounts[index], margins[index]));
+        }
+
+        Optional<FlowMetrics> sumFrom(long oldest) {
+            var count = 0;
+            var amount = BigDecimal.ZERO;
+            var margin = BigDecimal.ZERO;
+            for (int i = 0; i < minutes.length; i++) {
+                // buckets of minutes to come are from a clock ahead of this one, they count as now
+                if (minutes[i] >= oldest) {
+                    count += counts[i];
+                    amount = amount.add(amounts[i]);
+                    margin = margin.add(margins[i]);
+                }
+            }
+            return count == 0 ? Optional.empty() : Optional.of(new FlowMetrics(count, amount, margin));
+        }
+    }
+}
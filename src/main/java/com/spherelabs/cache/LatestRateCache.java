@@ -0,0 +1,92 @@
+package com.spherelabs.cache;
+
+import com.spherelabs.model.ExchangeRate;
+import com.spherelabs.repository.ExchangeRateRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * In-memory store of the latest exchange rate per currency pair.
+ * <p>
+ *     Rates are written through on every successful insert and loaded from the database at startup.
+ *     The store is reloaded on a fixed interval so rates received by other nodes are picked up as well.
+ *     Rates with a future effective date are kept aside until they become effective. A reload only reads the next
+ *     of them per pair, so the ones after it are picked up by the reloads once it has become effective.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class LatestRateCache {
+    private final ExchangeRateRepository exchangeRateRepository;
+    private final ConcurrentMap<String, ConcurrentNavigableMap<Instant, ExchangeRate>> rates = new ConcurrentHashMap<>();
+    private final List<Consumer<ExchangeRate>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Get the latest effective rate of a currency pair
+     *
+     * @param currencyPair pair of currencies to exchange eg USD/EUR
+     * @return the rate or empty if the pair has never been seen by this node
+     */
+    public Optional<ExchangeRate> get(String currencyPair) {
+        var timeline = rates.get(currencyPair);
+        if (timeline == null) {
+            return Optional.empty();
+        }
+
+        return Optional.ofNullable(timeline.floorEntry(Instant.now()))
+                .map(Map.Entry::getValue);
+    }
+
+    public void put(ExchangeRate exchangeRate) {
+        var at = exchangeRate.timestamp().toInstant();
+        var timeline = rates.computeIfAbsent(exchangeRate.currencyPair(), __ -> new ConcurrentSkipListMap<>());
+        var now = Instant.now();
+        var effective = timeline.floorKey(now);
+        if (effective != null && at.isBefore(effective)) {
+            // older than the effective rate, it can never be the latest again. The reload puts such rates again
+            return;
+        }
+
+        var previous = timeline.put(at, exchangeRate);
+        // anything older than the effective rate can never be the latest again
+        var latest = timeline.floorKey(now);
+        if (latest != null) {
+            timeline.headMap(latest).clear();
+        }
+        if (!exchangeRate.equals(previous)) {
+            listeners.forEach(listener -> listener.accept(exchangeRate));
+        }
+    }
+
+    /**
+     * @param listener called with every rate that is new to this node and not older than the effective rate of its pair,
+     *                 including rates that are not effective yet
+     */
+    public void onPut(Consumer<ExchangeRate> listener) {
+        listeners.add(listener);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(initialDelayString = "${app.rate-cache-refresh-milliseconds:5000}", fixedRateString = "${app.rate-cache-refresh-milliseconds:5000}")
+    public void refresh() {
+        exchangeRateRepository.getLatestRates()
+                .peek(exchangeRates -> exchangeRates.forEach(exchangeRate -> put(ExchangeRate.from(exchangeRate))))
+                .peek(exchangeRates -> log.debug("Loaded {} exchange rates into the latest rate cache", exchangeRates.size()))
+                .peekLeft(failure -> log.error("Failed to load latest exchange rates. Reason: {}", failure.message(), failure.cause()));
+    }
+}
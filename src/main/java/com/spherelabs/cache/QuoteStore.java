@@ -0,0 +1,100 @@
+package com.spherelabs.cache;
+
+import com.spherelabs.model.Quote;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.OffsetDateTime;
+import java.util.Comparator;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory store of the quotes handed out by this node.
+ * <p>
+ *     Quotes live for app.quote-ttl and are used up by the transfer that references them. At most
+ *     app.quote-store-max-size quotes are held, the oldest are dropped first once the store is full.
+ *     Quotes are only known to the node that made them.
+ */
+@Component
+public class QuoteStore {
+    private static final Comparator<Held> EXPIRY_ORDER = Comparator.comparing((Held held) -> held.quote().expiresAt())
+            .thenComparingLong(Held::sequence);
+
+    private final ConcurrentMap<String, Held> quotes = new ConcurrentHashMap<>();
+    // the held quotes, soonest to expire first, which is also the order they were made in.
+    // A quote leaves it when it is taken, so it never holds more than the store
+    private final NavigableSet<Held> expiry = new ConcurrentSkipListSet<>(EXPIRY_ORDER);
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Value("${app.quote-store-max-size:100000}")
+    private int maxSize;
+
+    public void put(Quote quote) {
+        var held = new Held(quote, sequence.incrementAndGet());
+        var previous = quotes.put(quote.id(), held);
+        if (previous != null) {
+            expiry.remove(previous);
+        }
+        expiry.add(held);
+        evict(OffsetDateTime.now());
+    }
+
+    /**
+     * Remove a quote that has not expired, no other transfer can use it while it is out
+     *
+     * @param id id of the quote
+     * @return the quote or empty if it does not exist, has expired or was taken already
+     */
+    public Optional<Quote> take(String id) {
+        var held = quotes.remove(id);
+        if (held == null) {
+            return Optional.empty();
+        }
+        expiry.remove(held);
+        return Optional.of(held.quote())
+                .filter(quote -> !quote.isExpired(OffsetDateTime.now()));
+    }
+
+    /**
+     * Put back a quote that was taken by a transfer that was not recorded with it, unless it has expired since.
+     * It expires when it would have, ahead of the quotes made after it
+     */
+    public void restore(Quote quote) {
+        if (quote.isExpired(OffsetDateTime.now())) {
+            return;
+        }
+        var held = new Held(quote, sequence.incrementAndGet());
+        if (quotes.putIfAbsent(quote.id(), held) == null) {
+            expiry.add(held);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${app.quote-eviction-milliseconds:1000}")
+    public void evictExpired() {
+        evict(OffsetDateTime.now());
+    }
+
+    private void evict(OffsetDateTime now) {
+        for (var oldest : expiry) {
+            if (!oldest.quote().isExpired(now) && quotes.size() <= maxSize) {
+                return;
+            }
+            // another thread may have evicted or taken it meanwhile
+            if (expiry.remove(oldest)) {
+                quotes.remove(oldest.quote().id(), oldest);
+            }
+        }
+    }
+
+    /**
+     * @param sequence order the quote was put in, orders quotes expiring at the same instant
+     */
+    private record Held(Quote quote, long sequence) {
+    }
+}
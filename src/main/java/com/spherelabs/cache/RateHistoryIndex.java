@@ -0,0 +1,312 @@
+package com.spherelabs.cache;
+
+import com.spherelabs.model.ExchangeRate;
+import com.spherelabs.repository.ExchangeRateRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory index of the recent ticks of every currency pair, used to answer which rate was effective at an instant.
+ * <p>
+ *     Ticks of the last app.fx-history-window are kept per pair in two sorted arrays, the effective date in epoch
+ *     microseconds and the rate unscaled at the scale of the exchange_rate table. The index is loaded from the
+ *     database once the application is ready, ticks written by this node are added as they are written and ticks
+ *     written by other nodes are picked up every app.fx-history-refresh-milliseconds, from the last tick the index
+ *     holds for their pair.
+ *     Lookups the index cannot answer completely return empty and are expected to go to the database.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class RateHistoryIndex {
+    // scale of exchange_rate.rate
+    private static final int RATE_SCALE = 6;
+
+    private final ExchangeRateRepository exchangeRateRepository;
+    private final ConcurrentMap<String, RateSeries> series = new ConcurrentHashMap<>();
+
+    @Value("${app.fx-history-window:1h}")
+    private Duration window;
+
+    @Value("${app.fx-history-max-ticks-per-pair:500000}")
+    private int maxTicksPerPair;
+
+    // ticks of other nodes can be written a little after their effective date
+    @Value("${app.fx-history-refresh-overlap:30s}")
+    private Duration refreshOverlap;
+
+    // the index is complete from here on. Null until it has been loaded
+    private volatile Instant indexedFrom;
+    private volatile Instant lastRefresh;
+
+    /**
+     * Get the rate that was effective at an instant
+     *
+     * @param currencyPair pair of currencies to exchange eg USD/EUR
+     * @param at the instant
+     * @return the rate or empty when the index does not reach back far enough or was not refreshed past the instant
+     */
+    public Optional<ExchangeRate> rateAt(String currencyPair, Instant at) {
+        var pairSeries = indexedFrom == null ? null : series.get(currencyPair);
+        if (pairSeries == null || !refreshedThrough(at)) {
+            return Optional.empty();
+        }
+        return pairSeries.floor(toMicros(at)).map(tick -> tick.toExchangeRate(currencyPair));
+    }
+
+    /**
+     * Get the ticks of a pair that became effective between two instants, both included
+     *
+     * @param currencyPair pair of currencies to exchange eg USD/EUR
+     * @param from first instant
+     * @param to last instant
+     * @param limit most ticks returned, oldest first
+     * @return the ticks or empty when the index does not reach back far enough or was not refreshed past the last instant
+     */
+    public Optional<List<ExchangeRate>> rates(String currencyPair, Instant from, Instant to, int limit) {
+        var pairSeries = indexedFrom == null ? null : series.get(currencyPair);
+        if (pairSeries == null || !refreshedThrough(to)) {
+            return Optional.empty();
+        }
+        return pairSeries.range(toMicros(from), toMicros(to), limit)
+                .map(ticks -> ticks.stream().map(tick -> tick.toExchangeRate(currencyPair)).toList());
+    }
+
+    public void put(ExchangeRate exchangeRate) {
+        if (indexedFrom == null) {
+            // the load picks it up
+            return;
+        }
+        var at = exchangeRate.timestamp().toInstant();
+        // the earlier ticks of a pair first seen here are not known
+        seriesOf(exchangeRate.currencyPair(), at).add(toMicros(at), unscaled(exchangeRate.rate()));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        var from = Instant.now().minus(window);
+        if (refresh(from)) {
+            indexedFrom = from;
+            log.info("Loaded the rate history index from {}", from);
+        }
+    }
+
+    @Scheduled(initialDelayString = "${app.fx-history-refresh-milliseconds:5000}", fixedDelayString = "${app.fx-history-refresh-milliseconds:5000}")
+    public void refresh() {
+        if (indexedFrom == null) {
+            load();
+            return;
+        }
+
+        refresh(Instant.now().minus(window));
+        evict();
+    }
+
+    /**
+     * @param from pairs not in the index yet are loaded from here
+     */
+    private boolean refresh(Instant from) {
+        var startedAt = Instant.now();
+        // a pair's ticks are newer than its last one, but the tick of another node can be committed after a newer one
+        var overlapFrom = lastRefresh == null ? from : lastRefresh.minus(refreshOverlap);
+        var after = new HashMap<String, OffsetDateTime>();
+        series.forEach((pair, pairSeries) -> after.put(pair, toInstant(Math.min(pairSeries.last(), toMicros(overlapFrom))).atOffset(ZoneOffset.UTC)));
+        exchangeRateRepository.getCurrencyPairs()
+                .peekLeft(failure -> log.error("Failed to get currency pairs. Reason: {}", failure.message(), failure.cause()))
+                .peek(pairs -> pairs.forEach(pair -> after.putIfAbsent(pair, from.atOffset(ZoneOffset.UTC))));
+
+        var loaded = exchangeRateRepository.getRatesSince(after)
+                .peekLeft(failure -> log.error("Failed to load exchange rates since {}. Reason: {}", from, failure.message(), failure.cause()));
+        if (loaded.isLeft()) {
+            return false;
+        }
+
+        loaded.get().forEach(exchangeRate -> seriesOf(exchangeRate.getCurrencyPair(), from)
+                .add(toMicros(exchangeRate.getEffectiveDate().toInstant()), unscaled(exchangeRate.getRate())));
+        lastRefresh = startedAt;
+        return true;
+    }
+
+    // ticks of other nodes effective after this may not have been picked up yet
+    private boolean refreshedThrough(Instant at) {
+        return !at.isAfter(lastRefresh.minus(refreshOverlap));
+    }
+
+    private void evict() {
+        var oldest = toMicros(Instant.now().minus(window));
+        series.values().forEach(pairSeries -> pairSeries.evictBefore(oldest));
+    }
+
+    private RateSeries seriesOf(String currencyPair, Instant completeFrom) {
+        return series.computeIfAbsent(currencyPair, __ -> new RateSeries(toMicros(completeFrom), maxTicksPerPair));
+    }
+
+    private static long toMicros(Instant instant) {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, instant);
+    }
+
+    private static Instant toInstant(long micros) {
+        return Instant.EPOCH.plus(micros, ChronoUnit.MICROS);
+    }
+
+    private static long unscaled(BigDecimal rate) {
+        return rate.setScale(RATE_SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    private record Tick(long micros, long rate) {
+        ExchangeRate toExchangeRate(String currencyPair) {
+            var timestamp = toInstant(micros).atOffset(ZoneOffset.UTC);
+            return new ExchangeRate(currencyPair, BigDecimal.valueOf(rate, RATE_SCALE), timestamp);
+        }
+    }
+
+    /**
+     * Ticks of one pair, sorted by effective date. Ticks live in [start, end) of both arrays
+     */
+    private static final class RateSeries {
+        private final int maxTicks;
+        private long[] micros = new long[64];
+        private long[] rates = new long[64];
+        private int start;
+        private int end;
+        // every tick effective from here on is in the series
+        private long completeFrom;
+
+        RateSeries(long completeFrom, int maxTicks) {
+            this.completeFrom = completeFrom;
+            this.maxTicks = maxTicks;
+        }
+
+        // the last tick, or where the series became complete while it has none
+        synchronized long last() {
+            return end > start ? micros[end - 1] : completeFrom;
+        }
+
+        synchronized Optional<Tick> floor(long at) {
+            if (at < completeFrom) {
+                return Optional.empty();
+            }
+            var index = upperBound(at) - 1;
+            // an older rate was effective, it is no longer in the series
+            return index < start ? Optional.empty() : Optional.of(new Tick(micros[index], rates[index]));
+        }
+
+        synchronized Optional<List<Tick>> range(long from, long to, int limit) {
+            if (from < completeFrom) {
+                return Optional.empty();
+            }
+            var ticks = new ArrayList<Tick>();
+            for (int i = lowerBound(from); i < end && micros[i] <= to && ticks.size() < limit; i++) {
+                ticks.add(new Tick(micros[i], rates[i]));
+            }
+            return Optional.of(ticks);
+        }
+
+        synchronized void add(long at, long rate) {
+            if (at < completeFrom) {
+                return;
+            }
+            if (end > start && at <= micros[end - 1]) {
+                // out of order, or a tick seen before
+                var index = lowerBound(at);
+                if (index < end && micros[index] == at) {
+                    rates[index] = rate;
+                    return;
+                }
+                ensureCapacity();
+                index = lowerBound(at);
+                System.arraycopy(micros, index, micros, index + 1, end - index);
+                System.arraycopy(rates, index, rates, index + 1, end - index);
+                micros[index] = at;
+                rates[index] = rate;
+                end++;
+            } else {
+                ensureCapacity();
+                micros[end] = at;
+                rates[end] = rate;
+                end++;
+            }
+
+            if (end - start > maxTicks) {
+                evictBefore(micros[end - maxTicks + 1]);
+            }
+        }
+
+        /**
+         * Drops the ticks before an instant, except the last one. It is still the effective rate at that instant
+         */
+        synchronized void evictBefore(long at) {
+            var index = lowerBound(at) - 1;
+            if (index > start) {
+                start = index;
+                completeFrom = Math.max(completeFrom, at);
+            }
+        }
+
+        private void ensureCapacity() {
+            if (end < micros.length) {
+                return;
+            }
+            var size = end - start;
+            // reclaim the evicted head before growing
+            var capacity = size * 2 <= micros.length ? micros.length : micros.length * 2;
+            var newMicros = new long[capacity];
+            var newRates = new long[capacity];
+            System.arraycopy(micros, start, newMicros, 0, size);
+            System.arraycopy(rates, start, newRates, 0, size);
+            micros = newMicros;
+            rates = newRates;
+            start = 0;
+            end = size;
+        }
+
+        // first index in [start, end) whose tick is at or after the instant
+        private int lowerBound(long at) {
+            int low = start;
+            int high = end;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (micros[mid] < at) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        // first index in [start, end) whose tick is after the instant
+        private int upperBound(long at) {
+            int low = start;
+            int high = end;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (micros[mid] <= at) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -6,7 +6,9 @@ import org.springframework.stereotype.Component;
 import org.springframework.validation.annotation.Validated;
 
 import java.math.BigDecimal;
+import java.time.Duration;
 import java.util.Map;
+import java.util.Optional;
 
 @ConfigurationProperties(prefix = "app")
 @Data
@@ -14,6 +16,37 @@ import java.util.Map;
 @Validated
 public class AppConfiguration {
     private Map<String, BigDecimal> marginRates;
+    // insert, lock and FUNDS_LOCKED status change of a transfer are committed as one database transaction
+    private boolean singleTransactionTransfer;
+    // /transfer returns once funds are locked. The transfer provider is called by the transfer dispatcher
+    private boolean asyncTransfer;
     private int settlementPollSize;
+    // a transaction that fails this many settlement attempts is marked REQUIRE_INTERVENTION. 0 for no limit
     private int maxSettlementAttempts;
-}
\ No newline at end of file
+    // number of workers settling a batch in parallel
+    private int settlementWorkers = 4;
+    private SettlementPartitioning settlementPartitioning = SettlementPartitioning.CURRENCY;
+    // how many full batches are settled back to back before waiting for the next tick
+    private int settlementMaxBatchesPerRun = 20;
+    // identifies this instance on the transactions it has claimed for settlement
+    private String nodeId = Optional.ofNullable(System.getenv("HOSTNAME")).orElse("node") + "-" + ProcessHandle.current().pid();
+    // how long a claimed batch is reserved for this node. Must be longer than it takes to settle a batch
+    private Duration settlementClaimLease = Duration.ofMinutes(1);
+    // completed transactions of a batch are settled per currency with a few set based statements instead of one by one
+    private boolean settlementBulk;
+    // failed and expired transactions are unlocked in bulk by the expiry sweeper instead of the settlement processor
+    private boolean expirySweeper;
+    // pools are topped up when their forecast flow would take the available balance within the lead time, instead of
+    // when the available balance falls below a ratio of the trailing flow
+    private boolean rebalanceForecast;
+    // pools that are short are topped up from the surplus of other pools in one database transaction before falling
+    // back to the master pool
+    private boolean rebalanceOptimizer;
+    // transfers and quotes are refused when the latest rate of their pair is older than this. Not checked when unset
+    private Duration maxRateAge;
+
+    public enum SettlementPartitioning {
+        CURRENCY,
+        ID
+    }
+}
@@ -1,17 +1,34 @@
 package com.spherelabs.config;
 
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.CacheManager;
-import org.springframework.cache.annotation.Cacheable;
-import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
-@Configuration
+import java.time.Duration;
 
+/**
+ * Caches are bounded and record their hits and misses, which are published as the cache.gets metric.
+ * Entries are dropped on change by the {@link com.spherelabs.cache.CurrencyChangeListener}, the expiry only
+ * bounds how long a change can go unnoticed when a notification is lost
+ */
+@Configuration
+@EnableCaching
 public class CacheConfig {
+    public static final String CURRENCY_CACHE = "currencyCache";
 
     @Bean
-    public CacheManager cacheManager() {
-        return new ConcurrentMapCacheManager("rateCache", "currencyCache");
+    public CacheManager cacheManager(@Value("${app.cache-max-size:1000}") long maxSize,
+                                     @Value("${app.cache-expiry:10m}") Duration expiry) {
+        // caches are named up front so their metrics are registered at startup
+        var cacheManager = new CaffeineCacheManager(CURRENCY_CACHE);
+        cacheManager.setCaffeine(Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expiry)
+                .recordStats());
+        return cacheManager;
     }
 }
@@ -1,22 +1,46 @@
 package com.spherelabs.controllers;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.spherelabs.error.ApplicationException;
+import com.spherelabs.error.FailureCode;
+import com.spherelabs.model.ExchangeRate;
+import com.spherelabs.model.api.BulkRateResponse;
 import com.spherelabs.model.api.ExchangeRateRequest;
+import com.spherelabs.model.api.ExchangeRateResponse;
+import com.spherelabs.model.api.RateAtRequest;
+import com.spherelabs.model.api.RateRangeRequest;
 import com.spherelabs.services.ExchangeRateService;
 import jakarta.validation.Valid;
+import jakarta.validation.Validator;
 import lombok.RequiredArgsConstructor;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
 @RestController
 @RequiredArgsConstructor
 public class ExchangeRatesController {
+    private static final String VALIDATION_ERROR = "api.validation.error";
+    // rates of a stream are added in chunks of this size while the stream is read
+    private static final int STREAM_CHUNK_SIZE = 500;
+
     private final ExchangeRateService service;
+    private final ObjectMapper objectMapper;
+    private final Validator validator;
 
     @PostMapping("/fx-rate")
     @ResponseStatus(HttpStatus.NO_CONTENT)
@@ -27,4 +51,114 @@ public class ExchangeRatesController {
                     throw new ApplicationException(failure);
                 });
     }
+
+    /**
+     * Get the rate that was effective at an instant, e.g. the rate_effective_date of a transfer
+     */
+    @GetMapping("/fx-rate")
+    public ExchangeRateResponse getRateAt(@Valid RateAtRequest request) {
+        return service.getRateAt(request.pair(), request.at())
+                .map(ExchangeRateResponse::from)
+                .getOrElseThrow(failure -> {
+                    throw new ApplicationException(failure);
+                });
+    }
+
+    /**
+     * Get the rates of a pair that became effective between two instants, oldest first
+     */
+    @GetMapping("/fx-rates")
+    public List<ExchangeRateResponse> getRates(@Valid RateRangeRequest request) {
+        return service.getRates(request.pair(), request.from(), request.to(), request.limitOrDefault())
+                .map(exchangeRates -> exchangeRates.stream().map(ExchangeRateResponse::from).toList())
+                .getOrElseThrow(failure -> {
+                    throw new ApplicationException(failure);
+                });
+    }
+
+    /**
+     * Add a JSON array of rates. Every rate is validated on its own, invalid rates do not stop the others
+     */
+    @PostMapping(value = "/fx-rates", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public BulkRateResponse addRates(@RequestBody List<ExchangeRateRequest> requests) {
+        var bulk = new BulkRates();
+        for (var request : requests) {
+            bulk.add(request);
+        }
+        return bulk.finish();
+    }
+
+    /**
+     * Add rates sent as newline delimited JSON, one rate per line. Rates are added while the stream is read
+     */
+    @PostMapping(value = "/fx-rates", consumes = MediaType.APPLICATION_NDJSON_VALUE)
+    public BulkRateResponse streamRates(InputStream body) throws IOException {
+        var bulk = new BulkRates();
+        try (var reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    bulk.add(objectMapper.readValue(line, ExchangeRateRequest.class));
+                } catch (JsonProcessingException e) {
+                    bulk.reject(VALIDATION_ERROR, "Could not parse the rate. Please modify it and try again");
+                }
+            }
+        }
+        return bulk.finish();
+    }
+
+    private class BulkRates {
+        private final List<ExchangeRate> chunk = new ArrayList<>();
+        private final List<Integer> chunkIndexes = new ArrayList<>();
+        private final List<BulkRateResponse.RejectedRate> rejected = new ArrayList<>();
+        private int index;
+        private int accepted;
+
+        void add(ExchangeRateRequest request) {
+            var violation = request == null ? null : validator.validate(request).stream().findFirst().orElse(null);
+            if (request == null || violation != null) {
+                reject(VALIDATION_ERROR, violation == null ? "Rate is missing"
+                        : "%s: %s. Rejected value:  %s".formatted(violation.getPropertyPath(), violation.getMessage(), violation.getInvalidValue()));
+                return;
+            }
+
+            chunk.add(new ExchangeRate(request.pair(), request.rate(), request.timestamp()));
+            chunkIndexes.add(index++);
+            if (chunk.size() == STREAM_CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        void reject(String code, String message) {
+            rejected.add(new BulkRateResponse.RejectedRate(index++, code, message));
+        }
+
+        BulkRateResponse finish() {
+            flush();
+            rejected.sort((a, b) -> Integer.compare(a.index(), b.index()));
+            return new BulkRateResponse(accepted, rejected);
+        }
+
+        private void flush() {
+            if (chunk.isEmpty()) {
+                return;
+            }
+
+            var results = service.addRates(chunk);
+            for (int i = 0; i < results.size(); i++) {
+                var result = results.get(i);
+                if (result.isRight()) {
+                    accepted++;
+                } else {
+                    var failureCode = FailureCode.fromCode(result.getLeft().code());
+                    rejected.add(new BulkRateResponse.RejectedRate(chunkIndexes.get(i), failureCode.getCode(), failureCode.getMessage()));
+                }
+            }
+            chunk.clear();
+            chunkIndexes.clear();
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package com.spherelabs.controllers;
 
 import com.spherelabs.error.ApplicationException;
+import com.spherelabs.model.api.QuoteRequest;
+import com.spherelabs.model.api.QuoteResponse;
 import com.spherelabs.model.api.TransferRequest;
 import com.spherelabs.model.api.TransferResponse;
 import com.spherelabs.services.TransactionService;
@@ -26,4 +28,14 @@ public class TransactionController {
                     throw new ApplicationException(failure);
                 });
     }
+
+    @PostMapping("/quote")
+    @ResponseStatus(HttpStatus.OK)
+    public QuoteResponse quote(@Valid @RequestBody QuoteRequest request) {
+        return service.quote(request)
+                .map(QuoteResponse::from)
+                .getOrElseThrow(failure -> {
+                    throw new ApplicationException(failure);
+                });
+    }
 }
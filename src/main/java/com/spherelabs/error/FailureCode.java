@@ -14,6 +14,9 @@ public enum FailureCode {
     SENDING_CURRENCY_NOT_SUPPORTED("sending_currency_not_supported", "Currency not supported", HttpStatus.UNPROCESSABLE_ENTITY, false),
     RECEIVING_CURRENCY_NOT_SUPPORTED("invalid_receiving_currency", "Currency not supported", HttpStatus.UNPROCESSABLE_ENTITY, false),
     OLD_FX_RATE("old_fx_rate_error", "Old fx rate error", HttpStatus.UNPROCESSABLE_ENTITY, false),
+    STALE_FX_RATE("stale_fx_rate", "The latest rate is too old. We keep updating new rates. Please check back later", HttpStatus.UNPROCESSABLE_ENTITY, true),
+    QUOTE_NOT_FOUND("quote_not_found", "Quote does not exist or has expired", HttpStatus.NOT_FOUND, false),
+    QUOTE_MISMATCH("quote_mismatch", "Transfer does not match the quote", HttpStatus.UNPROCESSABLE_ENTITY, false),
     NO_AVAILABLE_RATE("no_available_rate", "No available rate. We keep updating new rates. Please check back later", HttpStatus.INTERNAL_SERVER_ERROR, false),
     INSUFFICIENT_FUNDS("insufficient_funds", "Insufficient funds", HttpStatus.INTERNAL_SERVER_ERROR, false);
 
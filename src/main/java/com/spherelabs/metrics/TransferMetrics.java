@@ -0,0 +1,68 @@
+package com.spherelabs.metrics;
+
+import com.spherelabs.error.Failure;
+import com.spherelabs.error.FailureCode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Meters of the transfer path.
+ * <ul>
+ *     <li>transfer.stage.duration: time spent in each stage of a transfer, tagged by stage and currency pair</li>
+ *     <li>transfer.failures: failures by failure code, stage and currency pair</li>
+ *     <li>liquidity.lock.wait: time spent acquiring the row lock of a pool shard, tagged by currency</li>
+ * </ul>
+ * Meters are created on first use and looked up by their tags afterwards.
+ */
+@Component
+@RequiredArgsConstructor
+public class TransferMetrics {
+    public static final String STAGE_VALIDATE = "validate";
+    public static final String STAGE_RATE_LOOKUP = "rate_lookup";
+    public static final String STAGE_INSERT = "insert";
+    public static final String STAGE_LOCK = "lock";
+    public static final String STAGE_PROVIDER_CALL = "provider_call";
+    public static final String STAGE_STATUS_UPDATE = "status_update";
+
+    private final MeterRegistry meterRegistry;
+    private final ConcurrentMap<String, Timer> stageTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> lockWaitTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> failureCounters = new ConcurrentHashMap<>();
+
+    public <T> T time(String stage, String pair, Supplier<T> work) {
+        return stageTimers.computeIfAbsent(stage + '|' + pair, __ -> Timer.builder("transfer.stage.duration")
+                        .description("Time spent in a stage of a transfer")
+                        .tag("stage", stage)
+                        .tag("pair", pair)
+                        .register(meterRegistry))
+                .record(work);
+    }
+
+    public void failure(String stage, String pair, Failure failure) {
+        // codes outside of FailureCode are counted as unknown errors
+        var code = FailureCode.fromCode(failure.code()).getCode();
+        failureCounters.computeIfAbsent(stage + '|' + pair + '|' + code, __ -> Counter.builder("transfer.failures")
+                        .description("Transfers that failed, by failure code")
+                        .tag("stage", stage)
+                        .tag("pair", pair)
+                        .tag("code", code)
+                        .register(meterRegistry))
+                .increment();
+    }
+
+    public void lockWait(String currency, long nanos) {
+        lockWaitTimers.computeIfAbsent(currency, __ -> Timer.builder("liquidity.lock.wait")
+                        .description("Time spent acquiring the row lock of a liquidity pool shard")
+                        .tag("currency", currency)
+                        .register(meterRegistry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
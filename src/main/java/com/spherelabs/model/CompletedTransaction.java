@@ -0,0 +1,16 @@
+package com.spherelabs.model;
+
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+
+/**
+ * What a completed transaction took out of the pool of its target currency and when it completed
+ */
+public record CompletedTransaction(
+        Long id,
+        String toCurrency,
+        BigDecimal toAmount,
+        BigDecimal margin,
+        OffsetDateTime completedAt
+) {
+}
@@ -0,0 +1,104 @@
+package com.spherelabs.model;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Immutable table of the supported currencies and their margin rates.
+ * <p>
+ *     Every currency code is given a small index and its attributes are held in arrays at that index, so looking up
+ *     a currency is one hash lookup of its code and reading an attribute is an array read.
+ */
+public final class CurrencyRegistry {
+    public static final int UNKNOWN = -1;
+
+    // what the registry was built from, to tell whether it is still current
+    private final List<Currency> source;
+    private final Map<String, BigDecimal> sourceMarginRates;
+
+    private final Map<String, Integer> indexes;
+    private final String[] codes;
+    private final Duration[] settlementTimes;
+    private final int[] precisions;
+    private final boolean[] enabled;
+    // null where the currency has no margin rate, transfers into it are not supported
+    private final BigDecimal[] marginRates;
+
+    private CurrencyRegistry(List<Currency> currencies, Map<String, BigDecimal> marginRates) {
+        this.source = currencies;
+        this.sourceMarginRates = marginRates;
+        var size = currencies.size();
+        this.indexes = new HashMap<>(size * 2);
+        this.codes = new String[size];
+        this.settlementTimes = new Duration[size];
+        this.precisions = new int[size];
+        this.enabled = new boolean[size];
+        this.marginRates = new BigDecimal[size];
+        for (int i = 0; i < size; i++) {
+            var currency = currencies.get(i);
+            indexes.put(currency.code(), i);
+            codes[i] = currency.code();
+            settlementTimes[i] = currency.settlementTime();
+            precisions[i] = currency.precision();
+            enabled[i] = currency.enabled();
+            this.marginRates[i] = marginRates == null ? null : marginRates.get(currency.code());
+        }
+    }
+
+    public static CurrencyRegistry of(List<Currency> currencies, Map<String, BigDecimal> marginRates) {
+        return new CurrencyRegistry(currencies, marginRates);
+    }
+
+    /**
+     * @return whether the registry was built from these currencies and margin rates
+     */
+    public boolean isBuiltFrom(List<Currency> currencies, Map<String, BigDecimal> marginRates) {
+        // the same instances are handed out as long as nothing changed, comparing them first skips the deep compare
+        return (source == currencies || source.equals(currencies))
+                && (sourceMarginRates == marginRates || Objects.equals(sourceMarginRates, marginRates));
+    }
+
+    /**
+     * @param code currency code eg USD
+     * @return the index of the currency or {@link #UNKNOWN}
+     */
+    public int indexOf(String code) {
+        var index = code == null ? null : indexes.get(code);
+        return index == null ? UNKNOWN : index;
+    }
+
+    public boolean contains(String code) {
+        return indexOf(code) != UNKNOWN;
+    }
+
+    public int size() {
+        return codes.length;
+    }
+
+    public String code(int index) {
+        return codes[index];
+    }
+
+    public Duration settlementTime(int index) {
+        return settlementTimes[index];
+    }
+
+    public int precision(int index) {
+        return precisions[index];
+    }
+
+    public boolean isEnabled(int index) {
+        return enabled[index];
+    }
+
+    /**
+     * @return the margin rate charged on transfers into the currency or null when there is none
+     */
+    public BigDecimal marginRate(int index) {
+        return marginRates[index];
+    }
+}
@@ -3,4 +3,8 @@ package com.spherelabs.model;
 import java.math.BigDecimal;
 import java.time.OffsetDateTime;
 
-public record ExchangeRate(String currencyPair, BigDecimal rate, OffsetDateTime timestamp) { }
+public record ExchangeRate(String currencyPair, BigDecimal rate, OffsetDateTime timestamp) {
+    public static ExchangeRate from(com.assetiq.jooq.tables.pojos.ExchangeRate exchangeRate) {
+        return new ExchangeRate(exchangeRate.getCurrencyPair(), exchangeRate.getRate(), exchangeRate.getEffectiveDate());
+    }
+}
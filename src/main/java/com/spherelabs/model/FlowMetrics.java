@@ -0,0 +1,13 @@
+package com.spherelabs.model;
+
+import java.math.BigDecimal;
+
+/**
+ * Transactions completed into a currency over a window of time
+ */
+public record FlowMetrics(
+        int transferCount,
+        BigDecimal totalAmount,    // TO_AMOUNT
+        BigDecimal totalMargin     // MARGIN
+) {
+}
@@ -0,0 +1,47 @@
+package com.spherelabs.model;
+
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+
+/**
+ * Price of a transfer, held for a while so a transfer referencing it gets exactly this price
+ */
+public record Quote(String id,
+                   String fromCurrency,
+                   String toCurrency,
+                   BigDecimal fromAmount,
+                   BigDecimal fxRate,
+                   BigDecimal marginRate,
+                   BigDecimal margin,
+                   BigDecimal toAmount,
+                   OffsetDateTime effectiveRateDate,
+                   OffsetDateTime expiresAt) {
+
+    public static Quote from(String id, Transaction transaction, OffsetDateTime expiresAt) {
+        return new Quote(id, transaction.getFromCurrency(), transaction.getToCurrency(), transaction.getFromAmount(),
+                transaction.getFxRate(), transaction.getMarginRate(), transaction.getMargin(), transaction.getToAmount(),
+                transaction.getEffectiveRateDate(), expiresAt);
+    }
+
+    public boolean isExpired(OffsetDateTime now) {
+        return !expiresAt.isAfter(now);
+    }
+
+    public boolean matches(Transaction transaction) {
+        return fromCurrency.equals(transaction.getFromCurrency())
+                && toCurrency.equals(transaction.getToCurrency())
+                && fromAmount.compareTo(transaction.getFromAmount()) == 0;
+    }
+
+    /**
+     * Prices the transaction as quoted
+     */
+    public void applyTo(Transaction transaction) {
+        transaction.setToAmount(toAmount);
+        transaction.setMargin(margin);
+        transaction.setMarginCurrency(toCurrency);
+        transaction.setMarginRate(marginRate);
+        transaction.setFxRate(fxRate);
+        transaction.setEffectiveRateDate(effectiveRateDate);
+    }
+}
@@ -0,0 +1,15 @@
+package com.spherelabs.model;
+
+import java.time.OffsetDateTime;
+
+public record RecoveryTask(
+        Long id,
+        Long transactionId,
+        int attempts,
+        OffsetDateTime nextAttemptAt,
+        String lastError
+) {
+    public RecoveryTask retryAt(OffsetDateTime nextAttemptAt, String error) {
+        return new RecoveryTask(id, transactionId, attempts + 1, nextAttemptAt, error);
+    }
+}
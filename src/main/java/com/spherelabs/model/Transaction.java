@@ -135,7 +135,7 @@ public class Transaction {
 
         var transaction = new Transaction();
         transaction.setTransferId(transfer.reference());
-        transaction.setInternalTransferId("system|%s|%s|%s".formatted(transfer.reference(), transfer.fromCurrency(),transfer.toCurrency()));
+        transaction.setInternalTransferId("system|" + transfer.reference() + "|" + transfer.fromCurrency() + "|" + transfer.toCurrency());
         transaction.setSenderAccount(transfer.senderAccount());
         transaction.setReceiverAccount(transfer.receiverAccount());
         transaction.setFromAmount(transfer.amount());
@@ -0,0 +1,15 @@
+package com.spherelabs.model;
+
+import java.time.OffsetDateTime;
+
+public record TransferOutboxEntry(
+        Long id,
+        Long transactionId,
+        int attempts,
+        OffsetDateTime nextAttemptAt,
+        String lastError
+) {
+    public TransferOutboxEntry retryAt(OffsetDateTime nextAttemptAt, String error) {
+        return new TransferOutboxEntry(id, transactionId, attempts + 1, nextAttemptAt, error);
+    }
+}
@@ -0,0 +1,13 @@
+package com.spherelabs.model.api;
+
+import java.util.List;
+
+/**
+ * Outcome of a bulk exchange rate request
+ *
+ * @param accepted number of rates added
+ * @param rejected rates that were not added, by their position in the request
+ */
+public record BulkRateResponse(int accepted, List<RejectedRate> rejected) {
+    public record RejectedRate(int index, String code, String message) { }
+}
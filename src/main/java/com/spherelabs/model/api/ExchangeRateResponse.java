@@ -0,0 +1,12 @@
+package com.spherelabs.model.api;
+
+import com.spherelabs.model.ExchangeRate;
+
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+
+public record ExchangeRateResponse(String pair, BigDecimal rate, OffsetDateTime timestamp) {
+    public static ExchangeRateResponse from(ExchangeRate exchangeRate) {
+        return new ExchangeRateResponse(exchangeRate.currencyPair(), exchangeRate.rate(), exchangeRate.timestamp());
+    }
+}
@@ -0,0 +1,22 @@
+package com.spherelabs.model.api;
+
+import jakarta.validation.constraints.*;
+
+import java.math.BigDecimal;
+
+public record QuoteRequest(
+    /**
+     * Currency of the sender
+     */
+    @NotBlank @Size(max = 3) String fromCurrency,
+
+    /**
+     * Currency of the receiver
+     */
+    @NotBlank @Size(max = 3) String toCurrency,
+
+    /**
+     * Amount to transfer
+     */
+    @NotNull @Positive BigDecimal amount
+) {}
@@ -0,0 +1,15 @@
+package com.spherelabs.model.api;
+
+import com.spherelabs.model.Quote;
+
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+
+public record QuoteResponse(String quoteId, String fromCurrency, String toCurrency, BigDecimal amount, BigDecimal fxRate,
+                            BigDecimal marginRate, BigDecimal margin, BigDecimal toAmount, OffsetDateTime rateEffectiveDate,
+                            OffsetDateTime expiresAt) {
+    public static QuoteResponse from(Quote quote) {
+        return new QuoteResponse(quote.id(), quote.fromCurrency(), quote.toCurrency(), quote.fromAmount(), quote.fxRate(),
+                quote.marginRate(), quote.margin(), quote.toAmount(), quote.effectiveRateDate(), quote.expiresAt());
+    }
+}
@@ -0,0 +1,11 @@
+package com.spherelabs.model.api;
+
+import com.spherelabs.annotations.CurrencyPair;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+import org.springframework.format.annotation.DateTimeFormat;
+
+import java.time.OffsetDateTime;
+
+public record RateAtRequest(@CurrencyPair @NotBlank String pair,
+                            @NotNull @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime at) { }
@@ -0,0 +1,21 @@
+package com.spherelabs.model.api;
+
+import com.spherelabs.annotations.CurrencyPair;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import org.springframework.format.annotation.DateTimeFormat;
+
+import java.time.OffsetDateTime;
+
+public record RateRangeRequest(@CurrencyPair @NotBlank String pair,
+                               @NotNull @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime from,
+                               @NotNull @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime to,
+                               @Positive @Max(10000) Integer limit) {
+    private static final int DEFAULT_LIMIT = 1000;
+
+    public int limitOrDefault() {
+        return limit == null ? DEFAULT_LIMIT : limit;
+    }
+}
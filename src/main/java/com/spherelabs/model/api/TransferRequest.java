@@ -38,5 +38,10 @@ public record TransferRequest(
     /**
      * The reference of the transaction
      */
-    @NotBlank @Size(max = 30) String reference
+    @NotBlank @Size(max = 30) String reference,
+
+    /**
+     * Quote to price the transaction with, optional
+     */
+    @Size(max = 36) String quoteId
 ) {}
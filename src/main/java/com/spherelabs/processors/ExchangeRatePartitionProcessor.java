@@ -0,0 +1,105 @@
+package com.spherelabs.processors;
+
+import com.spherelabs.repository.ExchangeRateHistoryRepository;
+import com.spherelabs.repository.ExchangeRateRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+/**
+ * Keeps the daily partitions of the raw exchange rate ticks.
+ * <p>
+ *     Partitions are created app.fx-partition-premake-days ahead. Once a day is older than app.fx-tick-retention
+ *     its partition is dropped, after its ticks are rolled up into minute and hour bars unless app.fx-tick-rollup is off.
+ *     Minute bars are kept for app.fx-minute-bar-retention, hour bars are kept.
+ *     Rates sent ahead of time are moved into latest_rate once they become effective.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ExchangeRatePartitionProcessor {
+    private final ExchangeRateHistoryRepository exchangeRateHistoryRepository;
+    private final ExchangeRateRepository exchangeRateRepository;
+
+    @Value("${app.fx-partition-premake-days:7}")
+    private int premakeDays;
+
+    @Value("${app.fx-tick-retention:7d}")
+    private Duration tickRetention;
+
+    @Value("${app.fx-tick-rollup:true}")
+    private boolean rollUp;
+
+    @Value("${app.fx-minute-bar-retention:90d}")
+    private Duration minuteBarRetention;
+
+    @Scheduled(fixedDelayString = "${app.fx-partition-maintenance-milliseconds:3600000}")
+    public void maintainPartitions() {
+        var today = LocalDate.now(ZoneOffset.UTC);
+        createPartitions(today);
+        expireTicks(today.minusDays(Math.max(tickRetention.toDays(), 1)));
+
+        exchangeRateHistoryRepository.deleteMinuteBars(OffsetDateTime.now().minus(minuteBarRetention))
+                .peek(deleted -> log.debug("Deleted {} minute bars", deleted))
+                .peekLeft(failure -> log.error("Failed to delete minute bars. Reason: {}", failure.message(), failure.cause()));
+    }
+
+    @Scheduled(fixedDelayString = "${app.fx-rate-promotion-milliseconds:60000}")
+    public void promoteScheduledRates() {
+        exchangeRateRepository.promoteScheduledRates()
+                .peek(promoted -> {
+                    if (promoted > 0) {
+                        log.info("Promoted {} scheduled exchange rates", promoted);
+                    }
+                })
+                .peekLeft(failure -> log.error("Failed to promote scheduled exchange rates. Reason: {}", failure.message(), failure.cause()));
+    }
+
+    private void createPartitions(LocalDate today) {
+        for (int i = 0; i <= premakeDays; i++) {
+            var day = today.plusDays(i);
+            exchangeRateHistoryRepository.createPartition(day)
+                    .peek(created -> {
+                        if (created) {
+                            log.info("Created exchange rate partition for {}", day);
+                        }
+                    })
+                    .peekLeft(failure -> log.error("Failed to create exchange rate partition for {}. Reason: {}", day, failure.message(), failure.cause()));
+        }
+    }
+
+    /**
+     * @param firstKept the oldest day whose ticks are kept
+     */
+    private void expireTicks(LocalDate firstKept) {
+        var days = exchangeRateHistoryRepository.getPartitionDays()
+                .peekLeft(failure -> log.error("Failed to list exchange rate partitions. Reason: {}", failure.message(), failure.cause()))
+                .getOrElse(List.of());
+
+        for (var day : days) {
+            if (!day.isBefore(firstKept)) {
+                break;
+            }
+            exchangeRateHistoryRepository.dropPartition(day, rollUp)
+                    .peek(__ -> log.info("Dropped exchange rate partition for {}", day))
+                    .peekLeft(failure -> log.error("Failed to drop exchange rate partition for {}. Reason: {}", day, failure.message(), failure.cause()));
+        }
+
+        // ticks of days that never had a partition
+        exchangeRateHistoryRepository.deleteUnpartitionedTicks(firstKept.atStartOfDay().atOffset(ZoneOffset.UTC), rollUp)
+                .peek(deleted -> {
+                    if (deleted > 0) {
+                        log.info("Deleted {} exchange rate ticks before {}", deleted, firstKept);
+                    }
+                })
+                .peekLeft(failure -> log.error("Failed to delete exchange rate ticks before {}. Reason: {}", firstKept, failure.message(), failure.cause()));
+    }
+}
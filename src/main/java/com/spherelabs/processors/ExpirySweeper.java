@@ -0,0 +1,178 @@
+package com.spherelabs.processors;
+
+import com.spherelabs.config.AppConfiguration;
+import com.spherelabs.model.Transaction;
+import com.spherelabs.repository.LedgerRepository;
+import com.spherelabs.repository.TransactionRepository;
+import com.spherelabs.services.LiquidityService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Returns the locked funds of FAILED and expired FUNDS_LOCKED transactions to their pools in batches.
+ * <p>
+ *     Takes these transactions over from the settlement processor when app.expiry-sweeper is set. The claimed
+ *     transactions of a currency are unlocked in one database transaction and their statuses changed with one
+ *     statement per status, the same outcome as unlocking them one at a time.
+ *     At most app.expiry-sweep-max-per-second transactions are swept, app.expiry-sweep-batch-size at a time, so
+ *     a backlog left by an incident is worked off without holding the pool rows for long.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ExpirySweeper {
+    private static final String FAILED_MESSAGE = "Transaction failed";
+
+    private final TransactionRepository transactionRepository;
+    private final LedgerRepository ledgerRepository;
+    private final LiquidityService liquidityService;
+    private final AppConfiguration appConfiguration;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${app.expiry-sweep-batch-size:100}")
+    private int batchSize;
+
+    @Value("${app.expiry-sweep-max-per-second:200}")
+    private int maxPerSecond;
+
+    @Value("${app.expiry-sweep-milliseconds:1000}")
+    private long sweepMilliseconds;
+
+    private Counter swept;
+    private Counter exhausted;
+
+    @PostConstruct
+    public void init() {
+        swept = Counter.builder("settlement.expiry.swept")
+                .description("Failed and expired transactions whose funds were returned to the pool by the expiry sweeper")
+                .register(meterRegistry);
+        exhausted = Counter.builder("settlement.attempts.exhausted")
+                .description("Transactions marked for intervention after failing their last settlement attempt")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${app.expiry-sweep-milliseconds:1000}")
+    public void sweep() {
+        if (!appConfiguration.isExpirySweeper()) {
+            return;
+        }
+
+        // the rate limit is a budget per run, runs are sweepMilliseconds apart
+        var budget = Math.max(1, maxPerSecond * sweepMilliseconds / 1000);
+        while (budget > 0) {
+            var limit = (int) Math.min(batchSize, budget);
+            var transactions = transactionRepository.claimSettlementEligibleTransactions(appConfiguration.getNodeId(), appConfiguration.getSettlementClaimLease(), appConfiguration.getMaxSettlementAttempts(), limit,
+                            EnumSet.of(Transaction.Status.FAILED, Transaction.Status.FUNDS_LOCKED))
+                    .peekLeft(failure -> log.error("Failed to claim expired transactions. Reason: {}", failure.message(), failure.cause()))
+                    .getOrElse(List.of());
+            if (transactions.isEmpty()) {
+                return;
+            }
+            budget -= transactions.size();
+
+            transactions.stream()
+                    .collect(Collectors.groupingBy(Transaction::getToCurrency))
+                    .values()
+                    .forEach(this::sweepSafely);
+
+            if (transactions.size() < limit) {
+                return;
+            }
+        }
+    }
+
+    private void sweepSafely(List<Transaction> transactions) {
+        try {
+            sweep(transactions);
+        } catch (Exception e) {
+            log.error("Failed to sweep {} transactions in {}", transactions.size(), transactions.getFirst().getToCurrency(), e);
+        }
+    }
+
+    private void sweep(List<Transaction> transactions) {
+        var unlockable = new ArrayList<Transaction>();
+        for (var transaction : transactions) {
+            if (transaction.getStatus() == Transaction.Status.FUNDS_LOCKED && transaction.getUnlockedId() != null) {
+                log.warn("Anomaly. Transaction has already been unlocked. Transaction: {}. Unlock id: {}", transaction.getId(), transaction.getUnlockedId());
+                transactionRepository.markSettlementStatus(transaction.getId(), "Amount unlocked does not match expected amount", Transaction.SettlementStatus.REQUIRE_INTERVENTION, Transaction.Status.EXPIRED, Transaction.Status.FUNDS_LOCKED)
+                        .peekLeft(failure -> log.error("Failed to mark transaction as expired. Reason: {}", failure.message(), failure.cause()));
+            } else {
+                unlockable.add(transaction);
+            }
+        }
+        if (unlockable.isEmpty()) {
+            return;
+        }
+
+        var lockEntries = ledgerRepository.getByLockIds(unlockable.stream()
+                        .map(Transaction::getLockedId)
+                        .filter(Objects::nonNull)
+                        .toList())
+                .peekLeft(failure -> log.error("Failed to get ledger entries of {} locks. Reason: {}", unlockable.size(), failure.message(), failure.cause()));
+        if (lockEntries.isLeft()) {
+            // nothing is unlocked, the transactions are claimed again once the claim expires
+            return;
+        }
+
+        var locked = new ArrayList<Transaction>();
+        for (var transaction : unlockable) {
+            if (transaction.getLockedId() == null || !lockEntries.get().containsKey(transaction.getLockedId())) {
+                // weird we cannt unlock funds. We would have to investigate this further
+                log.error("Failed to unlock funds. Lock {} of transaction {} not found", transaction.getLockedId(), transaction.getId());
+                transactionRepository.markSettlementStatus(transaction.getId(), "weird but the lock id is not found", Transaction.SettlementStatus.REQUIRE_INTERVENTION, transaction.getStatus())
+                        .peekLeft(failure -> log.error("Failed to mark transaction as failed. Reason: {}", failure.message(), failure.cause()));
+            } else {
+                locked.add(transaction);
+            }
+        }
+        if (locked.isEmpty()) {
+            return;
+        }
+
+        liquidityService.unlockBalances(locked.stream().map(Transaction::getLockedId).toList())
+                .peekLeft(failure -> log.error("Failed to return locked funds of {} transactions. Reason: {}", locked.size(), failure.message(), failure.cause()))
+                .peek(unlocked -> markUnlocked(locked, unlocked));
+    }
+
+    private void markUnlocked(List<Transaction> transactions, Set<Long> unlocked) {
+        var byStatus = transactions.stream()
+                .filter(transaction -> unlocked.contains(transaction.getLockedId()))
+                .collect(Collectors.groupingBy(Transaction::getStatus, Collectors.mapping(Transaction::getId, Collectors.toList())));
+        var failed = byStatus.getOrDefault(Transaction.Status.FAILED, List.of());
+        var expired = byStatus.getOrDefault(Transaction.Status.FUNDS_LOCKED, List.of());
+        if (!failed.isEmpty()) {
+            transactionRepository.markSettlementStatuses(failed, FAILED_MESSAGE, Transaction.SettlementStatus.SETTLEMENT_STOPPED, Transaction.Status.FAILED, Transaction.Status.FAILED)
+                    .peekLeft(failure -> log.error("Failed to mark {} failed transactions as stopped. Reason: {}", failed.size(), failure.message(), failure.cause()));
+        }
+        if (!expired.isEmpty()) {
+            transactionRepository.markSettlementStatuses(expired, FAILED_MESSAGE, Transaction.SettlementStatus.SETTLEMENT_STOPPED, Transaction.Status.EXPIRED, Transaction.Status.FUNDS_LOCKED)
+                    .peekLeft(failure -> log.error("Failed to mark {} expired transactions as stopped. Reason: {}", expired.size(), failure.message(), failure.cause()));
+        }
+        swept.increment(failed.size() + expired.size());
+        log.info("Returned the funds of {} failed and {} expired transactions to the pool", failed.size(), expired.size());
+
+        // the locked balance did not cover these, they are retried like a failed unlock
+        transactions.stream()
+                .filter(transaction -> !unlocked.contains(transaction.getLockedId()))
+                .forEach(transaction -> transactionRepository.incrementSettlementRetryCount(transaction.getId(), appConfiguration.getMaxSettlementAttempts(), "Failed to return locked funds")
+                        .peekLeft(failure -> log.error("Failed to increment status retry count. Reason: {}", failure.message(), failure.cause()))
+                        .filter(counted -> counted.getSettlementStatus() == Transaction.SettlementStatus.REQUIRE_INTERVENTION)
+                        .forEach(counted -> {
+                            log.error("Transaction failed its last settlement attempt and requires intervention. Transaction: {}", transaction.getInternalTransferId());
+                            exhausted.increment();
+                        }));
+    }
+}
@@ -0,0 +1,143 @@
+package com.spherelabs.processors;
+
+import com.spherelabs.cache.FlowMetricsAggregator;
+import com.spherelabs.model.FlowMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Forecasts how fast transfers draw down the pool of every currency, from the flow of the minutes that are over.
+ * <p>
+ *     The flow of a currency, its amounts and margins, is folded minute by minute into an exponentially weighted
+ *     mean and variance for every horizon of app.rebalance-forecast-horizons. A short horizon follows a spike within
+ *     minutes, a long one keeps the trend. A forecast takes the horizon that draws the pool down the fastest, at its
+ *     mean plus app.rebalance-forecast-deviations standard deviations.
+ *     Currencies appear once a transaction has completed into them and stay, their flow decaying towards zero.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class LiquidityForecaster {
+    private final FlowMetricsAggregator flowMetricsAggregator;
+    private final Map<String, Flow> flows = new HashMap<>();
+
+    @Value("${app.rebalance-forecast-horizons:5m,15m,60m}")
+    private List<Duration> horizons;
+
+    @Value("${app.rebalance-forecast-deviations:2}")
+    private double deviations;
+
+    // weight of a new minute per horizon
+    private double[] alphas;
+    // minutes up to here have been folded in
+    private long lastMinute = Long.MIN_VALUE;
+
+    @PostConstruct
+    public void init() {
+        alphas = horizons.stream()
+                .mapToDouble(horizon -> 1 - Math.exp(-60_000d / horizon.toMillis()))
+                .toArray();
+    }
+
+    /**
+     * Forecast the flow of every currency from the minutes over by now
+     *
+     * @return the forecasts of the currencies with any flow so far, empty until the flow metrics are loaded
+     */
+    public synchronized Map<String, Forecast> forecast() {
+        var minutes = flowMetricsAggregator.getClosedMinutes(lastMinute);
+        minutes.forEach((minute, minuteFlows) -> fold(minuteFlows));
+        if (!minutes.isEmpty()) {
+            lastMinute = minutes.lastKey();
+            log.debug("Folded {} minutes of flow into the forecast", minutes.size());
+        }
+
+        var forecasts = new HashMap<String, Forecast>();
+        flows.forEach((currency, flow) -> forecasts.put(currency, flow.forecast(deviations)));
+        return forecasts;
+    }
+
+    private void fold(Map<String, FlowMetrics> minuteFlows) {
+        minuteFlows.keySet().forEach(currency -> flows.computeIfAbsent(currency, __ -> new Flow(alphas)));
+        // a currency without completions in the minute had no flow
+        flows.forEach((currency, flow) -> {
+            var minuteFlow = minuteFlows.get(currency);
+            flow.add(minuteFlow == null ? 0 : minuteFlow.totalAmount().add(minuteFlow.totalMargin()).doubleValue());
+        });
+    }
+
+    /**
+     * Flow of one currency a minute, mean and variance per horizon
+     */
+    private static final class Flow {
+        private final double[] alphas;
+        private final double[] means;
+        private final double[] variances;
+
+        Flow(double[] alphas) {
+            this.alphas = alphas;
+            this.means = new double[alphas.length];
+            this.variances = new double[alphas.length];
+        }
+
+        void add(double amount) {
+            for (int i = 0; i < alphas.length; i++) {
+                var difference = amount - means[i];
+                var increment = alphas[i] * difference;
+                means[i] += increment;
+                variances[i] = (1 - alphas[i]) * (variances[i] + difference * increment);
+            }
+        }
+
+        Forecast forecast(double deviations) {
+            return new Forecast(means.clone(), variances.clone(), deviations);
+        }
+    }
+
+    /**
+     * Flow of a currency a minute per horizon. Minutes are taken to be independent, so over t minutes a horizon
+     * forecasts mean * t plus deviations * sqrt(variance * t)
+     */
+    public record Forecast(double[] means, double[] variances, double deviations) {
+
+        /**
+         * @return the highest flow a horizon forecasts over the minutes
+         */
+        public double demand(double minutes) {
+            var demand = 0d;
+            for (int i = 0; i < means.length; i++) {
+                demand = Math.max(demand, means[i] * minutes + deviations * Math.sqrt(variances[i] * minutes));
+            }
+            return demand;
+        }
+
+        /**
+         * @return the minutes until the flow of the fastest horizon has taken the balance, infinite without any flow
+         */
+        public double minutesToDepletion(double balance) {
+            if (balance <= 0) {
+                return 0;
+            }
+            var minutes = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < means.length; i++) {
+                // mean * t + spread * sqrt(t) = balance, a quadratic in sqrt(t)
+                var spread = deviations * Math.sqrt(variances[i]);
+                if (means[i] > 0) {
+                    var root = (Math.sqrt(spread * spread + 4 * means[i] * balance) - spread) / (2 * means[i]);
+                    minutes = Math.min(minutes, root * root);
+                } else if (spread > 0) {
+                    minutes = Math.min(minutes, (balance / spread) * (balance / spread));
+                }
+            }
+            return minutes;
+        }
+    }
+}
@@ -1,10 +1,18 @@
 package com.spherelabs.processors;
 
-import com.assetiq.jooq.enums.TransactionStatus;
+import com.spherelabs.cache.FlowMetricsAggregator;
+import com.spherelabs.config.AppConfiguration;
 import com.spherelabs.error.ApplicationException;
+import com.spherelabs.model.FlowMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.jooq.DSLContext;
+import org.jooq.Record3;
+import org.jooq.Row3;
 import org.jooq.impl.DSL;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -12,22 +20,29 @@ import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
 
 import static com.assetiq.jooq.tables.Ledger.LEDGER;
-import static com.assetiq.jooq.tables.LiquidityPool.LIQUIDITY_POOL;
-import static com.assetiq.jooq.tables.Transaction.TRANSACTION;
+import static com.assetiq.jooq.tables.LiquidityPoolShard.LIQUIDITY_POOL_SHARD;
 import static org.jooq.impl.DSL.*;
 @Service
 @Slf4j
 @RequiredArgsConstructor
 public class PoolRebalanceProcessor {
     private final DSLContext dsl;
-
-    @Value("${app.rebalance-look-back-minutes:30}")
-    private int lookBackMinutes;
+    private final MeterRegistry meterRegistry;
+    private final FlowMetricsAggregator flowMetricsAggregator;
+    private final LiquidityForecaster liquidityForecaster;
+    private final RebalanceOptimizer rebalanceOptimizer;
+    private final AppConfiguration appConfiguration;
 
     @Value("${app.rebalance-threshold-ratio:0.2}")
     private BigDecimal thresholdRatio;
@@ -38,12 +53,38 @@ public class PoolRebalanceProcessor {
     @Value("${app.rebalance-safety-buffer-ratio:0.3}")
     private BigDecimal safetyBufferRatio;
 
+    // how far ahead a forecast pool is topped up, long enough for the funds to arrive
+    @Value("${app.rebalance-lead-time:10m}")
+    private Duration leadTime;
+
     @Scheduled(fixedRateString = "${app.rebalance-check-milliseconds:12000}")
     public void analyzeAndRebalance() {
+        Timer.builder("pool.rebalance.duration")
+                .description("Time taken to analyze and rebalance the liquidity pools")
+                .register(meterRegistry)
+                .record(this::analyzeAndRebalancePools);
+    }
+
+    private void analyzeAndRebalancePools() {
         try {
             log.info("Starting pool rebalance analysis");
 
-            Map<String, FlowMetrics> flows = getFlowMetrics();
+            if (appConfiguration.isRebalanceOptimizer()) {
+                optimizeAndRebalancePools();
+                return;
+            }
+
+            if (appConfiguration.isRebalanceForecast()) {
+                forecastAndRebalancePools();
+                return;
+            }
+
+            var loadedFlows = flowMetricsAggregator.getFlowMetrics();
+            if (loadedFlows.isEmpty()) {
+                log.info("Flow metrics are not loaded yet");
+                return;
+            }
+            Map<String, FlowMetrics> flows = loadedFlows.get();
             if (flows.isEmpty()) {
                 log.info("No flows found for analysis");
                 return;
@@ -68,41 +109,85 @@ public class PoolRebalanceProcessor {
         }
     }
 
-    private Map<String, FlowMetrics> getFlowMetrics() {
-        return dsl
-                .select(
-                        TRANSACTION.TO_CURRENCY,
-                        count().as("transfer_count"),
-                        sum(TRANSACTION.TO_AMOUNT).as("total_amount"),
-                        sum(TRANSACTION.MARGIN).as("total_margin")
-                )
-                .from(TRANSACTION)
-                .where(TRANSACTION.CREATED_AT.gt(OffsetDateTime.now().minusMinutes(lookBackMinutes)))
-                .and(TRANSACTION.STATUS.eq(TransactionStatus.completed))
-                .groupBy(TRANSACTION.TO_CURRENCY)
-                .fetchMap(
-                        r -> r.get(TRANSACTION.TO_CURRENCY),
-                        r -> new FlowMetrics(
-                                r.get("transfer_count", Integer.class),
-                                r.get("total_amount", BigDecimal.class),
-                                r.get("total_margin", BigDecimal.class)
-                        )
-                );
+    private void forecastAndRebalancePools() {
+        var forecasts = liquidityForecaster.forecast();
+        if (forecasts.isEmpty()) {
+            log.info("No flows found for forecast");
+            return;
+        }
+
+        Map<String, PoolBalance> poolBalances = getCurrentPoolBalances();
+        if (poolBalances.isEmpty()) {
+            log.warn("No pool balances found");
+            return;
+        }
+
+        forecasts.forEach((currency, forecast) -> {
+            try {
+                processForecastRebalancing(currency, forecast, poolBalances);
+            } catch (Exception e) {
+                log.error("Error processing rebalance for currency {}: {}", currency, e.getMessage());
+            }
+        });
+    }
+
+    private void optimizeAndRebalancePools() {
+        Map<String, PoolBalance> poolBalances = getCurrentPoolBalances();
+        if (poolBalances.isEmpty()) {
+            log.warn("No pool balances found");
+            return;
+        }
+
+        List<RebalanceOptimizer.Position> positions;
+        if (appConfiguration.isRebalanceForecast()) {
+            var forecasts = liquidityForecaster.forecast();
+            double leadMinutes = leadTime.toMillis() / 60_000d;
+            positions = poolBalances.entrySet().stream()
+                    .map(pool -> {
+                        var forecast = forecasts.get(pool.getKey());
+                        // short once the forecast demand over the lead time is more than the pool holds
+                        var demand = forecast == null ? BigDecimal.ZERO : BigDecimal.valueOf(forecast.demand(leadMinutes));
+                        return new RebalanceOptimizer.Position(pool.getKey(), pool.getValue().availableBalance(), demand, demand.multiply(BigDecimal.ONE.add(safetyBufferRatio)));
+                    })
+                    .toList();
+        } else {
+            var loadedFlows = flowMetricsAggregator.getFlowMetrics();
+            if (loadedFlows.isEmpty()) {
+                log.info("Flow metrics are not loaded yet");
+                return;
+            }
+            positions = poolBalances.entrySet().stream()
+                    .map(pool -> {
+                        var metrics = loadedFlows.get().get(pool.getKey());
+                        // the same ratio of the trailing flow as needsRebalancing
+                        var totalFlow = metrics == null ? BigDecimal.ZERO : metrics.totalAmount().add(metrics.totalMargin());
+                        return new RebalanceOptimizer.Position(pool.getKey(), pool.getValue().availableBalance(), totalFlow.multiply(thresholdRatio), totalFlow.multiply(BigDecimal.ONE.add(safetyBufferRatio)));
+                    })
+                    .toList();
+        }
+
+        var plan = rebalanceOptimizer.plan(positions);
+        if (plan.isEmpty()) {
+            log.info("No pool needs rebalancing");
+            return;
+        }
+        executeRebalancing(plan);
     }
 
     private Map<String, PoolBalance> getCurrentPoolBalances() {
         return dsl
                 .select(
-                        LIQUIDITY_POOL.CURRENCY_CODE,
-                        LIQUIDITY_POOL.AVAILABLE_BALANCE,
-                        LIQUIDITY_POOL.LOCKED_BALANCE
+                        LIQUIDITY_POOL_SHARD.CURRENCY_CODE,
+                        sum(LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE).as("available_balance"),
+                        sum(LIQUIDITY_POOL_SHARD.LOCKED_BALANCE).as("locked_balance")
                 )
-                .from(LIQUIDITY_POOL)
+                .from(LIQUIDITY_POOL_SHARD)
+                .groupBy(LIQUIDITY_POOL_SHARD.CURRENCY_CODE)
                 .fetchMap(
-                        r -> r.get(LIQUIDITY_POOL.CURRENCY_CODE),
+                        r -> r.get(LIQUIDITY_POOL_SHARD.CURRENCY_CODE),
                         r -> new PoolBalance(
-                                r.get(LIQUIDITY_POOL.AVAILABLE_BALANCE),
-                                r.get(LIQUIDITY_POOL.LOCKED_BALANCE)
+                                r.get("available_balance", BigDecimal.class),
+                                r.get("locked_balance", BigDecimal.class)
                         )
                 );
     }
@@ -130,8 +215,42 @@ public class PoolRebalanceProcessor {
     }
 
 
+    private void processForecastRebalancing(
+            String currency,
+            LiquidityForecaster.Forecast forecast,
+            Map<String, PoolBalance> poolBalances
+    ) {
+        PoolBalance pool = poolBalances.get(currency);
+        if (pool == null) {
+            log.warn("Missing pool balance for currency {}", currency);
+            return;
+        }
+
+        double leadMinutes = leadTime.toMillis() / 60_000d;
+        double minutesToDepletion = forecast.minutesToDepletion(pool.availableBalance().doubleValue());
+        log.info("Available balance for currency {} is forecast to last {} minutes. Lead time is {} minutes", currency, minutesToDepletion, leadMinutes);
+        if (minutesToDepletion >= leadMinutes) {
+            return;
+        }
+
+        // enough for the forecast demand over the lead time and the safety buffer on top
+        BigDecimal amount = BigDecimal.valueOf(forecast.demand(leadMinutes))
+                .multiply(BigDecimal.ONE.add(safetyBufferRatio))
+                .subtract(pool.availableBalance())
+                .setScale(6, RoundingMode.HALF_UP);
+        if (amount.compareTo(minimumRebalanceAmount) >= 0) {
+            executeRebalancing(currency, amount);
+        } else {
+            log.info("Rebalance amount {} for currency {} is below minimum threshold {}", amount, currency, minimumRebalanceAmount);
+        }
+    }
+
     private boolean needsRebalancing(PoolBalance pool, FlowMetrics metrics, String currency) {
         BigDecimal totalFlow = metrics.totalAmount().add(metrics.totalMargin());
+        if (totalFlow.signum() == 0) {
+            // nothing flowed out, however small the pool is
+            return false;
+        }
         BigDecimal availableRatio = pool.availableBalance()
                 .divide(totalFlow, RoundingMode.HALF_UP);
 
@@ -157,6 +276,14 @@ public class PoolRebalanceProcessor {
             dsl.transaction(config -> {
                 DSLContext ctx = DSL.using(config);
 
+                // The emptiest shard gets the funds, shards are evened out periodically
+                var shardId = ctx.select(LIQUIDITY_POOL_SHARD.SHARD_ID)
+                        .from(LIQUIDITY_POOL_SHARD)
+                        .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(currency))
+                        .orderBy(LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE)
+                        .limit(1)
+                        .fetchSingle(LIQUIDITY_POOL_SHARD.SHARD_ID);
+
                 // Record rebalancing entry
                 ctx.insertInto(LEDGER)
                         .set(LEDGER.CURRENCY_CODE, currency)
@@ -165,30 +292,146 @@ public class PoolRebalanceProcessor {
                         .set(LEDGER.TRANSACTION_TYPE, "rebalance")
                         .set(LEDGER.AMOUNT, amount)
                         .set(LEDGER.TRANSACTION_ID, rebalanceId)
+                        .set(LEDGER.SHARD_ID, shardId)
                         .set(LEDGER.DESCRIPTION,
                                 String.format("Pool rebalancing for %s", currency))
                         .execute();
 
                 // Update pool balance
-                ctx.update(LIQUIDITY_POOL)
-                        .set(LIQUIDITY_POOL.AVAILABLE_BALANCE,
-                                LIQUIDITY_POOL.AVAILABLE_BALANCE.add(amount))
-                        .where(LIQUIDITY_POOL.CURRENCY_CODE.eq(currency))
+                ctx.update(LIQUIDITY_POOL_SHARD)
+                        .set(LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE,
+                                LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE.add(amount))
+                        .set(LIQUIDITY_POOL_SHARD.UPDATED_AT, OffsetDateTime.now())
+                        .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(currency))
+                        .and(LIQUIDITY_POOL_SHARD.SHARD_ID.eq(shardId))
                         .execute();
 
                 log.info("Rebalanced pool {} by adding {}", currency, amount);
             });
+            DistributionSummary.builder("pool.rebalance.amount")
+                    .description("Amount added to a liquidity pool by a rebalance")
+                    .tag("currency", currency)
+                    .register(meterRegistry)
+                    .record(amount.doubleValue());
         } catch (Exception e) {
             log.error("Failed to execute rebalancing {}: {}", rebalanceId, e.getMessage());
+            Counter.builder("pool.rebalance.failures")
+                    .description("Rebalances that could not be executed")
+                    .tag("currency", currency)
+                    .register(meterRegistry)
+                    .increment();
             throw new ApplicationException("Rebalancing failed", e);
         }
     }
 
-    record FlowMetrics(
-            int transferCount,
-            BigDecimal totalAmount,    // TO_AMOUNT
-            BigDecimal totalMargin     // MARGIN
-    ){}
+    /**
+     * Executes every move and top up of a plan in one database transaction, so either all pools are rebalanced or none
+     */
+    protected void executeRebalancing(RebalanceOptimizer.Plan plan) {
+        String rebalanceId = "rebalance_" + UUID.randomUUID();
+        var credited = new TreeMap<String, BigDecimal>();
+        plan.moves().forEach(move -> credited.merge(move.toCurrency(), move.toAmount(), BigDecimal::add));
+        plan.topUps().forEach((currency, amount) -> credited.merge(currency, amount, BigDecimal::add));
+
+        try {
+            dsl.transaction(config -> {
+                DSLContext ctx = DSL.using(config);
+
+                var currencies = new TreeSet<>(credited.keySet());
+                plan.moves().forEach(move -> currencies.add(move.fromCurrency()));
+                // shards are locked in currency and shard order so concurrent rebalances and releases cannot deadlock
+                var balances = ctx.select(LIQUIDITY_POOL_SHARD.CURRENCY_CODE, LIQUIDITY_POOL_SHARD.SHARD_ID, LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE)
+                        .from(LIQUIDITY_POOL_SHARD)
+                        .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.in(currencies))
+                        .orderBy(LIQUIDITY_POOL_SHARD.CURRENCY_CODE, LIQUIDITY_POOL_SHARD.SHARD_ID)
+                        .forUpdate()
+                        .fetchMap(shard -> new Shard(shard.value1(), shard.value2()), Record3::value3);
+                var amounts = new LinkedHashMap<Shard, BigDecimal>();
+                var ledger = ctx.insertInto(LEDGER, LEDGER.CURRENCY_CODE, LEDGER.FROM_ACCOUNT, LEDGER.TO_ACCOUNT, LEDGER.TRANSACTION_TYPE,
+                        LEDGER.AMOUNT, LEDGER.TRANSACTION_ID, LEDGER.SHARD_ID, LEDGER.DESCRIPTION);
+
+                for (var move : plan.moves()) {
+                    var fromAccount = move.fromCurrency() + "_pool";
+                    var toAccount = move.toCurrency() + "_pool";
+                    var description = String.format("Pool rebalancing from %s to %s", move.fromCurrency(), move.toCurrency());
+                    // taken from the fullest shards, a single shard may not hold the whole amount
+                    var remaining = move.fromAmount();
+                    for (var shard : byBalance(balances, amounts, move.fromCurrency()).reversed()) {
+                        if (remaining.signum() == 0) {
+                            break;
+                        }
+                        var take = remaining.min(balances.get(shard).add(amounts.getOrDefault(shard, BigDecimal.ZERO)));
+                        if (take.signum() <= 0) {
+                            break;
+                        }
+                        amounts.merge(shard, take.negate(), BigDecimal::add);
+                        ledger = ledger.values(move.fromCurrency(), fromAccount, toAccount, "rebalance_out", take, rebalanceId, shard.shardId(), description);
+                        remaining = remaining.subtract(take);
+                    }
+                    if (remaining.signum() > 0) {
+                        throw new ApplicationException("Pool " + move.fromCurrency() + " cannot cover " + move.fromAmount());
+                    }
+
+                    // the emptiest shard gets the funds, shards are evened out periodically
+                    var shard = byBalance(balances, amounts, move.toCurrency()).getFirst();
+                    amounts.merge(shard, move.toAmount(), BigDecimal::add);
+                    ledger = ledger.values(move.toCurrency(), fromAccount, toAccount, "rebalance", move.toAmount(), rebalanceId, shard.shardId(), description);
+                }
+                for (var topUp : plan.topUps().entrySet()) {
+                    var shard = byBalance(balances, amounts, topUp.getKey()).getFirst();
+                    amounts.merge(shard, topUp.getValue(), BigDecimal::add);
+                    ledger = ledger.values(topUp.getKey(), "master_pool", topUp.getKey() + "_pool", "rebalance", topUp.getValue(), rebalanceId, shard.shardId(),
+                            String.format("Pool rebalancing for %s", topUp.getKey()));
+                }
+                ledger.execute();
+
+                // one row per shard so each shard is updated once with the sum of its moves
+                var shardAmounts = DSL.values(amounts.entrySet().stream()
+                                .map(entry -> DSL.row(entry.getKey().currency(), entry.getKey().shardId(), entry.getValue()))
+                                .toArray(Row3[]::new))
+                        .as("shard_amount", "currency_code", "shard_id", "amount");
+                ctx.update(LIQUIDITY_POOL_SHARD)
+                        .set(LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE, LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE.add(shardAmounts.field("amount", BigDecimal.class)))
+                        .set(LIQUIDITY_POOL_SHARD.UPDATED_AT, OffsetDateTime.now())
+                        .from(shardAmounts)
+                        .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(shardAmounts.field("currency_code", String.class)))
+                        .and(LIQUIDITY_POOL_SHARD.SHARD_ID.eq(shardAmounts.field("shard_id", Integer.class)))
+                        .execute();
+
+                log.info("Rebalanced {} pools with {} moves between pools and {} top ups", credited.size(), plan.moves().size(), plan.topUps().size());
+            });
+            credited.forEach((currency, amount) -> DistributionSummary.builder("pool.rebalance.amount")
+                    .description("Amount added to a liquidity pool by a rebalance")
+                    .tag("currency", currency)
+                    .register(meterRegistry)
+                    .record(amount.doubleValue()));
+        } catch (Exception e) {
+            log.error("Failed to execute rebalancing {}: {}", rebalanceId, e.getMessage());
+            credited.keySet().forEach(currency -> Counter.builder("pool.rebalance.failures")
+                    .description("Rebalances that could not be executed")
+                    .tag("currency", currency)
+                    .register(meterRegistry)
+                    .increment());
+            throw new ApplicationException("Rebalancing failed", e);
+        }
+    }
+
+    /**
+     * @return the shards of a currency, emptiest first after the amounts moved so far
+     */
+    private static List<Shard> byBalance(Map<Shard, BigDecimal> balances, Map<Shard, BigDecimal> amounts, String currency) {
+        var shards = balances.keySet().stream()
+                .filter(shard -> shard.currency().equals(currency))
+                .sorted(Comparator.comparing(shard -> balances.get(shard).add(amounts.getOrDefault(shard, BigDecimal.ZERO))))
+                .toList();
+        if (shards.isEmpty()) {
+            throw new ApplicationException("No pool shards found for currency " + currency);
+        }
+        return shards;
+    }
+
+    private record Shard(String currency, int shardId) {
+    }
 
     record PoolBalance(
             BigDecimal availableBalance,
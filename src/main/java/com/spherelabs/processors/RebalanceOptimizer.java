@@ -0,0 +1,182 @@
+package com.spherelabs.processors;
+
+import com.spherelabs.cache.CrossRateEngine;
+import com.spherelabs.cache.LatestRateCache;
+import com.spherelabs.config.AppConfiguration;
+import com.spherelabs.model.ExchangeRate;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Plans the moves between currency pools that bring every pool that is short back to its target in one go.
+ * <p>
+ *     Pools are valued in the first of app.fx-pivot-currencies at the latest rates this node holds, quoted or derived
+ *     through a pivot, so planning reads nothing from the database. A pool that is not short has a surplus of what it
+ *     holds beyond its trigger and its target, at most app.rebalance-donor-max-ratio of its available balance.
+ *     Surpluses are paired with deficits largest first, which needs at most one move less than the pools involved.
+ *     What the surpluses cannot cover is topped up from the master pool as before.
+ *     Moves and top ups below app.rebalance-minimum-amount in the currency receiving them are left out.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class RebalanceOptimizer {
+    // scale of liquidity_pool_shard.available_balance
+    private static final int AMOUNT_SCALE = 6;
+
+    private final LatestRateCache latestRateCache;
+    private final CrossRateEngine crossRateEngine;
+    private final AppConfiguration appConfiguration;
+
+    @Value("${app.fx-pivot-currencies:USD,EUR}")
+    private List<String> pivots;
+
+    @Value("${app.rebalance-minimum-amount:1000}")
+    private BigDecimal minimumRebalanceAmount;
+
+    @Value("${app.rebalance-donor-max-ratio:0.5}")
+    private BigDecimal donorMaxRatio;
+
+    /**
+     * Plan the moves and top ups of one rebalance
+     *
+     * @param positions the pool of every currency
+     * @return the moves between pools and the top ups from the master pool
+     */
+    public Plan plan(List<Position> positions) {
+        var reference = pivots.getFirst();
+        var deficits = new ArrayList<Balance>();
+        var surpluses = new ArrayList<Balance>();
+        var topUps = new LinkedHashMap<String, BigDecimal>();
+        for (var position : positions) {
+            var isShort = position.available().compareTo(position.trigger()) < 0;
+            var amount = isShort
+                    ? position.target().subtract(position.available())
+                    : position.available().subtract(position.trigger().max(position.target()))
+                            .min(position.available().multiply(donorMaxRatio));
+            amount = amount.setScale(AMOUNT_SCALE, RoundingMode.DOWN);
+            if (isShort ? amount.compareTo(minimumRebalanceAmount) < 0 : amount.signum() <= 0) {
+                continue;
+            }
+
+            var rate = rateOf(position.currency(), reference);
+            if (rate.isEmpty()) {
+                log.warn("No rate from {} to {}. The pool is left out of moves between pools", position.currency(), reference);
+                if (isShort) {
+                    topUps.put(position.currency(), amount);
+                }
+            } else {
+                (isShort ? deficits : surpluses).add(new Balance(position.currency(), amount, rate.get()));
+            }
+        }
+
+        // largest first so a deficit is covered by as few surpluses as there can be
+        Comparator<Balance> byValue = Comparator.comparing(Balance::value).reversed();
+        deficits.sort(byValue);
+        surpluses.sort(byValue);
+
+        var moves = new ArrayList<Move>();
+        var next = 0;
+        for (var deficit : deficits) {
+            var remaining = deficit.amount;
+            while (next < surpluses.size() && remaining.compareTo(minimumRebalanceAmount) >= 0) {
+                var surplus = surpluses.get(next);
+                // a unit of the surplus currency in the deficit currency
+                var rate = surplus.rate.divide(deficit.rate, MathContext.DECIMAL64);
+                var worth = surplus.amount.multiply(rate).setScale(AMOUNT_SCALE, RoundingMode.DOWN);
+                if (worth.compareTo(minimumRebalanceAmount) < 0) {
+                    next++;
+                    continue;
+                }
+
+                var toAmount = worth.min(remaining);
+                var fromAmount = toAmount.divide(rate, AMOUNT_SCALE, RoundingMode.UP).min(surplus.amount);
+                moves.add(new Move(surplus.currency, fromAmount, deficit.currency, toAmount));
+                surplus.amount = surplus.amount.subtract(fromAmount);
+                remaining = remaining.subtract(toAmount);
+            }
+            if (remaining.compareTo(minimumRebalanceAmount) >= 0) {
+                topUps.put(deficit.currency, remaining);
+            }
+        }
+        return new Plan(moves, topUps);
+    }
+
+    /**
+     * @return what a unit of the currency is worth in the reference currency, empty when there is no fresh rate
+     */
+    private Optional<BigDecimal> rateOf(String currency, String reference) {
+        if (currency.equals(reference)) {
+            return Optional.of(BigDecimal.ONE);
+        }
+        var pair = currency + "/" + reference;
+        return latestRateCache.get(pair)
+                .or(() -> crossRateEngine.get(pair))
+                .filter(this::usable)
+                .map(ExchangeRate::rate)
+                .or(() -> latestRateCache.get(reference + "/" + currency)
+                        .filter(this::usable)
+                        .map(inverse -> BigDecimal.ONE.divide(inverse.rate(), MathContext.DECIMAL64)));
+    }
+
+    private boolean usable(ExchangeRate exchangeRate) {
+        var maxRateAge = appConfiguration.getMaxRateAge();
+        return exchangeRate.rate().signum() > 0
+                && (maxRateAge == null || !exchangeRate.timestamp().isBefore(OffsetDateTime.now().minus(maxRateAge)));
+    }
+
+    /**
+     * The pool of a currency. It is short below its trigger and is then topped up to its target
+     */
+    public record Position(String currency, BigDecimal available, BigDecimal trigger, BigDecimal target) {
+    }
+
+    /**
+     * Amount taken from the pool of one currency and what it is worth added to the pool of another
+     */
+    public record Move(String fromCurrency, BigDecimal fromAmount, String toCurrency, BigDecimal toAmount) {
+    }
+
+    /**
+     * @param topUps amount added to the pool of a currency from the master pool
+     */
+    public record Plan(List<Move> moves, Map<String, BigDecimal> topUps) {
+        public boolean isEmpty() {
+            return moves.isEmpty() && topUps.isEmpty();
+        }
+    }
+
+    /**
+     * A deficit or a surplus, the amount of a surplus goes down as it is moved
+     */
+    private static final class Balance {
+        private final String currency;
+        private final BigDecimal rate;
+        private final BigDecimal value;
+        private BigDecimal amount;
+
+        Balance(String currency, BigDecimal amount, BigDecimal rate) {
+            this.currency = currency;
+            this.amount = amount;
+            this.rate = rate;
+            this.value = amount.multiply(rate);
+        }
+
+        BigDecimal value() {
+            return value;
+        }
+    }
+}
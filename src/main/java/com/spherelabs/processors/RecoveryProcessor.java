@@ -0,0 +1,182 @@
+package com.spherelabs.processors;
+
+import com.spherelabs.error.Failure;
+import com.spherelabs.error.FailureCode;
+import com.spherelabs.model.RecoveryTask;
+import com.spherelabs.model.Transaction;
+import com.spherelabs.repository.LedgerRepository;
+import com.spherelabs.repository.RecoveryTaskRepository;
+import com.spherelabs.repository.TransactionRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.vavr.control.Either;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Determines the final status of transactions whose processing broke off while they were INITIATED.
+ * <p>
+ *     Tasks live in the recovery_task table, so an outage only grows that table. Each run claims one batch and
+ *     works through it on a fixed number of workers. A transaction whose funds were locked is failed with its lock,
+ *     and the settlement processor returns the funds. A transaction without a lock is failed with settlement stopped.
+ *     Settlement does not claim a transaction while it has a task, so the recovery comes first.
+ *     Tasks that keep failing are retried with exponential backoff and handed over for intervention
+ *     once app.recovery-max-attempts is reached.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class RecoveryProcessor {
+    private static final String RECOVERED_MESSAGE = "Processing was interrupted before the transfer was submitted";
+
+    private final RecoveryTaskRepository recoveryTaskRepository;
+    private final TransactionRepository transactionRepository;
+    private final LedgerRepository ledgerRepository;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${app.recovery-workers:4}")
+    private int workerCount;
+
+    @Value("${app.recovery-batch-size:50}")
+    private int batchSize;
+
+    @Value("${app.recovery-max-attempts:8}")
+    private int maxAttempts;
+
+    @Value("${app.recovery-retry-backoff:5s}")
+    private Duration retryBackoff;
+
+    @Value("${app.recovery-lease:5m}")
+    private Duration lease;
+
+    private ExecutorService workers;
+    private Timer batchTimer;
+    private Counter recovered;
+    private Counter retried;
+    private Counter exhausted;
+
+    @PostConstruct
+    public void init() {
+        workers = Executors.newFixedThreadPool(workerCount, Thread.ofVirtual().name("recovery-worker-", 0).factory());
+        batchTimer = Timer.builder("recovery.batch.duration")
+                .description("Time taken to work through one batch of recovery tasks")
+                .register(meterRegistry);
+        recovered = recoveryCounter("recovered");
+        retried = recoveryCounter("retried");
+        exhausted = recoveryCounter("exhausted");
+    }
+
+    private Counter recoveryCounter(String outcome) {
+        return Counter.builder("recovery.tasks")
+                .description("Recovery tasks processed, by outcome")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    @Scheduled(fixedDelayString = "${app.recovery-poll-milliseconds:5000}")
+    public void processRecoveries() {
+        var tasks = recoveryTaskRepository.claimDue(batchSize, lease)
+                .peekLeft(failure -> log.error("Failed to claim recovery tasks. Reason: {}", failure.message(), failure.cause()))
+                .getOrElse(List.of());
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        batchTimer.record(() -> processBatch(tasks));
+    }
+
+    private void processBatch(List<RecoveryTask> tasks) {
+        var transactions = transactionRepository.getTransactions(tasks.stream().map(RecoveryTask::transactionId).toList())
+                .peekLeft(failure -> log.error("Failed to fetch transactions to recover. Reason: {}", failure.message(), failure.cause()));
+        if (transactions.isLeft()) {
+            // the claim lease expires and the tasks are picked up again
+            return;
+        }
+        var transactionsById = transactions.get().stream()
+                .collect(Collectors.toMap(Transaction::getId, Function.identity()));
+
+        var results = tasks.stream()
+                .map(task -> CompletableFuture.supplyAsync(() -> recover(transactionsById.get(task.transactionId())), workers))
+                .toList();
+        CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).join();
+
+        var done = new ArrayList<Long>();
+        var retries = new ArrayList<RecoveryTask>();
+        for (int i = 0; i < tasks.size(); i++) {
+            var task = tasks.get(i);
+            var result = results.get(i).join();
+            if (result.isRight()) {
+                recovered.increment();
+                done.add(task.id());
+            } else if (task.attempts() + 1 >= maxAttempts) {
+                exhausted.increment();
+                handOver(transactionsById.get(task.transactionId()), result.getLeft());
+                done.add(task.id());
+            } else {
+                retried.increment();
+                retries.add(task.retryAt(OffsetDateTime.now().plus(backoff(task.attempts())), result.getLeft().message()));
+            }
+        }
+
+        recoveryTaskRepository.complete(done)
+                .peekLeft(failure -> log.error("Failed to remove {} recovery tasks. Reason: {}", done.size(), failure.message(), failure.cause()));
+        recoveryTaskRepository.reschedule(retries)
+                .peekLeft(failure -> log.error("Failed to reschedule {} recovery tasks. Reason: {}", retries.size(), failure.message(), failure.cause()));
+    }
+
+    private Either<Failure, Void> recover(Transaction transaction) {
+        if (transaction == null || transaction.getStatus() != Transaction.Status.INITIATED) {
+            // processing carried on after all, nothing to recover
+            return Either.right(null);
+        }
+
+        try {
+            log.info("Recovering transaction {}", transaction.getInternalTransferId());
+            return ledgerRepository.findLockByTransactionId(transaction.getInternalTransferId())
+                    .flatMap(lock -> lock
+                            // keep the lock on the transaction so the settlement processor returns the funds
+                            .map(entry -> transactionRepository.updateLockStatus(transaction.getId(), entry.id(), RECOVERED_MESSAGE, Transaction.Status.FAILED, Transaction.Status.INITIATED))
+                            .orElseGet(() -> transactionRepository.markSettlementStatus(transaction.getId(), RECOVERED_MESSAGE, Transaction.SettlementStatus.SETTLEMENT_STOPPED, Transaction.Status.FAILED, Transaction.Status.INITIATED)))
+                    .peekLeft(failure -> log.warn("Failed to recover transaction {}. Reason: {}", transaction.getInternalTransferId(), failure.message(), failure.cause()))
+                    .map(__ -> null);
+        } catch (Exception e) {
+            log.error("Failed to recover transaction {}", transaction.getInternalTransferId(), e);
+            return Either.left(Failure.of(e.getMessage(), FailureCode.UNKNOWN_ERROR.getCode(), e));
+        }
+    }
+
+    private void handOver(Transaction transaction, Failure failure) {
+        if (transaction == null) {
+            return;
+        }
+
+        log.error("Giving up recovering transaction {}. Reason: {}", transaction.getInternalTransferId(), failure.message());
+        transactionRepository.markSettlementStatus(transaction.getId(), "Recovery failed. %s".formatted(failure.message()), Transaction.SettlementStatus.REQUIRE_INTERVENTION, Transaction.Status.INITIATED)
+                .peekLeft(failure1 -> log.error("Failed to mark transaction as require intervention. Reason: {}", failure1.message(), failure1.cause()));
+    }
+
+    private Duration backoff(int attempts) {
+        return retryBackoff.multipliedBy(1L << Math.min(attempts, 10));
+    }
+}
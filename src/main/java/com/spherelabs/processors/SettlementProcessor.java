@@ -7,11 +7,32 @@ import com.spherelabs.model.Transaction;
 import com.spherelabs.repository.LedgerRepository;
 import com.spherelabs.repository.TransactionRepository;
 import com.spherelabs.services.LiquidityService;
+import io.vavr.control.Either;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
 @Component
 @RequiredArgsConstructor
 @Slf4j
@@ -20,13 +41,138 @@ public class SettlementProcessor {
     private final LedgerRepository ledgerRepository;
     private final LiquidityService liquidityService;
     private final AppConfiguration appConfiguration;
+    private final MeterRegistry meterRegistry;
+    // meters of a currency are created on first use and looked up afterwards
+    private final ConcurrentMap<String, Counter> pickUpCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> lagTimers = new ConcurrentHashMap<>();
+
+    private ExecutorService workers;
+    private Timer batchTimer;
+    private DistributionSummary batchSize;
+    private Counter exhausted;
+
+    @PostConstruct
+    public void init() {
+        workers = Executors.newFixedThreadPool(appConfiguration.getSettlementWorkers(), Thread.ofVirtual().name("settlement-worker-", 0).factory());
+        batchTimer = Timer.builder("settlement.batch.duration")
+                .description("Time taken to settle one batch of eligible transactions")
+                .register(meterRegistry);
+        batchSize = DistributionSummary.builder("settlement.batch.size")
+                .description("Number of transactions in a settlement batch")
+                .register(meterRegistry);
+        exhausted = Counter.builder("settlement.attempts.exhausted")
+                .description("Transactions marked for intervention after failing their last settlement attempt")
+                .register(meterRegistry);
+    }
 
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+    }
 
     @Scheduled(fixedRate = 1000) // Run every second
     public void processSettlements() {
-        transactionRepository.getSettlementEligibleTransactions(appConfiguration.getSettlementPollSize())
-                .peekLeft(failure -> log.error("Failed to get settlement eligible transactions. Reason: {}", failure.message(), failure.cause()))
-                .peek(transactions -> transactions.forEach(this::process));
+        var pollSize = appConfiguration.getSettlementPollSize();
+        for (int batch = 0; batch < appConfiguration.getSettlementMaxBatchesPerRun(); batch++) {
+            var transactions = claim(pollSize)
+                    .peekLeft(failure -> log.error("Failed to claim settlement eligible transactions. Reason: {}", failure.message(), failure.cause()))
+                    .getOrElse(List.of());
+            if (transactions.isEmpty()) {
+                return;
+            }
+
+            batchTimer.record(() -> processBatch(transactions));
+            batchSize.record(transactions.size());
+
+            // a partial batch means the backlog is drained. The next tick picks up what becomes eligible
+            if (transactions.size() < pollSize) {
+                return;
+            }
+        }
+    }
+
+    private Either<Failure, List<Transaction>> claim(int pollSize) {
+        if (appConfiguration.isExpirySweeper()) {
+            // failed and expired transactions are left to the expiry sweeper
+            return transactionRepository.claimSettlementEligibleTransactions(appConfiguration.getNodeId(), appConfiguration.getSettlementClaimLease(), appConfiguration.getMaxSettlementAttempts(), pollSize,
+                    EnumSet.of(Transaction.Status.INITIATED, Transaction.Status.PROCESSING, Transaction.Status.COMPLETED, Transaction.Status.EXPIRED));
+        }
+        return transactionRepository.claimSettlementEligibleTransactions(appConfiguration.getNodeId(), appConfiguration.getSettlementClaimLease(), appConfiguration.getMaxSettlementAttempts(), pollSize);
+    }
+
+    // package-private so specs can settle a batch of their own transactions
+    void processBatch(List<Transaction> transactions) {
+        var partitions = transactions.stream()
+                .collect(Collectors.groupingBy(this::partitionOf));
+        log.debug("Settling {} transactions in {} partitions", transactions.size(), partitions.size());
+
+        CompletableFuture.allOf(partitions.values().stream()
+                        .map(partition -> CompletableFuture.runAsync(() -> processPartition(partition), workers))
+                        .toArray(CompletableFuture[]::new))
+                .join();
+    }
+
+    /**
+     * In bulk mode the completed transactions of a currency are settled together once the rest of the partition is
+     * done, on the same worker, so a currency is still settled by one worker at a time
+     */
+    private void processPartition(List<Transaction> partition) {
+        if (!appConfiguration.isSettlementBulk()) {
+            partition.forEach(this::processSafely);
+            return;
+        }
+
+        var completed = new LinkedHashMap<String, List<Transaction>>();
+        for (var transaction : partition) {
+            if (transaction.getStatus() == Transaction.Status.COMPLETED) {
+                completed.computeIfAbsent(transaction.getToCurrency(), __ -> new ArrayList<>()).add(transaction);
+            } else {
+                processSafely(transaction);
+            }
+        }
+        completed.values().forEach(this::settleSafely);
+    }
+
+    private Object partitionOf(Transaction transaction) {
+        return switch (appConfiguration.getSettlementPartitioning()) {
+            case CURRENCY -> transaction.getToCurrency();
+            case ID -> Math.floorMod(transaction.getId(), appConfiguration.getSettlementWorkers());
+        };
+    }
+
+    // one bad transaction must not stop the rest of its partition
+    private void processSafely(Transaction transaction) {
+        recordPickUp(transaction);
+        try {
+            process(transaction);
+        } catch (Exception e) {
+            log.error("Failed to process settlement for transaction: {}", transaction.getInternalTransferId(), e);
+        }
+    }
+
+    private void settleSafely(List<Transaction> transactions) {
+        transactions.forEach(this::recordPickUp);
+        try {
+            settle(transactions);
+        } catch (Exception e) {
+            log.error("Failed to settle {} transactions in {}", transactions.size(), transactions.getFirst().getToCurrency(), e);
+        }
+    }
+
+    private void recordPickUp(Transaction transaction) {
+        var currency = transaction.getToCurrency();
+        pickUpCounters.computeIfAbsent(currency, __ -> Counter.builder("settlement.transactions")
+                        .description("Transactions picked up by the settlement processor")
+                        .tag("currency", currency)
+                        .register(meterRegistry))
+                .increment();
+        if (transaction.getScheduledSettlementTime() != null) {
+            lagTimers.computeIfAbsent(currency, __ -> Timer.builder("settlement.lag")
+                            .description("Time between a transaction becoming due for settlement and being picked up")
+                            .tag("currency", currency)
+                            .register(meterRegistry))
+                    .record(Duration.between(transaction.getScheduledSettlementTime(), OffsetDateTime.now()));
+        }
     }
 
     private void process(Transaction transaction) {
@@ -76,23 +222,29 @@ public class SettlementProcessor {
                 .peek(__ -> log.info("Funds have been returned to pool. Transaction: {}", transaction.getInternalTransferId()))
                 .flatMap(__ -> transactionRepository.markSettlementStatus(transaction.getId(), message, Transaction.SettlementStatus.SETTLEMENT_STOPPED, newTransaction, oldTransactionStatus))
                 .peekLeft(failure -> log.error("Failed to return locked funds. Reason: {}", failure.message(), failure.cause()))
-                .peekLeft(failure -> handleFailureUnlockingFunds(transaction.getId(), failure));
+                .peekLeft(failure -> handleFailureUnlockingFunds(transaction, failure));
     }
 
-    private void handleFailureUnlockingFunds(Long transactionId, Failure failure) {
+    private void handleFailureUnlockingFunds(Transaction transaction, Failure failure) {
         if (failure.code().equals(FailureCode.NOT_FOUND.getCode())) {
             // weird we cannt unlock funds. We would have to investigate this further
             log.error("Failed to unlock funds. Funds not found. Reason: {}", failure.message());
-            transactionRepository.markSettlementStatus(transactionId, "weird but the lock id is not found", Transaction.SettlementStatus.REQUIRE_INTERVENTION, Transaction.Status.FUNDS_LOCKED)
+            transactionRepository.markSettlementStatus(transaction.getId(), "weird but the lock id is not found", Transaction.SettlementStatus.REQUIRE_INTERVENTION, Transaction.Status.FUNDS_LOCKED)
                     .peekLeft(failure1 -> log.error("Failed to mark transaction as failed. Reason: {}", failure1.message(), failure1.cause()));
         } else {
-            incrementSettlementCount(transactionId);
+            incrementSettlementCount(transaction, "Failed to return locked funds");
         }
     }
 
-    private void incrementSettlementCount(Long transactionId) {
-        transactionRepository.incrementSettlementRetryCount(transactionId)
-                .peekLeft(failure1 -> log.error("Failed to increment status retry count. Reason: {}", failure1.message(), failure1.cause()));
+    // the transaction is claimed again once its lease expires, until it fails its last attempt
+    private void incrementSettlementCount(Transaction transaction, String message) {
+        transactionRepository.incrementSettlementRetryCount(transaction.getId(), appConfiguration.getMaxSettlementAttempts(), message)
+                .peekLeft(failure1 -> log.error("Failed to increment status retry count. Reason: {}", failure1.message(), failure1.cause()))
+                .filter(counted -> counted.getSettlementStatus() == Transaction.SettlementStatus.REQUIRE_INTERVENTION)
+                .forEach(counted -> {
+                    log.error("Transaction failed its last settlement attempt and requires intervention. Transaction: {}", transaction.getInternalTransferId());
+                    exhausted.increment();
+                });
     }
 
     private void settle(Transaction transaction) {
@@ -103,6 +255,9 @@ public class SettlementProcessor {
         if (lockEntry.isLeft()) {
             // if there is an error getting the unlock entry, we can't proceed. Hopefully another seperate process will pick this up
             log.error("Failed to get unlock entry for transaction: {}. Reason: {}", transaction, lockEntry.getLeft().message(), lockEntry.getLeft().cause());
+            if (lockEntry.getLeft().code().equals(FailureCode.NOT_FOUND.getCode())) {
+                incrementSettlementCount(transaction, "Lock not found");
+            }
             return;
         }
 
@@ -118,8 +273,66 @@ public class SettlementProcessor {
 
         // at settlement time, we want to transfer the
         liquidityService.debitLockedBalance(transaction.getLockedId())
+                .peekLeft(failure -> {
+                    if (failure.code().equals(FailureCode.INSUFFICIENT_FUNDS.getCode())) {
+                        incrementSettlementCount(transaction, "Locked balance does not cover the transaction");
+                    }
+                })
                 .flatMap(__ -> transactionRepository.markSuccessfulSettlementStatus(transaction.getId(), Transaction.Status.COMPLETED))
                 .peekLeft(failure -> log.error("Failed to transfer unlocked funds. Reason: {}", failure.message(), failure.cause()))
                 .peek(failure -> log.info("Transaction has been settled. Transaction: {}", transaction));
     }
+
+    /**
+     * Settle completed transactions with the same checks as {@link #settle(Transaction)}, a few statements for all of them
+     */
+    private void settle(List<Transaction> transactions) {
+        var lockEntries = ledgerRepository.getByLockIds(transactions.stream()
+                        .map(Transaction::getLockedId)
+                        .filter(Objects::nonNull)
+                        .toList())
+                .peekLeft(failure -> log.error("Failed to get ledger entries of {} locks. Reason: {}", transactions.size(), failure.message(), failure.cause()));
+        if (lockEntries.isLeft()) {
+            // nothing is settled, the transactions are claimed again once the claim expires
+            return;
+        }
+
+        var matching = new ArrayList<Transaction>();
+        for (var transaction : transactions) {
+            var entry = transaction.getLockedId() == null ? null : lockEntries.get().get(transaction.getLockedId());
+            if (entry == null) {
+                log.error("Failed to get unlock entry for transaction: {}. Lock id {} not found", transaction, transaction.getLockedId());
+                incrementSettlementCount(transaction, "Lock not found");
+                continue;
+            }
+            //we want to compare the amount that was unlocked to the amount that was expected to be unlocked just to be sure
+            if (entry.amount().compareTo(transaction.getToAmount()) != 0 || !entry.currencyCode().equals(transaction.getToCurrency())) {
+                log.error("Amount unlocked does not match expected amount. Transaction: {}. Ledger Entry: {}", transaction, entry);
+                transactionRepository.markSettlementStatus(transaction.getId(), "Amount unlocked does not match expected amount", Transaction.SettlementStatus.REQUIRE_INTERVENTION, transaction.getStatus())
+                        .peekLeft(failure -> log.error("Failed to mark transaction as failed. Reason: {}", failure.message(), failure.cause()));
+                continue;
+            }
+            matching.add(transaction);
+        }
+        if (matching.isEmpty()) {
+            return;
+        }
+
+        liquidityService.debitLockedBalances(matching.stream().map(Transaction::getLockedId).toList())
+                .flatMap(debited -> {
+                    var settled = matching.stream()
+                            .filter(transaction -> debited.contains(transaction.getLockedId()))
+                            .map(Transaction::getId)
+                            .toList();
+                    if (settled.size() < matching.size()) {
+                        log.error("Locked balance does not cover {} of {} transactions", matching.size() - settled.size(), matching.size());
+                        matching.stream()
+                                .filter(transaction -> !debited.contains(transaction.getLockedId()))
+                                .forEach(transaction -> incrementSettlementCount(transaction, "Locked balance does not cover the transaction"));
+                    }
+                    return settled.isEmpty() ? Either.<Failure, Integer>right(0) : transactionRepository.markSuccessfulSettlementStatuses(settled, Transaction.Status.COMPLETED);
+                })
+                .peekLeft(failure -> log.error("Failed to transfer unlocked funds. Reason: {}", failure.message(), failure.cause()))
+                .peek(settled -> log.info("{} transactions have been settled", settled));
+    }
 }
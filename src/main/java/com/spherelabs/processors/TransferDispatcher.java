@@ -0,0 +1,172 @@
+package com.spherelabs.processors;
+
+import com.spherelabs.config.AppConfiguration;
+import com.spherelabs.error.Failure;
+import com.spherelabs.error.FailureCode;
+import com.spherelabs.metrics.TransferMetrics;
+import com.spherelabs.model.Transaction;
+import com.spherelabs.model.TransferOutboxEntry;
+import com.spherelabs.providers.TransferProvider;
+import com.spherelabs.repository.TransactionRepository;
+import com.spherelabs.repository.TransferOutboxRepository;
+import io.vavr.control.Either;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Drains the transfer outbox to the transfer provider.
+ * <p>
+ *     Due entries are claimed in batches and submitted concurrently, with at most
+ *     app.transfer-dispatch-concurrency provider calls in flight. The next batch is only claimed once the
+ *     current one is done, so a slow provider backs the work up in the outbox instead of in memory.
+ *     Failed submissions are retried with exponential backoff. Once attempts run out the transaction is left
+ *     PROCESSING with the failure reason, the same outcome as a failed synchronous submission.
+ *     An entry whose transaction no longer exists is removed. The outbox is only polled while app.async-transfer
+ *     is set, so it should be empty before the flag is turned off.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class TransferDispatcher {
+    private final TransferOutboxRepository transferOutboxRepository;
+    private final TransactionRepository transactionRepository;
+    private final TransferProvider transferProvider;
+    private final TransferMetrics transferMetrics;
+    private final AppConfiguration appConfiguration;
+
+    @Value("${app.transfer-dispatch-batch-size:100}")
+    private int batchSize;
+
+    @Value("${app.transfer-dispatch-concurrency:32}")
+    private int concurrency;
+
+    @Value("${app.transfer-dispatch-max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${app.transfer-dispatch-retry-backoff:1s}")
+    private Duration retryBackoff;
+
+    @Value("${app.transfer-dispatch-lease:1m}")
+    private Duration lease;
+
+    private ExecutorService providerCalls;
+    private Semaphore inFlight;
+
+    @PostConstruct
+    public void init() {
+        providerCalls = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("transfer-dispatch-", 0).factory());
+        inFlight = new Semaphore(concurrency);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        providerCalls.shutdown();
+    }
+
+    @Scheduled(fixedDelayString = "${app.transfer-dispatch-poll-milliseconds:200}")
+    public void dispatch() {
+        if (!appConfiguration.isAsyncTransfer()) {
+            return;
+        }
+
+        // full batches mean there is a backlog, keep draining
+        while (dispatchBatch() == batchSize) {
+            log.debug("Transfer outbox has a backlog. Dispatching the next batch");
+        }
+    }
+
+    private int dispatchBatch() {
+        var entries = transferOutboxRepository.claimDue(batchSize, lease)
+                .peekLeft(failure -> log.error("Failed to claim due transfers. Reason: {}", failure.message(), failure.cause()))
+                .getOrElse(List.of());
+        if (entries.isEmpty()) {
+            return 0;
+        }
+
+        var transactions = transactionRepository.getTransactions(entries.stream().map(TransferOutboxEntry::transactionId).toList())
+                .peekLeft(failure -> log.error("Failed to fetch queued transactions. Reason: {}", failure.message(), failure.cause()));
+        if (transactions.isLeft()) {
+            // the claim lease expires and the entries are picked up again
+            return 0;
+        }
+        var transactionsById = transactions.get().stream()
+                .collect(Collectors.toMap(Transaction::getId, Function.identity()));
+
+        var submissions = entries.stream()
+                .map(entry -> CompletableFuture.supplyAsync(() -> submit(transactionsById.get(entry.transactionId())), providerCalls))
+                .toList();
+        CompletableFuture.allOf(submissions.toArray(CompletableFuture[]::new)).join();
+
+        var completed = new ArrayList<Transaction>();
+        var retries = new ArrayList<TransferOutboxEntry>();
+        var missing = new ArrayList<TransferOutboxEntry>();
+        for (int i = 0; i < entries.size(); i++) {
+            var entry = entries.get(i);
+            var transaction = transactionsById.get(entry.transactionId());
+            var response = submissions.get(i).join();
+            if (transaction == null) {
+                log.warn("Transaction {} of transfer outbox entry {} does not exist. Removing the entry", entry.transactionId(), entry.id());
+                missing.add(entry);
+            } else if (response.isRight()) {
+                transaction.setStatus(response.get());
+                completed.add(transaction);
+            } else if (entry.attempts() + 1 >= maxAttempts) {
+                transaction.setStatus(Transaction.Status.PROCESSING);
+                transaction.setFailureReason("Failed to initiate transfer. %s".formatted(response.getLeft().code()));
+                completed.add(transaction);
+            } else {
+                retries.add(entry.retryAt(OffsetDateTime.now().plus(backoff(entry.attempts())), response.getLeft().message()));
+            }
+        }
+
+        transferOutboxRepository.complete(completed)
+                .peek(__ -> log.debug("Recorded provider result for {} transactions", completed.size()))
+                .peekLeft(failure -> log.error("Failed to record provider results. Reason: {}", failure.message(), failure.cause()));
+        transferOutboxRepository.reschedule(retries)
+                .peekLeft(failure -> log.error("Failed to reschedule {} transfers. Reason: {}", retries.size(), failure.message(), failure.cause()));
+        transferOutboxRepository.remove(missing)
+                .peekLeft(failure -> log.error("Failed to remove {} transfers without a transaction. Reason: {}", missing.size(), failure.message(), failure.cause()));
+
+        return entries.size();
+    }
+
+    private Either<Failure, Transaction.Status> submit(Transaction transaction) {
+        if (transaction == null) {
+            return Either.left(Failure.from(FailureCode.NOT_FOUND));
+        }
+
+        var pair = transaction.getFromCurrency() + "/" + transaction.getToCurrency();
+        inFlight.acquireUninterruptibly();
+        try {
+            return transferMetrics.time(TransferMetrics.STAGE_PROVIDER_CALL, pair, () -> transferProvider.transfer(transaction))
+                    .peekLeft(failure -> transferMetrics.failure(TransferMetrics.STAGE_PROVIDER_CALL, pair, failure))
+                    .peekLeft(failure -> log.error("Failed to initiate transfer {}. Reason: {}", transaction.getInternalTransferId(), failure.message(), failure.cause()));
+        } catch (Exception e) {
+            log.error("Failed to initiate transfer {}", transaction.getInternalTransferId(), e);
+            return Either.left(Failure.from(FailureCode.UNKNOWN_ERROR));
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    private Duration backoff(int attempts) {
+        return retryBackoff.multipliedBy(1L << Math.min(attempts, 10));
+    }
+}
@@ -0,0 +1,51 @@
+package com.spherelabs.repository;
+
+import com.spherelabs.error.Failure;
+import io.vavr.control.Either;
+
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.List;
+
+/**
+ * Partitions of the raw exchange rate ticks and the bars they are rolled up into.
+ * Partitions hold the ticks of one day, UTC
+ */
+public interface ExchangeRateHistoryRepository {
+
+    /**
+     * Create the partition of a day. Ticks of that day that were stored in the default partition are moved into it
+     * @param day The day
+     * @return Either a Failure or whether the partition was created, false when it existed already
+     */
+    Either<Failure, Boolean> createPartition(LocalDate day);
+
+    /**
+     * Get the days that have a partition
+     * @return Either a Failure or the days, oldest first
+     */
+    Either<Failure, List<LocalDate>> getPartitionDays();
+
+    /**
+     * Drop the partition of a day
+     * @param day The day
+     * @param rollUp Whether the ticks are rolled up into minute and hour bars before the partition is dropped
+     * @return Either a Failure or true once the partition was dropped
+     */
+    Either<Failure, Boolean> dropPartition(LocalDate day, boolean rollUp);
+
+    /**
+     * Delete the ticks older than a point in time that are held by the default partition
+     * @param before Ticks effective before this are deleted
+     * @param rollUp Whether the ticks are rolled up into minute and hour bars before they are deleted
+     * @return Either a Failure or the number of ticks deleted
+     */
+    Either<Failure, Integer> deleteUnpartitionedTicks(OffsetDateTime before, boolean rollUp);
+
+    /**
+     * Delete minute bars, hour bars are kept
+     * @param before Bars starting before this are deleted
+     * @return Either a Failure or the number of bars deleted
+     */
+    Either<Failure, Integer> deleteMinuteBars(OffsetDateTime before);
+}
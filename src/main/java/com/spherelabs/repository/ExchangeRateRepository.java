@@ -7,6 +7,8 @@ import io.vavr.control.Either;
 
 import java.math.BigDecimal;
 import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Map;
 
 public interface ExchangeRateRepository {
     /**
@@ -17,6 +19,50 @@ public interface ExchangeRateRepository {
      */
     Either<Failure, ExchangeRate> getLatestRate(String currencyPair);
 
+    /**
+     * Get the latest effective exchange rate of every pair, together with the next rate
+     * of every pair that is scheduled to become effective in the future
+     *
+     * @return Either a Failure in case of an error or the exchange rates
+     */
+    Either<Failure, List<ExchangeRate>> getLatestRates();
+
+    /**
+     * Get the exchange rate that was effective at an instant. Once the ticks of that day are rolled up
+     * the rate is taken from the bars, it is the last rate of the latest complete minute or hour
+     *
+     * @param currencyPair  pair of currencies to exchange eg USD/EUR
+     * @param at            the instant
+     * @return Either a Failure in case of an error or the exchange rate
+     */
+    Either<Failure, ExchangeRate> getRateAt(String currencyPair, OffsetDateTime at);
+
+    /**
+     * Get the exchange rates of a pair that became effective between two instants, both included
+     *
+     * @param currencyPair  pair of currencies to exchange eg USD/EUR
+     * @param from          first instant
+     * @param to            last instant
+     * @param limit         most rates returned, oldest first
+     * @return Either a Failure in case of an error or the exchange rates
+     */
+    Either<Failure, List<ExchangeRate>> getRates(String currencyPair, OffsetDateTime from, OffsetDateTime to, int limit);
+
+    /**
+     * Get the exchange rates of some pairs that became effective after an instant of each pair, including rates sent ahead of time
+     *
+     * @param after the instant of each pair of currencies to exchange eg USD/EUR
+     * @return Either a Failure in case of an error or the exchange rates
+     */
+    Either<Failure, List<ExchangeRate>> getRatesSince(Map<String, OffsetDateTime> after);
+
+    /**
+     * Get the currency pairs that have an effective rate
+     *
+     * @return Either a Failure in case of an error or the currency pairs
+     */
+    Either<Failure, List<String>> getCurrencyPairs();
+
     /**
      * Add a new exchange rate
      *
@@ -26,4 +72,19 @@ public interface ExchangeRateRepository {
      * @return Either a Failure in case of an error or the exchange rate added
      */
     Either<Failure, ExchangeRate> addRate(String currencyPair, BigDecimal rate, OffsetDateTime timestamp);
+
+    /**
+     * Add exchange rates in one statement. Rates already stored for the same pair and timestamp are skipped
+     *
+     * @param exchangeRates rates to add
+     * @return Either a Failure in case of an error or the exchange rates that were added
+     */
+    Either<Failure, List<ExchangeRate>> addRates(List<com.spherelabs.model.ExchangeRate> exchangeRates);
+
+    /**
+     * Make the rates that were sent ahead of time and have become effective the latest rate of their pair
+     *
+     * @return Either a Failure in case of an error or the number of rates promoted
+     */
+    Either<Failure, Integer> promoteScheduledRates();
 }
@@ -4,6 +4,10 @@ import com.spherelabs.error.Failure;
 import com.spherelabs.model.Ledger;
 import io.vavr.control.Either;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+
 public interface LedgerRepository {
     /**
      * Get the ledger record by transaction id and currency code
@@ -11,4 +15,18 @@ public interface LedgerRepository {
      * @return Either a Failure or the ledger record
      */
     Either<Failure, Ledger> getByLockId(Long lockId);
+
+    /**
+     * Get the lock entries of several locks in one query
+     * @param lockIds The lock ids
+     * @return Either a Failure or the lock entries keyed by lock id. Locks that do not exist are left out
+     */
+    Either<Failure, Map<Long, Ledger>> getByLockIds(Collection<Long> lockIds);
+
+    /**
+     * Find the lock entry written for a transaction
+     * @param transactionId The internal transfer id of the transaction
+     * @return Either a Failure or the lock entry. Empty if the funds of the transaction were never locked
+     */
+    Either<Failure, Optional<Ledger>> findLockByTransactionId(String transactionId);
 }
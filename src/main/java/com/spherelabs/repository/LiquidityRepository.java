@@ -3,8 +3,13 @@ package com.spherelabs.repository;
 import com.spherelabs.error.Failure;
 import com.spherelabs.model.LiquidityMovement;
 import io.vavr.control.Either;
+import org.jooq.DSLContext;
 
 import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public interface LiquidityRepository {
     /**
@@ -26,6 +31,28 @@ public interface LiquidityRepository {
            LiquidityMovement liquidityMovement
     );
 
+    /**
+     * Lock the balance inside the caller's database transaction.
+     * Throws INSUFFICIENT_FUNDS before anything is written, so the caller's transaction is still usable afterwards
+     *
+     * @param ctx The caller's transaction
+     * @param liquidityMovement Liquidity to lock
+     * @return the lock id
+     */
+    Long lockBalance(DSLContext ctx, LiquidityMovement liquidityMovement);
+
+    /**
+     * Lock the balance for several movements of the same currency in one transaction.
+     * The summed amount is taken from a single shard. Movements that do not fit in that shard are left out
+     * and are expected to be locked one at a time with {@link #lockBalance(LiquidityMovement)}
+     *
+     * @param currency The currency of every movement
+     * @param liquidityMovements Liquidity to lock, in arrival order, at most one per transaction id
+     * @return Either a Failure, DUPLICATE when a transaction id is repeated, or the lock id of every locked movement
+     * keyed by transaction id
+     */
+    Either<Failure, Map<String, Long>> lockBalances(String currency, List<LiquidityMovement> liquidityMovements);
+
     /**
      * Try to lock the balance of the account.
      *Could return a Failure if the balance is insufficient
@@ -44,4 +71,33 @@ public interface LiquidityRepository {
      * @return Either a Failure or the balance history. Which is the debit entry
      */
     Either<Failure, Long> debitLockedBalance(Long lockId);
+
+    /**
+     * Debit the locked balance for several locks in one transaction.
+     * Every shard is updated once with the sum of its locks. A lock is debited when the locked balance left in its
+     * shard covers its amount, the same rule as {@link #debitLockedBalance(Long)} applied in lock order.
+     * Locks debited already by an earlier attempt are not debited again
+     *
+     * @param lockIds The lock ids
+     * @return Either a Failure or the ids of the locks that are debited. Locks left out could not be covered
+     */
+    Either<Failure, Set<Long>> debitLockedBalances(Collection<Long> lockIds);
+
+    /**
+     * Return the locked balance of several locks to the available balance in one transaction.
+     * Same rules as {@link #debitLockedBalances(Collection)}, locks unlocked already are not unlocked again
+     *
+     * @param lockIds The lock ids
+     * @return Either a Failure or the ids of the locks that are unlocked. Locks left out could not be covered
+     */
+    Either<Failure, Set<Long>> unlockBalances(Collection<Long> lockIds);
+
+    /**
+     * Make sure every pool has the given number of shards and spread the available balance evenly across them.
+     * Shards above the given number are drained.
+     *
+     * @param shards The number of shards per currency
+     * @return Either a Failure or nothing
+     */
+    Either<Failure, Void> spreadShards(int shards);
 }
@@ -0,0 +1,41 @@
+package com.spherelabs.repository;
+
+import com.spherelabs.error.Failure;
+import com.spherelabs.model.RecoveryTask;
+import io.vavr.control.Either;
+
+import java.time.Duration;
+import java.util.List;
+
+public interface RecoveryTaskRepository {
+
+    /**
+     * Queue a transaction for recovery. A transaction is only queued once
+     * @param transactionId The transaction id
+     * @param delay How long to wait before the first attempt
+     * @return Either a Failure or nothing
+     */
+    Either<Failure, Void> enqueue(Long transactionId, Duration delay);
+
+    /**
+     * Claim tasks that are due. Claimed tasks are not due again until the lease expires
+     * @param limit How many tasks should be claimed
+     * @param lease How long the claim is held
+     * @return Either a Failure or the claimed tasks
+     */
+    Either<Failure, List<RecoveryTask>> claimDue(int limit, Duration lease);
+
+    /**
+     * Remove tasks that are done
+     * @param ids The task ids
+     * @return Either a Failure or nothing
+     */
+    Either<Failure, Void> complete(List<Long> ids);
+
+    /**
+     * Schedule tasks for another attempt
+     * @param tasks Tasks with their attempts, next attempt time and last error
+     * @return Either a Failure or nothing
+     */
+    Either<Failure, Void> reschedule(List<RecoveryTask> tasks);
+}
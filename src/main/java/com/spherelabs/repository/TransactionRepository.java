@@ -1,20 +1,34 @@
 package com.spherelabs.repository;
 
 import com.spherelabs.error.Failure;
+import com.spherelabs.model.CompletedTransaction;
 import com.spherelabs.model.Transaction;
 import io.vavr.control.Either;
 
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 
 
 public interface TransactionRepository {
 
     /**
-     * Insert a new transaction. Status is set to INITIATED
+     * Insert a new transaction unless one with the same internal transfer id already exists. Status is set to INITIATED
      * @param transaction The transaction to insert
-     * @return Either a Failure or the inserted transaction
+     * @return Either a Failure or the inserted transaction. Empty if the transaction already exists
      */
-    Either<Failure, Transaction> insertNew(Transaction transaction);
+    Either<Failure, Optional<Transaction>> insertIfAbsent(Transaction transaction);
+
+    /**
+     * Insert a new transaction and lock its funds in one database transaction.
+     * The transaction ends up FUNDS_LOCKED, or FAILED with settlement stopped when the pool cannot cover it
+     * @param transaction The transaction to insert
+     * @param enqueueTransfer Whether a locked transaction is also queued for the transfer provider in the same database transaction
+     * @return Either a Failure or the locked transaction. Empty if the transaction already exists
+     */
+    Either<Failure, Optional<Transaction>> insertAndLock(Transaction transaction, boolean enqueueTransfer);
 
     /**
      * Update the status of a transaction
@@ -26,6 +40,17 @@ public interface TransactionRepository {
      */
     Either<Failure, Transaction> updateLockStatus(Long transactionId, Long lockId, Transaction.Status status,  Transaction.Status oldStatus);
 
+    /**
+     * Update the status and the lock of a transaction and set the reason, in one statement
+     * @param transactionId The transaction id
+     * @param lockId The lock id
+     * @param message The reason for failure
+     * @param status The new status
+     * @param oldStatus The old status
+     * @return Either a Failure or the updated transaction
+     */
+    Either<Failure, Transaction> updateLockStatus(Long transactionId, Long lockId, String message, Transaction.Status status, Transaction.Status oldStatus);
+
     /**
      * Update the status of a transaction
      * @param transactionId The transaction id
@@ -43,6 +68,20 @@ public interface TransactionRepository {
 
     Either<Failure, Transaction> getTransaction(String transactionId, String fromCurrency, String toCurrency);
     Either<Failure, Transaction> getTransaction(String internalId);
+
+    /**
+     * Find a transaction by internal id
+     * @param internalId The internal transfer id
+     * @return Either a Failure or the transaction, empty when there is none
+     */
+    Either<Failure, Optional<Transaction>> findTransaction(String internalId);
+
+    /**
+     * Get transactions by id
+     * @param ids The transaction ids
+     * @return Either a Failure or the transactions found
+     */
+    Either<Failure, List<Transaction>> getTransactions(List<Long> ids);
     /**
      * Record a failed event. This is because they do not have constrained columns to be put in the transaction table
      * @param transaction The transaction
@@ -51,13 +90,25 @@ public interface TransactionRepository {
     Either<Failure, Transaction> recordFailedEvent(Transaction transaction);
 
     /**
-     * Get all transactions matching the query
-     * This is npt paginated since it is a simple prototype
-     * @param limit How many records should be fetched
-     * @return Either a Failure or the list of transactions
+     * Claim a batch of transactions that are due for settlement.
+     * Claimed transactions are skipped by every other node until the lease expires,
+     * so a transaction that is not settled by then is picked up again.
+     * Transactions waiting on the transfer provider or on recovery are not due yet
+     * @param nodeId The node claiming the transactions
+     * @param lease How long the claim is held
+     * @param maxAttempts Transactions with this many settlement attempts are not claimed anymore, 0 for no limit
+     * @param limit How many records should be claimed
+     * @return Either a Failure or the claimed transactions
      */
+    Either<Failure, List<Transaction>> claimSettlementEligibleTransactions(String nodeId, Duration lease, int maxAttempts, int limit);
 
-    Either<Failure, List<Transaction>> getSettlementEligibleTransactions(int limit);
+    /**
+     * Claim a batch of transactions in one of the given statuses that are due for settlement.
+     * Same claim as {@link #claimSettlementEligibleTransactions(String, Duration, int, int)}
+     * @param statuses Only transactions in these statuses are claimed
+     * @return Either a Failure or the claimed transactions
+     */
+    Either<Failure, List<Transaction>> claimSettlementEligibleTransactions(String nodeId, Duration lease, int maxAttempts, int limit, Collection<Transaction.Status> statuses);
 
     /**
      * Changes the status of a transaction and set the settlement status
@@ -88,9 +139,41 @@ public interface TransactionRepository {
     Either<Failure, Transaction> markSuccessfulSettlementStatus(Long id, Transaction.Status oldStatus);
 
     /**
-     * Increment the settlement retry count
+     * Changes the settlement status of several transactions to settled in one statement
+     * @param ids The transaction ids
+     * @param oldStatus The old status
+     * @return Either a Failure or the number of transactions marked as settled
+     */
+    Either<Failure, Integer> markSuccessfulSettlementStatuses(Collection<Long> ids, Transaction.Status oldStatus);
+
+    /**
+     * Changes the settlement status and status of several transactions in one statement
+     * @param ids The transaction ids
+     * @param message The settlement message
+     * @param newStatus The new settlement status
+     * @param transactionStatus The new status
+     * @param oldStatus The old status
+     * @return Either a Failure or the number of transactions changed
+     */
+    Either<Failure, Integer> markSettlementStatuses(Collection<Long> ids, String message, Transaction.SettlementStatus newStatus, Transaction.Status transactionStatus, Transaction.Status oldStatus);
+
+    /**
+     * Increment the settlement retry count. A transaction that reaches maxAttempts with it is marked
+     * REQUIRE_INTERVENTION, since it is not claimed for settlement anymore
      * @param transactionId The transaction id
-     * @return
+     * @param maxAttempts Settlement attempts a transaction gets, 0 for no limit
+     * @param message Settlement message of a transaction that is marked REQUIRE_INTERVENTION
+     * @return Either a Failure or the transaction with the attempt counted
+     */
+    Either<Failure, Transaction> incrementSettlementRetryCount(Long transactionId, int maxAttempts, String message);
+
+    /**
+     * Get the transactions that completed after a position, oldest first.
+     * A position is the completion time of a transaction and its id, which orders transactions that completed at the same time
+     * @param completedAt The completion time of the position
+     * @param id The id of the position
+     * @param limit How many transactions should be returned
+     * @return Either a Failure or the completed transactions
      */
-    Either<Failure, Void> incrementSettlementRetryCount(Long transactionId);
+    Either<Failure, List<CompletedTransaction>> getCompletedAfter(OffsetDateTime completedAt, long id, int limit);
 }
@@ -0,0 +1,58 @@
+package com.spherelabs.repository;
+
+import com.spherelabs.error.Failure;
+import com.spherelabs.model.Transaction;
+import com.spherelabs.model.TransferOutboxEntry;
+import io.vavr.control.Either;
+import org.jooq.DSLContext;
+
+import java.time.Duration;
+import java.util.List;
+
+public interface TransferOutboxRepository {
+
+    /**
+     * Queue a transaction for submission to the transfer provider
+     * @param transactionId The transaction id
+     * @return Either a Failure or the queued entry
+     */
+    Either<Failure, TransferOutboxEntry> enqueue(Long transactionId);
+
+    /**
+     * Queue a transaction inside the caller's database transaction
+     * @param ctx The caller's transaction
+     * @param transactionId The transaction id
+     * @return the queued entry
+     */
+    TransferOutboxEntry enqueue(DSLContext ctx, Long transactionId);
+
+    /**
+     * Claim entries that are due for submission. Claimed entries are not due again until the lease expires,
+     * so an entry is picked up again if the node that claimed it goes away
+     * @param limit How many entries should be claimed
+     * @param lease How long the claim is held
+     * @return Either a Failure or the claimed entries
+     */
+    Either<Failure, List<TransferOutboxEntry>> claimDue(int limit, Duration lease);
+
+    /**
+     * Record the provider result on every transaction and remove their entries, in one database transaction
+     * @param transactions Transactions with the status and failure reason to record
+     * @return Either a Failure or nothing
+     */
+    Either<Failure, Void> complete(List<Transaction> transactions);
+
+    /**
+     * Schedule entries for another attempt
+     * @param entries Entries with their attempts, next attempt time and last error
+     * @return Either a Failure or nothing
+     */
+    Either<Failure, Void> reschedule(List<TransferOutboxEntry> entries);
+
+    /**
+     * Remove entries without recording anything on their transactions
+     * @param entries The entries to remove
+     * @return Either a Failure or nothing
+     */
+    Either<Failure, Void> remove(List<TransferOutboxEntry> entries);
+}
@@ -0,0 +1,126 @@
+package com.spherelabs.repository.impl;
+
+import com.assetiq.jooq.Routines;
+import com.spherelabs.error.Failure;
+import com.spherelabs.repository.ExchangeRateHistoryRepository;
+import com.spherelabs.utils.Eithers;
+import io.vavr.control.Either;
+import lombok.RequiredArgsConstructor;
+import org.jooq.Condition;
+import org.jooq.DSLContext;
+import org.jooq.impl.DSL;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+import static com.assetiq.jooq.Tables.EXCHANGE_RATE;
+import static com.assetiq.jooq.Tables.EXCHANGE_RATE_BAR;
+
+@Repository
+@RequiredArgsConstructor
+public class ExchangeRateHistoryRepositoryImpl implements ExchangeRateHistoryRepository {
+    // partitions are named exchange_rate_pYYYYMMDD by create_exchange_rate_partition
+    private static final String PARTITION_PREFIX = EXCHANGE_RATE.getName() + "_p";
+    // also the date_trunc field of the bar
+    static final String MINUTE = "minute";
+    static final String HOUR = "hour";
+
+    private final DSLContext ctx;
+
+    @Override
+    public Either<Failure, Boolean> createPartition(LocalDate day) {
+        return Eithers.of(() -> Routines.createExchangeRatePartition(ctx.configuration(), day));
+    }
+
+    @Override
+    public Either<Failure, List<LocalDate>> getPartitionDays() {
+        return Eithers.of(() -> ctx.resultQuery("""
+                        SELECT c.relname FROM pg_inherits i
+                        JOIN pg_class c ON c.oid = i.inhrelid
+                        WHERE i.inhparent = {0}::regclass""", DSL.inline(EXCHANGE_RATE.getName()))
+                .fetch(0, String.class)
+                .stream()
+                .filter(name -> name.startsWith(PARTITION_PREFIX))
+                .map(name -> LocalDate.parse(name.substring(PARTITION_PREFIX.length()), DateTimeFormatter.BASIC_ISO_DATE))
+                .sorted()
+                .toList());
+    }
+
+    @Override
+    public Either<Failure, Boolean> dropPartition(LocalDate day, boolean rollUp) {
+        var from = day.atStartOfDay().atOffset(ZoneOffset.UTC);
+        var ticks = EXCHANGE_RATE.EFFECTIVE_DATE.ge(from).and(EXCHANGE_RATE.EFFECTIVE_DATE.lt(from.plusDays(1)));
+        return Eithers.of(() -> ctx.transactionResult(config -> {
+            if (rollUp) {
+                rollUp(DSL.using(config), ticks);
+            }
+            if (!Routines.dropExchangeRatePartition(config, day)) {
+                // the ticks of the day are in the default partition, rolling them up here would count them twice
+                throw new IllegalStateException("No partition for %s".formatted(day));
+            }
+            return true;
+        }));
+    }
+
+    @Override
+    public Either<Failure, Integer> deleteUnpartitionedTicks(OffsetDateTime before, boolean rollUp) {
+        var ticks = EXCHANGE_RATE.EFFECTIVE_DATE.lt(before);
+        return Eithers.of(() -> ctx.transactionResult(config -> {
+            if (rollUp) {
+                rollUp(DSL.using(config), ticks);
+            }
+            return DSL.using(config).deleteFrom(EXCHANGE_RATE)
+                    .where(ticks)
+                    .execute();
+        }));
+    }
+
+    @Override
+    public Either<Failure, Integer> deleteMinuteBars(OffsetDateTime before) {
+        return Eithers.of(() -> ctx.deleteFrom(EXCHANGE_RATE_BAR)
+                .where(EXCHANGE_RATE_BAR.RESOLUTION.eq(MINUTE))
+                .and(EXCHANGE_RATE_BAR.BUCKET_START.lt(before))
+                .execute());
+    }
+
+    private static void rollUp(DSLContext ctx, Condition ticks) {
+        rollUp(ctx, MINUTE, ticks);
+        rollUp(ctx, HOUR, ticks);
+    }
+
+    /**
+     * Adds the ticks to the bars of their pair. Ticks of a bar rolled up earlier are merged into it
+     */
+    private static void rollUp(DSLContext ctx, String resolution, Condition ticks) {
+        var bar = EXCHANGE_RATE_BAR;
+        var bucket = DSL.field("date_trunc({0}, {1}, 'UTC')", OffsetDateTime.class, DSL.inline(resolution), EXCHANGE_RATE.EFFECTIVE_DATE);
+        ctx.insertInto(bar, bar.CURRENCY_PAIR, bar.RESOLUTION, bar.BUCKET_START, bar.OPEN, bar.HIGH, bar.LOW, bar.CLOSE, bar.OPENED_AT, bar.CLOSED_AT, bar.TICK_COUNT)
+                .select(DSL.select(EXCHANGE_RATE.CURRENCY_PAIR,
+                                DSL.inline(resolution),
+                                bucket,
+                                DSL.arrayGet(DSL.arrayAgg(EXCHANGE_RATE.RATE).orderBy(EXCHANGE_RATE.EFFECTIVE_DATE), 1),
+                                DSL.max(EXCHANGE_RATE.RATE),
+                                DSL.min(EXCHANGE_RATE.RATE),
+                                DSL.arrayGet(DSL.arrayAgg(EXCHANGE_RATE.RATE).orderBy(EXCHANGE_RATE.EFFECTIVE_DATE.desc()), 1),
+                                DSL.min(EXCHANGE_RATE.EFFECTIVE_DATE),
+                                DSL.max(EXCHANGE_RATE.EFFECTIVE_DATE),
+                                DSL.count())
+                        .from(EXCHANGE_RATE)
+                        .where(ticks)
+                        .groupBy(EXCHANGE_RATE.CURRENCY_PAIR, bucket))
+                .onConflict(bar.CURRENCY_PAIR, bar.RESOLUTION, bar.BUCKET_START)
+                .doUpdate()
+                .set(bar.OPEN, DSL.when(DSL.excluded(bar.OPENED_AT).lt(bar.OPENED_AT), DSL.excluded(bar.OPEN)).otherwise(bar.OPEN))
+                .set(bar.HIGH, DSL.greatest(bar.HIGH, DSL.excluded(bar.HIGH)))
+                .set(bar.LOW, DSL.least(bar.LOW, DSL.excluded(bar.LOW)))
+                .set(bar.CLOSE, DSL.when(DSL.excluded(bar.CLOSED_AT).gt(bar.CLOSED_AT), DSL.excluded(bar.CLOSE)).otherwise(bar.CLOSE))
+                .set(bar.OPENED_AT, DSL.least(bar.OPENED_AT, DSL.excluded(bar.OPENED_AT)))
+                .set(bar.CLOSED_AT, DSL.greatest(bar.CLOSED_AT, DSL.excluded(bar.CLOSED_AT)))
+                .set(bar.TICK_COUNT, bar.TICK_COUNT.plus(DSL.excluded(bar.TICK_COUNT)))
+                .execute();
+    }
+}
@@ -8,13 +8,30 @@ import io.vavr.control.Either;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.jooq.DSLContext;
+import org.jooq.impl.DSL;
 import org.springframework.stereotype.Repository;
 
 import java.math.BigDecimal;
 import java.time.OffsetDateTime;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static com.assetiq.jooq.Tables.EXCHANGE_RATE;
+import static com.assetiq.jooq.Tables.EXCHANGE_RATE_BAR;
+import static com.assetiq.jooq.Tables.LATEST_RATE;
 
+/**
+ * Raw rates live in exchange_rate, which is partitioned by effective date. The latest effective rate of every pair
+ * is also kept in latest_rate, which is written together with the rates and does not grow with history.
+ * Rates sent ahead of time are only moved into latest_rate once they become effective, see {@link #promoteScheduledRates()}
+ */
 @Repository
 @Slf4j
 @RequiredArgsConstructor
@@ -22,25 +39,198 @@ public class ExchangeRateRepositoryImpl implements ExchangeRateRepository {
     private final DSLContext ctx;
     @Override
     public Either<Failure, ExchangeRate> getLatestRate(String currencyPair) {
-         return Eithers.of(() -> ctx.select()
-                .from(EXCHANGE_RATE)
+        var now = OffsetDateTime.now();
+        return Eithers.of(() -> {
+            var latest = ctx.selectFrom(LATEST_RATE)
+                    .where(LATEST_RATE.CURRENCY_PAIR.eq(currencyPair))
+                    .fetchOptionalInto(ExchangeRate.class);
+
+            // a rate sent ahead of time may have become effective since latest_rate was written
+            return ctx.selectFrom(EXCHANGE_RATE)
+                    .where(EXCHANGE_RATE.CURRENCY_PAIR.eq(currencyPair))
+                    .and(EXCHANGE_RATE.EFFECTIVE_DATE.le(now))
+                    .and(latest.map(rate -> EXCHANGE_RATE.EFFECTIVE_DATE.gt(rate.getEffectiveDate())).orElse(DSL.noCondition()))
+                    .orderBy(EXCHANGE_RATE.EFFECTIVE_DATE.desc())
+                    .limit(1)
+                    .fetchOptionalInto(ExchangeRate.class)
+                    .or(() -> latest)
+                    .get();
+        });
+    }
+
+    @Override
+    public Either<Failure, List<ExchangeRate>> getLatestRates() {
+        var now = OffsetDateTime.now();
+        return Eithers.of(() -> {
+            var latest = ctx.selectFrom(LATEST_RATE)
+                    .fetchInto(ExchangeRate.class);
+
+            // the newest rate sent ahead of time of every pair that has become effective but was not promoted yet
+            var due = ctx.select(EXCHANGE_RATE.fields())
+                    .distinctOn(EXCHANGE_RATE.CURRENCY_PAIR)
+                    .from(EXCHANGE_RATE)
+                    .where(EXCHANGE_RATE.SCHEDULED)
+                    .and(EXCHANGE_RATE.EFFECTIVE_DATE.le(now))
+                    .orderBy(EXCHANGE_RATE.CURRENCY_PAIR, EXCHANGE_RATE.EFFECTIVE_DATE.desc())
+                    .fetchInto(ExchangeRate.class);
+
+            // the next rate sent ahead of time of every pair. It becomes the latest once its effective date is
+            // reached, the one after it is loaded by the read after that
+            var scheduled = ctx.select(EXCHANGE_RATE.fields())
+                    .distinctOn(EXCHANGE_RATE.CURRENCY_PAIR)
+                    .from(EXCHANGE_RATE)
+                    .where(EXCHANGE_RATE.EFFECTIVE_DATE.gt(now))
+                    .orderBy(EXCHANGE_RATE.CURRENCY_PAIR, EXCHANGE_RATE.EFFECTIVE_DATE)
+                    .fetchInto(ExchangeRate.class);
+
+            return Stream.concat(newestPerPair(Stream.concat(latest.stream(), due.stream())).stream(), scheduled.stream()).toList();
+        });
+    }
+
+    @Override
+    public Either<Failure, ExchangeRate> getRateAt(String currencyPair, OffsetDateTime at) {
+        return Eithers.of(() -> ctx.selectFrom(EXCHANGE_RATE)
                 .where(EXCHANGE_RATE.CURRENCY_PAIR.eq(currencyPair))
-                 .and(EXCHANGE_RATE.EFFECTIVE_DATE.le(OffsetDateTime.now()))
+                .and(EXCHANGE_RATE.EFFECTIVE_DATE.le(at))
                 .orderBy(EXCHANGE_RATE.EFFECTIVE_DATE.desc())
                 .limit(1)
                 .fetchOptionalInto(ExchangeRate.class)
-                 .get());
+                // the tick was rolled up
+                .or(() -> getBarCloseAt(currencyPair, ExchangeRateHistoryRepositoryImpl.MINUTE, at))
+                .or(() -> getBarCloseAt(currencyPair, ExchangeRateHistoryRepositoryImpl.HOUR, at))
+                .get());
+    }
+
+    private Optional<ExchangeRate> getBarCloseAt(String currencyPair, String resolution, OffsetDateTime at) {
+        return ctx.select(EXCHANGE_RATE_BAR.CURRENCY_PAIR, EXCHANGE_RATE_BAR.CLOSE, EXCHANGE_RATE_BAR.CLOSED_AT)
+                .from(EXCHANGE_RATE_BAR)
+                .where(EXCHANGE_RATE_BAR.CURRENCY_PAIR.eq(currencyPair))
+                .and(EXCHANGE_RATE_BAR.RESOLUTION.eq(resolution))
+                .and(EXCHANGE_RATE_BAR.BUCKET_START.le(at))
+                // the last tick of the bar is the rate effective at the instant
+                .and(EXCHANGE_RATE_BAR.CLOSED_AT.le(at))
+                .orderBy(EXCHANGE_RATE_BAR.BUCKET_START.desc())
+                .limit(1)
+                .fetchOptional(bar -> new ExchangeRate(bar.value1(), bar.value2(), bar.value3(), null, false));
+    }
+
+    @Override
+    public Either<Failure, List<ExchangeRate>> getRates(String currencyPair, OffsetDateTime from, OffsetDateTime to, int limit) {
+        return Eithers.of(() -> ctx.selectFrom(EXCHANGE_RATE)
+                .where(EXCHANGE_RATE.CURRENCY_PAIR.eq(currencyPair))
+                .and(EXCHANGE_RATE.EFFECTIVE_DATE.between(from, to))
+                .orderBy(EXCHANGE_RATE.EFFECTIVE_DATE)
+                .limit(limit)
+                .fetchInto(ExchangeRate.class));
+    }
 
+    @Override
+    public Either<Failure, List<ExchangeRate>> getRatesSince(Map<String, OffsetDateTime> after) {
+        if (after.isEmpty()) {
+            return Either.right(List.of());
+        }
+
+        // one condition per pair so each pair is a range scan of the primary key
+        var since = after.entrySet().stream()
+                .map(pair -> EXCHANGE_RATE.CURRENCY_PAIR.eq(pair.getKey()).and(EXCHANGE_RATE.EFFECTIVE_DATE.gt(pair.getValue())))
+                .toList();
+        return Eithers.of(() -> ctx.selectFrom(EXCHANGE_RATE)
+                .where(DSL.or(since))
+                .fetchInto(ExchangeRate.class));
+    }
+
+    @Override
+    public Either<Failure, List<String>> getCurrencyPairs() {
+        return Eithers.of(() -> ctx.select(LATEST_RATE.CURRENCY_PAIR)
+                .from(LATEST_RATE)
+                .fetch(LATEST_RATE.CURRENCY_PAIR));
     }
 
     @Override
     public Either<Failure, ExchangeRate> addRate(String currencyPair, BigDecimal rate, OffsetDateTime timestamp) {
-        return Eithers.of(() -> ctx.insertInto(EXCHANGE_RATE)
-                .set(EXCHANGE_RATE.CURRENCY_PAIR, currencyPair)
-                .set(EXCHANGE_RATE.RATE, rate)
-                .set(EXCHANGE_RATE.EFFECTIVE_DATE, timestamp)
-                .returning()
-                .fetchSingle()
-                .into(ExchangeRate.class));
+        var now = OffsetDateTime.now();
+        return Eithers.of(() -> ctx.transactionResult(config -> {
+            var added = DSL.using(config).insertInto(EXCHANGE_RATE)
+                    .set(EXCHANGE_RATE.CURRENCY_PAIR, currencyPair)
+                    .set(EXCHANGE_RATE.RATE, rate)
+                    .set(EXCHANGE_RATE.EFFECTIVE_DATE, timestamp)
+                    .set(EXCHANGE_RATE.SCHEDULED, timestamp.isAfter(now))
+                    .returning()
+                    .fetchSingle()
+                    .into(ExchangeRate.class);
+            updateLatestRates(DSL.using(config), List.of(added), now);
+            return added;
+        }));
+    }
+
+    @Override
+    public Either<Failure, List<ExchangeRate>> addRates(List<com.spherelabs.model.ExchangeRate> exchangeRates) {
+        if (exchangeRates.isEmpty()) {
+            return Either.right(List.of());
+        }
+
+        var now = OffsetDateTime.now();
+        return Eithers.of(() -> ctx.transactionResult(config -> {
+            var insert = DSL.using(config).insertInto(EXCHANGE_RATE, EXCHANGE_RATE.CURRENCY_PAIR, EXCHANGE_RATE.RATE, EXCHANGE_RATE.EFFECTIVE_DATE, EXCHANGE_RATE.SCHEDULED);
+            for (var exchangeRate : exchangeRates) {
+                insert = insert.values(exchangeRate.currencyPair(), exchangeRate.rate(), exchangeRate.timestamp(), exchangeRate.timestamp().isAfter(now));
+            }
+            var added = insert.onConflictDoNothing()
+                    .returning()
+                    .fetchInto(ExchangeRate.class);
+            updateLatestRates(DSL.using(config), added, now);
+            return added;
+        }));
+    }
+
+    @Override
+    public Either<Failure, Integer> promoteScheduledRates() {
+        var now = OffsetDateTime.now();
+        return Eithers.of(() -> ctx.transactionResult(config -> {
+            var due = DSL.using(config).selectFrom(EXCHANGE_RATE)
+                    .where(EXCHANGE_RATE.SCHEDULED)
+                    .and(EXCHANGE_RATE.EFFECTIVE_DATE.le(now))
+                    .forUpdate()
+                    .fetchInto(ExchangeRate.class);
+            if (due.isEmpty()) {
+                return 0;
+            }
+
+            updateLatestRates(DSL.using(config), due, now);
+            return DSL.using(config).update(EXCHANGE_RATE)
+                    .set(EXCHANGE_RATE.SCHEDULED, false)
+                    .where(EXCHANGE_RATE.SCHEDULED)
+                    .and(EXCHANGE_RATE.EFFECTIVE_DATE.le(now))
+                    .execute();
+        }));
+    }
+
+    /**
+     * Moves the newest effective rate of each pair into latest_rate, unless a newer one is there already
+     */
+    private static void updateLatestRates(DSLContext ctx, List<ExchangeRate> exchangeRates, OffsetDateTime now) {
+        var effective = newestPerPair(exchangeRates.stream().filter(exchangeRate -> !exchangeRate.getEffectiveDate().isAfter(now)));
+        if (effective.isEmpty()) {
+            return;
+        }
+
+        var insert = ctx.insertInto(LATEST_RATE, LATEST_RATE.CURRENCY_PAIR, LATEST_RATE.RATE, LATEST_RATE.EFFECTIVE_DATE, LATEST_RATE.CREATED_AT);
+        // rows are locked in the same order by every writer
+        for (var exchangeRate : effective.stream().sorted(Comparator.comparing(ExchangeRate::getCurrencyPair)).toList()) {
+            insert = insert.values(exchangeRate.getCurrencyPair(), exchangeRate.getRate(), exchangeRate.getEffectiveDate(), exchangeRate.getCreatedAt());
+        }
+        insert.onConflict(LATEST_RATE.CURRENCY_PAIR)
+                .doUpdate()
+                .set(LATEST_RATE.RATE, DSL.excluded(LATEST_RATE.RATE))
+                .set(LATEST_RATE.EFFECTIVE_DATE, DSL.excluded(LATEST_RATE.EFFECTIVE_DATE))
+                .set(LATEST_RATE.CREATED_AT, DSL.excluded(LATEST_RATE.CREATED_AT))
+                .where(LATEST_RATE.EFFECTIVE_DATE.lt(DSL.excluded(LATEST_RATE.EFFECTIVE_DATE)))
+                .execute();
+    }
+
+    private static Collection<ExchangeRate> newestPerPair(Stream<ExchangeRate> exchangeRates) {
+        return exchangeRates.collect(Collectors.toMap(ExchangeRate::getCurrencyPair, Function.identity(),
+                        BinaryOperator.maxBy(Comparator.comparing(ExchangeRate::getEffectiveDate))))
+                .values();
     }
 }
@@ -13,6 +13,10 @@ import org.jooq.DSLContext;
 import org.jooq.RecordMapper;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+
 import static com.assetiq.jooq.Tables.LEDGER;
 
 @RequiredArgsConstructor
@@ -38,4 +42,20 @@ public class LedgerRepositoryImpl implements LedgerRepository {
                 .and(LEDGER.TRANSACTION_TYPE.eq(Transaction.Type.LOCK.getValue()))
                 .fetchSingle(MAPPER));
     }
+
+    @Override
+    public Either<Failure, Map<Long, Ledger>> getByLockIds(Collection<Long> lockIds) {
+        return Eithers.of(() -> dslContext.selectFrom(LEDGER)
+                .where(LEDGER.ID.in(lockIds))
+                .and(LEDGER.TRANSACTION_TYPE.eq(Transaction.Type.LOCK.getValue()))
+                .fetchMap(LEDGER.ID, MAPPER));
+    }
+
+    @Override
+    public Either<Failure, Optional<Ledger>> findLockByTransactionId(String transactionId) {
+        return Eithers.of(() -> dslContext.selectFrom(LEDGER)
+                .where(LEDGER.TRANSACTION_ID.eq(transactionId))
+                .and(LEDGER.TRANSACTION_TYPE.eq(Transaction.Type.LOCK.getValue()))
+                .fetchOptional(MAPPER));
+    }
 }
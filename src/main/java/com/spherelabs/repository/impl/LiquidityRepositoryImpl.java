@@ -1,8 +1,10 @@
 package com.spherelabs.repository.impl;
 
+import com.assetiq.jooq.tables.records.LedgerRecord;
 import com.spherelabs.error.ApplicationException;
 import com.spherelabs.error.Failure;
 import com.spherelabs.error.FailureCode;
+import com.spherelabs.metrics.TransferMetrics;
 import com.spherelabs.model.LiquidityMovement;
 import com.spherelabs.repository.LiquidityRepository;
 import com.spherelabs.utils.Eithers;
@@ -11,11 +13,25 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.jooq.DSLContext;
 import org.jooq.Record1;
+import org.jooq.Record2;
+import org.jooq.Record3;
+import org.jooq.Row3;
+import org.jooq.Table;
 import org.jooq.impl.DSL;
 import org.springframework.stereotype.Repository;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static com.assetiq.jooq.Tables.*;
 
@@ -24,13 +40,17 @@ import static com.assetiq.jooq.Tables.*;
 @Slf4j
 public class LiquidityRepositoryImpl implements LiquidityRepository {
     private final DSLContext dslContext;
+    private final TransferMetrics transferMetrics;
+
+    // smallest amount the balance columns can hold. Used to keep the "balance must exceed the lock" rule exact
+    private static final BigDecimal BALANCE_UNIT = new BigDecimal("0.000001");
 
     @Override
     public Either<Failure, BigDecimal> getBalance(String currency) {
         return Eithers.of(() -> dslContext
-                .select(LIQUIDITY_POOL.AVAILABLE_BALANCE)
-                .from(LIQUIDITY_POOL)
-                .where(LIQUIDITY_POOL.CURRENCY_CODE.eq(currency))
+                .select(DSL.sum(LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE))
+                .from(LIQUIDITY_POOL_SHARD)
+                .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(currency))
                 .fetchOptional()
                 .map(Record1::value1)
                 .orElse(BigDecimal.ZERO));
@@ -40,63 +60,195 @@ public class LiquidityRepositoryImpl implements LiquidityRepository {
     public Either<Failure, Long> lockBalance(
             LiquidityMovement liquidityMovement
     ) {
+        return Eithers.of(() -> dslContext.transactionResult(config -> lockBalance(DSL.using(config), liquidityMovement)));
+    }
+
+    /**
+     * The time taken to get hold of a shard is recorded as lock wait.
+     *
+     * @return the id of the lock ledger entry
+     */
+    @Override
+    public Long lockBalance(DSLContext ctx, LiquidityMovement liquidityMovement) {
+        var amountToLock = liquidityMovement.amount().add(liquidityMovement.margin());
+        var lockStart = System.nanoTime();
+
+        // any free shard with enough headroom will do. Shards locked by other transfers are skipped instead of waited on.
+        // When every such shard is busy the lock waits on one of them, the whole currency is only locked when no shard can cover it
+        var shardId = shardWithHeadroom(ctx, liquidityMovement.currencyCode(), amountToLock, true)
+                .or(() -> shardWithHeadroom(ctx, liquidityMovement.currencyCode(), amountToLock, false))
+                .orElseGet(() -> consolidateShards(ctx, liquidityMovement.currencyCode(), amountToLock));
+        transferMetrics.lockWait(liquidityMovement.currencyCode(), System.nanoTime() - lockStart);
+
+        ctx.update(LIQUIDITY_POOL_SHARD)
+                .set(LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE, LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE.subtract(liquidityMovement.amount()).subtract(liquidityMovement.margin()))
+                .set(LIQUIDITY_POOL_SHARD.LOCKED_BALANCE, LIQUIDITY_POOL_SHARD.LOCKED_BALANCE.add(liquidityMovement.amount()).add(liquidityMovement.margin()))
+                .set(LIQUIDITY_POOL_SHARD.UPDATED_AT, OffsetDateTime.now())
+                .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(liquidityMovement.currencyCode()))
+                .and(LIQUIDITY_POOL_SHARD.SHARD_ID.eq(shardId))
+                .execute();
+
+        // margin and lock entries go in one statement
+        return ctx.insertInto(LEDGER, LEDGER.CURRENCY_CODE, LEDGER.TRANSACTION_TYPE, LEDGER.FROM_ACCOUNT, LEDGER.TO_ACCOUNT,
+                        LEDGER.MARGIN, LEDGER.AMOUNT, LEDGER.TRANSACTION_ID, LEDGER.SHARD_ID, LEDGER.DESCRIPTION)
+                // from would be the currency account user, to would be the holding account
+                .values(liquidityMovement.currencyCode(), "margin_lock", "system", "system", liquidityMovement.margin(), liquidityMovement.margin(),
+                        liquidityMovement.transactionId(), shardId, "Margin for transaction " + liquidityMovement.transactionId())
+                //would in real life track margin seperately.  but now. it is what it is.
+                .values(liquidityMovement.currencyCode(), "lock", "system", "system", liquidityMovement.margin(), liquidityMovement.amount(),
+                        liquidityMovement.transactionId(), shardId, "Lock funds for transaction " + liquidityMovement.transactionId())
+                .returning(LEDGER.ID, LEDGER.TRANSACTION_TYPE)
+                .fetch()
+                .stream()
+                .filter(entry -> "lock".equals(entry.getTransactionType()))
+                .map(LedgerRecord::getId)
+                .findFirst()
+                .orElseThrow();
+    }
+
+    @Override
+    public Either<Failure, Map<String, Long>> lockBalances(String currency, List<LiquidityMovement> liquidityMovements) {
+        if (liquidityMovements.stream().map(LiquidityMovement::transactionId).distinct().count() < liquidityMovements.size()) {
+            return Either.left(Failure.from(FailureCode.DUPLICATE));
+        }
+
         return Eithers.of(() -> dslContext.transactionResult(config -> {
-            
-            var balance = DSL.using(config)
-                    .select(
-                            LIQUIDITY_POOL.AVAILABLE_BALANCE
-                    )
-                    .from(LIQUIDITY_POOL)
-                    .where(LIQUIDITY_POOL.CURRENCY_CODE.eq(liquidityMovement.currencyCode()))
+            var lockStart = System.nanoTime();
+            var shard = DSL.using(config)
+                    .select(LIQUIDITY_POOL_SHARD.SHARD_ID, LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE)
+                    .from(LIQUIDITY_POOL_SHARD)
+                    .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(currency))
+                    .orderBy(LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE.desc())
+                    .limit(1)
                     .forUpdate()
-                    .fetchOptional()
-                    .map(Record1::value1)
-                    .orElse(BigDecimal.ZERO);
-            
-            if (balance.compareTo(liquidityMovement.amount().add(liquidityMovement.margin())) <= 0) {
-                throw new ApplicationException(FailureCode.INSUFFICIENT_FUNDS);
+                    .skipLocked()
+                    .fetchOptional();
+            transferMetrics.lockWait(currency, System.nanoTime() - lockStart);
+            if (shard.isEmpty()) {
+                return Map.<String, Long>of();
+            }
+            var shardId = shard.get().value1();
+
+            // same rule as a single lock, applied in arrival order: what is left must exceed the lock
+            var admitted = new ArrayList<LiquidityMovement>();
+            var reserved = BigDecimal.ZERO;
+            for (var liquidityMovement : liquidityMovements) {
+                var amountToLock = liquidityMovement.amount().add(liquidityMovement.margin());
+                if (shard.get().value2().subtract(reserved).compareTo(amountToLock) > 0) {
+                    admitted.add(liquidityMovement);
+                    reserved = reserved.add(amountToLock);
+                }
+            }
+            if (admitted.isEmpty()) {
+                return Map.<String, Long>of();
             }
 
             DSL.using(config)
-                    .update(LIQUIDITY_POOL)
-                    .set(LIQUIDITY_POOL.AVAILABLE_BALANCE, LIQUIDITY_POOL.AVAILABLE_BALANCE.subtract(liquidityMovement.amount()).subtract(liquidityMovement.margin()))
-                    .set(LIQUIDITY_POOL.LOCKED_BALANCE, LIQUIDITY_POOL.LOCKED_BALANCE.add(liquidityMovement.amount()).add(liquidityMovement.margin()))
-                    .set(LIQUIDITY_POOL.UPDATED_AT, OffsetDateTime.now())
-                    .where(LIQUIDITY_POOL.CURRENCY_CODE.eq(liquidityMovement.currencyCode()))
-                    .returning()
+                    .update(LIQUIDITY_POOL_SHARD)
+                    .set(LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE, LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE.subtract(reserved))
+                    .set(LIQUIDITY_POOL_SHARD.LOCKED_BALANCE, LIQUIDITY_POOL_SHARD.LOCKED_BALANCE.add(reserved))
+                    .set(LIQUIDITY_POOL_SHARD.UPDATED_AT, OffsetDateTime.now())
+                    .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(currency))
+                    .and(LIQUIDITY_POOL_SHARD.SHARD_ID.eq(shardId))
                     .execute();
 
-            var marginId = DSL.using(config)
-                    .insertInto(LEDGER)
-                    .set(LEDGER.CURRENCY_CODE, liquidityMovement.currencyCode())
-                    .set(LEDGER.TRANSACTION_TYPE, "margin_lock")
-                    .set(LEDGER.FROM_ACCOUNT, "system") // would be the currency account user
-                    .set(LEDGER.TO_ACCOUNT, "system") // would be the holding account
-                    .set(LEDGER.MARGIN, liquidityMovement.margin())
-                    .set(LEDGER.AMOUNT, liquidityMovement.margin())
-                    .set(LEDGER.TRANSACTION_ID, liquidityMovement.transactionId())
-                    .set(LEDGER.DESCRIPTION, "Margin for transaction " + liquidityMovement.transactionId())
-                    .returning(LEDGER.ID)
-                    .fetchSingle()
-                    .component1();
+            var ledgerEntries = DSL.using(config)
+                    .insertInto(LEDGER, LEDGER.CURRENCY_CODE, LEDGER.TRANSACTION_TYPE, LEDGER.FROM_ACCOUNT, LEDGER.TO_ACCOUNT,
+                            LEDGER.MARGIN, LEDGER.AMOUNT, LEDGER.TRANSACTION_ID, LEDGER.SHARD_ID, LEDGER.DESCRIPTION);
+            for (var liquidityMovement : admitted) {
+                ledgerEntries = ledgerEntries
+                        .values(currency, "margin_lock", "system", "system", liquidityMovement.margin(), liquidityMovement.margin(),
+                                liquidityMovement.transactionId(), shardId, "Margin for transaction " + liquidityMovement.transactionId())
+                        .values(currency, "lock", "system", "system", liquidityMovement.margin(), liquidityMovement.amount(),
+                                liquidityMovement.transactionId(), shardId, "Lock funds for transaction " + liquidityMovement.transactionId());
+            }
 
-             return DSL.using(config)
-                    .insertInto(LEDGER)
-                    .set(LEDGER.CURRENCY_CODE, liquidityMovement.currencyCode())
-                    .set(LEDGER.TRANSACTION_TYPE, "lock")
-                    .set(LEDGER.FROM_ACCOUNT, "system") // would be the currency account user
-                     //would in real life track margin seperately.  but now. it is what it is.
-                     .set(LEDGER.MARGIN, liquidityMovement.margin())
-                    .set(LEDGER.TO_ACCOUNT, "system") // would be the holding account
-                    .set(LEDGER.AMOUNT, liquidityMovement.amount())
-                    .set(LEDGER.TRANSACTION_ID, liquidityMovement.transactionId())
-                    .set(LEDGER.DESCRIPTION, "Lock funds for transaction " + liquidityMovement.transactionId())
-                     .returning(LEDGER.ID)
-                     .fetchSingle()
-                     .component1();
+            return ledgerEntries
+                    .returning(LEDGER.ID, LEDGER.TRANSACTION_ID, LEDGER.TRANSACTION_TYPE)
+                    .fetch()
+                    .stream()
+                    .filter(entry -> "lock".equals(entry.getTransactionType()))
+                    .collect(Collectors.toMap(LedgerRecord::getTransactionId, LedgerRecord::getId));
         }));
     }
 
+    /**
+     * Picks a random shard of the currency with more than the amount available and locks it.
+     * A shard that no longer has the headroom once its lock is granted is passed over.
+     */
+    private static Optional<Integer> shardWithHeadroom(DSLContext ctx, String currency, BigDecimal amountToLock, boolean skipLocked) {
+        var select = ctx
+                .select(LIQUIDITY_POOL_SHARD.SHARD_ID)
+                .from(LIQUIDITY_POOL_SHARD)
+                .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(currency))
+                .and(LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE.gt(amountToLock))
+                .orderBy(DSL.rand())
+                .limit(1)
+                .forUpdate();
+        return (skipLocked ? select.skipLocked() : select).fetchOptional(LIQUIDITY_POOL_SHARD.SHARD_ID);
+    }
+
+    /**
+     * Slow path of a lock. No shard has enough headroom, so every shard of the currency is locked
+     * in shard order (concurrent slow paths cannot deadlock) and the exact pool balance is checked.
+     * Headroom is then moved from the other shards into the largest one so the lock can be taken from a single shard.
+     *
+     * @return the shard to take the lock from
+     */
+    private static int consolidateShards(DSLContext ctx, String currency, BigDecimal amountToLock) {
+        var shards = ctx.select(LIQUIDITY_POOL_SHARD.SHARD_ID, LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE)
+                .from(LIQUIDITY_POOL_SHARD)
+                .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(currency))
+                .orderBy(LIQUIDITY_POOL_SHARD.SHARD_ID)
+                .forUpdate()
+                .fetch();
+
+        var balance = shards.stream()
+                .map(Record2::value2)
+                .reduce(BigDecimal.ZERO, BigDecimal::add);
+        if (balance.compareTo(amountToLock) <= 0) {
+            throw new ApplicationException(FailureCode.INSUFFICIENT_FUNDS);
+        }
+
+        var target = shards.stream()
+                .max((a, b) -> a.value2().compareTo(b.value2()))
+                .orElseThrow();
+        var missing = amountToLock.subtract(target.value2()).add(BALANCE_UNIT);
+        if (missing.signum() <= 0) {
+            // a release gave the shard enough headroom after it was looked for
+            return target.value1();
+        }
+
+        log.debug("Consolidating {} {} into shard {}", missing, currency, target.value1());
+        var moved = BigDecimal.ZERO;
+        for (var shard : shards) {
+            if (moved.compareTo(missing) >= 0) {
+                break;
+            }
+            if (shard.value1().equals(target.value1()) || shard.value2().signum() == 0) {
+                continue;
+            }
+
+            var take = shard.value2().min(missing.subtract(moved));
+            ctx.update(LIQUIDITY_POOL_SHARD)
+                    .set(LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE, LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE.subtract(take))
+                    .set(LIQUIDITY_POOL_SHARD.UPDATED_AT, OffsetDateTime.now())
+                    .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(currency))
+                    .and(LIQUIDITY_POOL_SHARD.SHARD_ID.eq(shard.value1()))
+                    .execute();
+            moved = moved.add(take);
+        }
+
+        ctx.update(LIQUIDITY_POOL_SHARD)
+                .set(LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE, LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE.add(moved))
+                .set(LIQUIDITY_POOL_SHARD.UPDATED_AT, OffsetDateTime.now())
+                .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(currency))
+                .and(LIQUIDITY_POOL_SHARD.SHARD_ID.eq(target.value1()))
+                .execute();
+
+        return target.value1();
+    }
+
     @Override
     public Either<Failure, Long> debitLockedBalance(Long lockId) {
         return Eithers.of(() -> dslContext.transactionResult(config -> {
@@ -107,13 +259,15 @@ public class LiquidityRepositoryImpl implements LiquidityRepository {
                     .where(LEDGER.ID.eq(lockId))
                     .and(LEDGER.TRANSACTION_TYPE.eq("lock"))
                     .fetchSingle();
+            var shardId = shardOf(lockedRecord.get(LEDGER.SHARD_ID));
 
             var lockedBalance = DSL.using(config)
                     .select(
-                            LIQUIDITY_POOL.LOCKED_BALANCE
+                            LIQUIDITY_POOL_SHARD.LOCKED_BALANCE
                     )
-                    .from(LIQUIDITY_POOL)
-                    .where(LIQUIDITY_POOL.CURRENCY_CODE.eq(lockedRecord.get(LEDGER.CURRENCY_CODE)))
+                    .from(LIQUIDITY_POOL_SHARD)
+                    .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(lockedRecord.get(LEDGER.CURRENCY_CODE)))
+                    .and(LIQUIDITY_POOL_SHARD.SHARD_ID.eq(shardId))
                     .forUpdate()
                     .fetchOptional()
                     .map(Record1::value1)
@@ -124,12 +278,12 @@ public class LiquidityRepositoryImpl implements LiquidityRepository {
             }
 
             DSL.using(config)
-                    .update(LIQUIDITY_POOL)
-                    .set(LIQUIDITY_POOL.LOCKED_BALANCE, LIQUIDITY_POOL.LOCKED_BALANCE.subtract(lockedRecord.get(LEDGER.AMOUNT, BigDecimal.class))
+                    .update(LIQUIDITY_POOL_SHARD)
+                    .set(LIQUIDITY_POOL_SHARD.LOCKED_BALANCE, LIQUIDITY_POOL_SHARD.LOCKED_BALANCE.subtract(lockedRecord.get(LEDGER.AMOUNT, BigDecimal.class))
                             .subtract(lockedRecord.get(LEDGER.MARGIN, BigDecimal.class)))
-                    .set(LIQUIDITY_POOL.UPDATED_AT, OffsetDateTime.now())
-                    .where(LIQUIDITY_POOL.CURRENCY_CODE.eq(lockedRecord.get(LEDGER.CURRENCY_CODE)))
-                    .returning()
+                    .set(LIQUIDITY_POOL_SHARD.UPDATED_AT, OffsetDateTime.now())
+                    .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(lockedRecord.get(LEDGER.CURRENCY_CODE)))
+                    .and(LIQUIDITY_POOL_SHARD.SHARD_ID.eq(shardId))
                     .execute();
 
             DSL.using(config)
@@ -140,6 +294,7 @@ public class LiquidityRepositoryImpl implements LiquidityRepository {
                     .set(LEDGER.TO_ACCOUNT, "system") // would be the other account
                     .set(LEDGER.AMOUNT, lockedRecord.get(LEDGER.MARGIN))
                     .set(LEDGER.TRANSACTION_ID, lockedRecord.get(LEDGER.TRANSACTION_ID))
+                    .set(LEDGER.SHARD_ID, shardId)
                     .set(LEDGER.DESCRIPTION, "Margin on " + lockedRecord.get(LEDGER.TRANSACTION_ID))
                     .returning(LEDGER.ID)
                     .fetchSingle()
@@ -153,6 +308,7 @@ public class LiquidityRepositoryImpl implements LiquidityRepository {
                     .set(LEDGER.TO_ACCOUNT, "system") // would be the other account
                     .set(LEDGER.AMOUNT, lockedRecord.get(LEDGER.AMOUNT))
                     .set(LEDGER.TRANSACTION_ID, lockedRecord.get(LEDGER.TRANSACTION_ID))
+                    .set(LEDGER.SHARD_ID, shardId)
                     .set(LEDGER.DESCRIPTION, "Debit Position " + lockedRecord.get(LEDGER.ID))
                     .returning(LEDGER.ID)
                     .fetchSingle()
@@ -161,6 +317,137 @@ public class LiquidityRepositoryImpl implements LiquidityRepository {
         }));
     }
 
+    @Override
+    public Either<Failure, Set<Long>> debitLockedBalances(Collection<Long> lockIds) {
+        return Eithers.of(() -> dslContext.transactionResult(config -> {
+            var ctx = DSL.using(config);
+            var release = release(ctx, lockIds, "debit");
+            if (release.admitted().isEmpty()) {
+                return release.released();
+            }
+
+            var shardAmounts = release.shardAmounts();
+            ctx.update(LIQUIDITY_POOL_SHARD)
+                    .set(LIQUIDITY_POOL_SHARD.LOCKED_BALANCE, LIQUIDITY_POOL_SHARD.LOCKED_BALANCE.subtract(shardAmounts.field("amount", BigDecimal.class)))
+                    .set(LIQUIDITY_POOL_SHARD.UPDATED_AT, OffsetDateTime.now())
+                    .from(shardAmounts)
+                    .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(shardAmounts.field("currency_code", String.class)))
+                    .and(LIQUIDITY_POOL_SHARD.SHARD_ID.eq(shardAmounts.field("shard_id", Integer.class)))
+                    .execute();
+
+            var ledgerEntries = ctx.insertInto(LEDGER, LEDGER.CURRENCY_CODE, LEDGER.TRANSACTION_TYPE, LEDGER.FROM_ACCOUNT, LEDGER.TO_ACCOUNT,
+                    LEDGER.AMOUNT, LEDGER.TRANSACTION_ID, LEDGER.SHARD_ID, LEDGER.DESCRIPTION);
+            for (var lock : release.admitted()) {
+                ledgerEntries = ledgerEntries
+                        .values(lock.shard().currency(), "debit", "system", "system", lock.margin(),
+                                lock.transactionId(), lock.shard().shardId(), "Margin on " + lock.transactionId())
+                        .values(lock.shard().currency(), "debit", "system", "system", lock.amount(),
+                                lock.transactionId(), lock.shard().shardId(), "Debit Position " + lock.id());
+            }
+            ledgerEntries.execute();
+            return release.released();
+        }));
+    }
+
+    @Override
+    public Either<Failure, Set<Long>> unlockBalances(Collection<Long> lockIds) {
+        return Eithers.of(() -> dslContext.transactionResult(config -> {
+            var ctx = DSL.using(config);
+            var release = release(ctx, lockIds, "unlock");
+            if (release.admitted().isEmpty()) {
+                return release.released();
+            }
+
+            var shardAmounts = release.shardAmounts();
+            ctx.update(LIQUIDITY_POOL_SHARD)
+                    .set(LIQUIDITY_POOL_SHARD.LOCKED_BALANCE, LIQUIDITY_POOL_SHARD.LOCKED_BALANCE.subtract(shardAmounts.field("amount", BigDecimal.class)))
+                    .set(LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE, LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE.add(shardAmounts.field("amount", BigDecimal.class)))
+                    .set(LIQUIDITY_POOL_SHARD.UPDATED_AT, OffsetDateTime.now())
+                    .from(shardAmounts)
+                    .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(shardAmounts.field("currency_code", String.class)))
+                    .and(LIQUIDITY_POOL_SHARD.SHARD_ID.eq(shardAmounts.field("shard_id", Integer.class)))
+                    .execute();
+
+            var ledgerEntries = ctx.insertInto(LEDGER, LEDGER.CURRENCY_CODE, LEDGER.TRANSACTION_TYPE, LEDGER.FROM_ACCOUNT, LEDGER.TO_ACCOUNT,
+                    LEDGER.AMOUNT, LEDGER.TRANSACTION_ID, LEDGER.SHARD_ID, LEDGER.DESCRIPTION);
+            for (var lock : release.admitted()) {
+                ledgerEntries = ledgerEntries
+                        .values(lock.shard().currency(), "unlock", "system", "system", lock.amount(),
+                                lock.transactionId(), lock.shard().shardId(), "Unlock Position " + lock.id())
+                        .values(lock.shard().currency(), "margin_unlock", "system", "system", lock.margin(),
+                                lock.transactionId(), lock.shard().shardId(), "Margin unlock on " + lock.transactionId());
+            }
+            ledgerEntries.execute();
+            return release.released();
+        }));
+    }
+
+    /**
+     * Pick the locks to take out of the locked balance for several locks at once and lock their shards.
+     * A lock is picked when the locked balance left in its shard covers its amount, the same rule as a single
+     * debit or unlock applied in lock order. Locks that already have an entry of the release type, written in the
+     * transaction that released them, are counted as released and not picked again.
+     *
+     * @param releaseType ledger entry type written when a lock is released
+     * @return the released locks, including the picked ones, the picked locks and the amount to take from each shard
+     */
+    private static Release release(DSLContext ctx, Collection<Long> lockIds, String releaseType) {
+        var releasedEntry = LEDGER.as("released_entry");
+        var locks = ctx.select(LEDGER.ID, LEDGER.CURRENCY_CODE, LEDGER.SHARD_ID, LEDGER.AMOUNT, LEDGER.MARGIN, LEDGER.TRANSACTION_ID,
+                        DSL.field(DSL.exists(DSL.selectOne()
+                                .from(releasedEntry)
+                                .where(releasedEntry.TRANSACTION_ID.eq(LEDGER.TRANSACTION_ID))
+                                .and(releasedEntry.TRANSACTION_TYPE.eq(releaseType)))))
+                .from(LEDGER)
+                .where(LEDGER.ID.in(lockIds))
+                .and(LEDGER.TRANSACTION_TYPE.eq("lock"))
+                .orderBy(LEDGER.ID)
+                .fetch(lock -> new Lock(lock.value1(), new Shard(lock.value2(), shardOf(lock.value3())), lock.value4(), lock.value5(), lock.value6(), lock.value7()));
+
+        var released = locks.stream()
+                .filter(Lock::released)
+                .map(Lock::id)
+                .collect(Collectors.toCollection(HashSet::new));
+        var pending = locks.stream()
+                .filter(lock -> !lock.released())
+                .toList();
+        if (pending.isEmpty()) {
+            return new Release(released, List.of(), null);
+        }
+
+        // shards are locked in currency and shard order so concurrent releases cannot deadlock
+        var lockedBalances = ctx.select(LIQUIDITY_POOL_SHARD.CURRENCY_CODE, LIQUIDITY_POOL_SHARD.SHARD_ID, LIQUIDITY_POOL_SHARD.LOCKED_BALANCE)
+                .from(LIQUIDITY_POOL_SHARD)
+                .where(DSL.row(LIQUIDITY_POOL_SHARD.CURRENCY_CODE, LIQUIDITY_POOL_SHARD.SHARD_ID).in(pending.stream()
+                        .map(lock -> DSL.row(lock.shard().currency(), lock.shard().shardId()))
+                        .distinct()
+                        .toList()))
+                .orderBy(LIQUIDITY_POOL_SHARD.CURRENCY_CODE, LIQUIDITY_POOL_SHARD.SHARD_ID)
+                .forUpdate()
+                .fetchMap(shard -> new Shard(shard.value1(), shard.value2()), Record3::value3);
+
+        var amounts = new LinkedHashMap<Shard, BigDecimal>();
+        var admitted = new ArrayList<Lock>();
+        for (var lock : pending) {
+            var taken = amounts.getOrDefault(lock.shard(), BigDecimal.ZERO);
+            if (lockedBalances.getOrDefault(lock.shard(), BigDecimal.ZERO).subtract(taken).compareTo(lock.amount()) >= 0) {
+                amounts.put(lock.shard(), taken.add(lock.amount()).add(lock.margin()));
+                admitted.add(lock);
+                released.add(lock.id());
+            }
+        }
+        if (admitted.isEmpty()) {
+            return new Release(released, List.of(), null);
+        }
+
+        // one row per shard so each shard is updated once with the sum of its locks
+        var shardAmounts = DSL.values(amounts.entrySet().stream()
+                        .map(entry -> DSL.row(entry.getKey().currency(), entry.getKey().shardId(), entry.getValue()))
+                        .toArray(Row3[]::new))
+                .as("shard_amount", "currency_code", "shard_id", "amount");
+        return new Release(released, admitted, shardAmounts);
+    }
+
     @Override
     public Either<Failure, Long> unlockBalance(Long lockId) {
         return Eithers.of(() -> dslContext.transactionResult(config -> {
@@ -170,13 +457,15 @@ public class LiquidityRepositoryImpl implements LiquidityRepository {
                     .where(LEDGER.ID.eq(lockId))
                     .and(LEDGER.TRANSACTION_TYPE.eq("lock"))
                     .fetchSingle();
+            var shardId = shardOf(lockedRecord.get(LEDGER.SHARD_ID));
 
             var lockedBalance = DSL.using(config)
                     .select(
-                            LIQUIDITY_POOL.LOCKED_BALANCE
+                            LIQUIDITY_POOL_SHARD.LOCKED_BALANCE
                     )
-                    .from(LIQUIDITY_POOL)
-                    .where(LIQUIDITY_POOL.CURRENCY_CODE.eq(lockedRecord.get(LEDGER.CURRENCY_CODE)))
+                    .from(LIQUIDITY_POOL_SHARD)
+                    .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(lockedRecord.get(LEDGER.CURRENCY_CODE)))
+                    .and(LIQUIDITY_POOL_SHARD.SHARD_ID.eq(shardId))
                     .forUpdate()
                     .fetchOptional()
                     .map(Record1::value1)
@@ -194,6 +483,7 @@ public class LiquidityRepositoryImpl implements LiquidityRepository {
                     .set(LEDGER.TO_ACCOUNT, "system") // would be the other account
                     .set(LEDGER.AMOUNT, lockedRecord.get(LEDGER.AMOUNT))
                     .set(LEDGER.TRANSACTION_ID, lockedRecord.get(LEDGER.TRANSACTION_ID))
+                    .set(LEDGER.SHARD_ID, shardId)
                     .set(LEDGER.DESCRIPTION, "Unlock Position " + lockedRecord.get(LEDGER.ID))
                     .returning(LEDGER.ID)
                     .fetchSingle()
@@ -208,24 +498,87 @@ public class LiquidityRepositoryImpl implements LiquidityRepository {
                     .set(LEDGER.TO_ACCOUNT, "system") // would be the other account
                     .set(LEDGER.AMOUNT, lockedRecord.get(LEDGER.MARGIN))
                     .set(LEDGER.TRANSACTION_ID, lockedRecord.get(LEDGER.TRANSACTION_ID))
+                    .set(LEDGER.SHARD_ID, shardId)
                     .set(LEDGER.DESCRIPTION, "Margin unlock on " + lockedRecord.get(LEDGER.TRANSACTION_ID))
                     .returning(LEDGER.ID)
                     .fetchSingle()
                     .component1();
 
             DSL.using(config)
-                    .update(LIQUIDITY_POOL)
-                    .set(LIQUIDITY_POOL.LOCKED_BALANCE, LIQUIDITY_POOL.LOCKED_BALANCE.subtract(lockedRecord.get(LEDGER.AMOUNT, BigDecimal.class))
+                    .update(LIQUIDITY_POOL_SHARD)
+                    .set(LIQUIDITY_POOL_SHARD.LOCKED_BALANCE, LIQUIDITY_POOL_SHARD.LOCKED_BALANCE.subtract(lockedRecord.get(LEDGER.AMOUNT, BigDecimal.class))
                             .subtract(lockedRecord.get(LEDGER.MARGIN, BigDecimal.class)))
-                    .set(LIQUIDITY_POOL.LOCKED_BALANCE, LIQUIDITY_POOL.AVAILABLE_BALANCE.add(lockedRecord.get(LEDGER.AMOUNT, BigDecimal.class))
+                    .set(LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE, LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE.add(lockedRecord.get(LEDGER.AMOUNT, BigDecimal.class))
                             .add(lockedRecord.get(LEDGER.MARGIN, BigDecimal.class)))
-                    .set(LIQUIDITY_POOL.UPDATED_AT, OffsetDateTime.now())
-                    .where(LIQUIDITY_POOL.CURRENCY_CODE.eq(lockedRecord.get(LEDGER.CURRENCY_CODE)))
-                    .returning()
+                    .set(LIQUIDITY_POOL_SHARD.UPDATED_AT, OffsetDateTime.now())
+                    .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(lockedRecord.get(LEDGER.CURRENCY_CODE)))
+                    .and(LIQUIDITY_POOL_SHARD.SHARD_ID.eq(shardId))
                     .execute();
 
 
           return record;
         }));
     }
+
+    @Override
+    public Either<Failure, Void> spreadShards(int shards) {
+        return Eithers.of(() -> {
+            dslContext.select(LIQUIDITY_POOL.CURRENCY_CODE)
+                    .from(LIQUIDITY_POOL)
+                    .fetch(LIQUIDITY_POOL.CURRENCY_CODE)
+                    .forEach(currency -> dslContext.transaction(config -> spreadShards(DSL.using(config), currency, shards)));
+            return null;
+        });
+    }
+
+    private void spreadShards(DSLContext ctx, String currency, int shards) {
+        var missingShards = ctx.insertInto(LIQUIDITY_POOL_SHARD, LIQUIDITY_POOL_SHARD.CURRENCY_CODE, LIQUIDITY_POOL_SHARD.SHARD_ID);
+        for (int shardId = 0; shardId < shards; shardId++) {
+            missingShards = missingShards.values(currency, shardId);
+        }
+        missingShards.onConflictDoNothing().execute();
+
+        var existing = ctx.select(LIQUIDITY_POOL_SHARD.SHARD_ID, LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE)
+                .from(LIQUIDITY_POOL_SHARD)
+                .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(currency))
+                .orderBy(LIQUIDITY_POOL_SHARD.SHARD_ID)
+                .forUpdate()
+                .fetch();
+
+        var balance = existing.stream()
+                .map(Record2::value2)
+                .reduce(BigDecimal.ZERO, BigDecimal::add);
+        var share = balance.divide(BigDecimal.valueOf(shards), BALANCE_UNIT.scale(), RoundingMode.DOWN);
+        var remainder = balance.subtract(share.multiply(BigDecimal.valueOf(shards)));
+
+        // shards above the configured count are drained. Their locked funds stay until released
+        for (var shard : existing) {
+            var target = shard.value1() >= shards ? BigDecimal.ZERO
+                    : shard.value1() == 0 ? share.add(remainder) : share;
+            if (target.compareTo(shard.value2()) == 0) {
+                continue;
+            }
+            ctx.update(LIQUIDITY_POOL_SHARD)
+                    .set(LIQUIDITY_POOL_SHARD.AVAILABLE_BALANCE, target)
+                    .set(LIQUIDITY_POOL_SHARD.UPDATED_AT, OffsetDateTime.now())
+                    .where(LIQUIDITY_POOL_SHARD.CURRENCY_CODE.eq(currency))
+                    .and(LIQUIDITY_POOL_SHARD.SHARD_ID.eq(shard.value1()))
+                    .execute();
+        }
+        log.debug("Spread {} {} across {} shards", balance, currency, shards);
+    }
+
+    private record Shard(String currency, int shardId) {
+    }
+
+    private record Lock(Long id, Shard shard, BigDecimal amount, BigDecimal margin, String transactionId, boolean released) {
+    }
+
+    private record Release(Set<Long> released, List<Lock> admitted, Table<?> shardAmounts) {
+    }
+
+    // locks taken before the pools were sharded all live on the first shard
+    private static int shardOf(Integer shardId) {
+        return Optional.ofNullable(shardId).orElse(0);
+    }
 }
@@ -0,0 +1,102 @@
+package com.spherelabs.repository.impl;
+
+import com.assetiq.jooq.tables.records.RecoveryTaskRecord;
+import com.spherelabs.error.Failure;
+import com.spherelabs.model.RecoveryTask;
+import com.spherelabs.repository.RecoveryTaskRepository;
+import com.spherelabs.utils.Eithers;
+import io.vavr.control.Either;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.jooq.DSLContext;
+import org.jooq.RecordMapper;
+import org.jooq.Row4;
+import org.jooq.impl.DSL;
+import org.springframework.stereotype.Repository;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.List;
+
+import static com.assetiq.jooq.Tables.RECOVERY_TASK;
+
+@RequiredArgsConstructor
+@Repository
+@Slf4j
+public class RecoveryTaskRepositoryImpl implements RecoveryTaskRepository {
+    private final DSLContext dsl;
+    private static final RecordMapper<RecoveryTaskRecord, RecoveryTask> MAPPER = record -> new RecoveryTask(
+            record.getId(),
+            record.getTransactionId(),
+            record.getAttempts(),
+            record.getNextAttemptAt(),
+            record.getLastError()
+    );
+
+    @Override
+    public Either<Failure, Void> enqueue(Long transactionId, Duration delay) {
+        return Eithers.of(() -> dsl.insertInto(RECOVERY_TASK)
+                        .set(RECOVERY_TASK.TRANSACTION_ID, transactionId)
+                        .set(RECOVERY_TASK.NEXT_ATTEMPT_AT, OffsetDateTime.now().plus(delay))
+                        .onConflict(RECOVERY_TASK.TRANSACTION_ID)
+                        .doNothing()
+                        .execute())
+                .map(__ -> null);
+    }
+
+    @Override
+    public Either<Failure, List<RecoveryTask>> claimDue(int limit, Duration lease) {
+        var now = OffsetDateTime.now();
+        return Eithers.of(() -> dsl.update(RECOVERY_TASK)
+                .set(RECOVERY_TASK.NEXT_ATTEMPT_AT, now.plus(lease))
+                .where(RECOVERY_TASK.ID.in(DSL.select(RECOVERY_TASK.ID)
+                        .from(RECOVERY_TASK)
+                        .where(RECOVERY_TASK.NEXT_ATTEMPT_AT.lessOrEqual(now))
+                        .orderBy(RECOVERY_TASK.NEXT_ATTEMPT_AT)
+                        .limit(limit)
+                        .forUpdate()
+                        .skipLocked()))
+                .returning()
+                .fetch(MAPPER));
+    }
+
+    @Override
+    public Either<Failure, Void> complete(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Either.right(null);
+        }
+
+        return Eithers.of(() -> dsl.deleteFrom(RECOVERY_TASK)
+                        .where(RECOVERY_TASK.ID.in(ids))
+                        .execute())
+                .map(__ -> null);
+    }
+
+    @Override
+    public Either<Failure, Void> reschedule(List<RecoveryTask> tasks) {
+        if (tasks.isEmpty()) {
+            return Either.right(null);
+        }
+
+        @SuppressWarnings("unchecked")
+        Row4<Long, Integer, OffsetDateTime, String>[] rows = tasks.stream()
+                .map(task -> DSL.row(
+                        DSL.val(task.id()),
+                        DSL.val(task.attempts()),
+                        DSL.val(task.nextAttemptAt()),
+                        DSL.val(task.lastError(), String.class)))
+                .toArray(Row4[]::new);
+
+        return Eithers.of(() -> {
+            var retries = DSL.values(rows).as("retry", "id", "attempts", "next_attempt_at", "last_error");
+            dsl.update(RECOVERY_TASK)
+                    .set(RECOVERY_TASK.ATTEMPTS, retries.field("attempts", Integer.class))
+                    .set(RECOVERY_TASK.NEXT_ATTEMPT_AT, retries.field("next_attempt_at", OffsetDateTime.class))
+                    .set(RECOVERY_TASK.LAST_ERROR, retries.field("last_error", String.class))
+                    .from(retries)
+                    .where(RECOVERY_TASK.ID.eq(retries.field("id", Long.class)))
+                    .execute();
+            return null;
+        });
+    }
+}
@@ -2,31 +2,47 @@ package com.spherelabs.repository.impl;
 
 import com.assetiq.jooq.enums.TransactionStatus;
 import com.assetiq.jooq.tables.records.TransactionRecord;
+import com.spherelabs.error.ApplicationException;
 import com.spherelabs.error.Failure;
+import com.spherelabs.error.FailureCode;
+import com.spherelabs.model.CompletedTransaction;
+import com.spherelabs.model.LiquidityMovement;
 import com.spherelabs.model.Transaction;
+import com.spherelabs.repository.LiquidityRepository;
 import com.spherelabs.repository.TransactionRepository;
+import com.spherelabs.repository.TransferOutboxRepository;
 import com.spherelabs.utils.Eithers;
 import io.vavr.control.Either;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.jooq.Condition;
 import org.jooq.DSLContext;
 import org.jooq.RecordMapper;
+import org.jooq.Row1;
+import org.jooq.Table;
 import org.jooq.impl.DSL;
 import org.jooq.types.YearToSecond;
 import org.springframework.stereotype.Repository;
 
+import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 
 import static com.assetiq.jooq.Tables.FAILED_TRANSACTION_EVENT;
+import static com.assetiq.jooq.Tables.RECOVERY_TASK;
 import static com.assetiq.jooq.Tables.TRANSACTION;
+import static com.assetiq.jooq.Tables.TRANSFER_OUTBOX;
 
 @RequiredArgsConstructor
 @Repository
 @Slf4j
 public class TransactionRepositoryImpl implements TransactionRepository {
     private final DSLContext dsl;
-    private static final RecordMapper<TransactionRecord, Transaction> MAPPER = record -> {
+    private final LiquidityRepository liquidityRepository;
+    private final TransferOutboxRepository transferOutboxRepository;
+    static final RecordMapper<TransactionRecord, Transaction> MAPPER = record -> {
         Transaction transaction = new Transaction();
         transaction.setId(record.getId());
         transaction.setTransferId(record.getTransferId());
@@ -46,19 +62,66 @@ public class TransactionRepositoryImpl implements TransactionRepository {
         transaction.setScheduledSettlementTime(record.getScheduledSettlementTime());
         transaction.setSettlementWindow(record.getSettlementWindow().toDuration());
         transaction.setSettlementAttempts(record.getSettlementAttempts());
+        transaction.setSettlementStatus(record.getSettlementStatus() == null ? null : Transaction.SettlementStatus.from(record.getSettlementStatus()));
         transaction.setActualSettlementTime(record.getActualSettlementTime());
         transaction.setCreatedAt(record.getCreatedAt());
         transaction.setDescription(record.getDescription());
         transaction.setUpdatedAt(record.getUpdatedAt());
         transaction.setLockedId(record.getLockedId());
+        transaction.setUnlockedId(record.getUnlockedId());
         transaction.setFailureReason(record.getFailureReason());
 
         return transaction;
     };
 
     @Override
-    public Either<Failure, Transaction> insertNew(Transaction transaction) {
-        return Eithers.of(() -> dsl.insertInto(TRANSACTION)
+    public Either<Failure, Optional<Transaction>> insertIfAbsent(Transaction transaction) {
+        return Eithers.of(() -> insertIfAbsent(dsl, transaction))
+                .peekLeft(failure -> log.error("Failed to insert new transaction", failure.cause()));
+    }
+
+    @Override
+    public Either<Failure, Optional<Transaction>> insertAndLock(Transaction transaction, boolean enqueueTransfer) {
+        return Eithers.of(() -> dsl.transactionResult(config -> insertIfAbsent(DSL.using(config), transaction)
+                        .map(inserted -> lock(DSL.using(config), inserted))
+                        .map(locked -> {
+                            if (enqueueTransfer && locked.getStatus() == Transaction.Status.FUNDS_LOCKED) {
+                                transferOutboxRepository.enqueue(DSL.using(config), locked.getId());
+                            }
+                            return locked;
+                        })))
+                .peekLeft(failure -> log.error("Failed to insert and lock transaction {}", transaction.getInternalTransferId(), failure.cause()));
+    }
+
+    private Transaction lock(DSLContext ctx, Transaction transaction) {
+        try {
+            var lockId = liquidityRepository.lockBalance(ctx, LiquidityMovement.lockFrom(transaction));
+            return ctx.update(TRANSACTION)
+                    .set(TRANSACTION.STATUS, TransactionStatus.funds_locked)
+                    .set(TRANSACTION.LOCKED_ID, lockId)
+                    .set(TRANSACTION.UPDATED_AT, OffsetDateTime.now())
+                    .where(TRANSACTION.ID.eq(transaction.getId()))
+                    .returning()
+                    .fetchSingle(MAPPER);
+        } catch (ApplicationException e) {
+            if (!FailureCode.INSUFFICIENT_FUNDS.getCode().equals(e.getError().code())) {
+                throw e;
+            }
+            // nothing was written by the lock, so the transaction is kept and recorded as failed
+            return ctx.update(TRANSACTION)
+                    .set(TRANSACTION.STATUS, TransactionStatus.failed)
+                    .set(TRANSACTION.SETTLEMENT_STATUS, Transaction.SettlementStatus.SETTLEMENT_STOPPED.getValue())
+                    .set(TRANSACTION.SETTLEMENT_MESSAGE, e.getError().code() + e.getError().message())
+                    .set(TRANSACTION.SETTLEMENT_ATTEMPTS, TRANSACTION.SETTLEMENT_ATTEMPTS.plus(1))
+                    .set(TRANSACTION.UPDATED_AT, OffsetDateTime.now())
+                    .where(TRANSACTION.ID.eq(transaction.getId()))
+                    .returning()
+                    .fetchSingle(MAPPER);
+        }
+    }
+
+    private Optional<Transaction> insertIfAbsent(DSLContext ctx, Transaction transaction) {
+        return ctx.insertInto(TRANSACTION)
                 .set(TRANSACTION.TRANSFER_ID, transaction.getTransferId())
                 .set(TRANSACTION.INTERNAL_TRANSFER_ID, transaction.getInternalTransferId())
                 .set(TRANSACTION.SENDER_ACCOUNT, transaction.getSenderAccount())
@@ -78,9 +141,10 @@ public class TransactionRepositoryImpl implements TransactionRepository {
                 .set(TRANSACTION.ACTUAL_SETTLEMENT_TIME, transaction.getActualSettlementTime())
                 .set(TRANSACTION.CREATED_AT, transaction.getCreatedAt())
                 .set(TRANSACTION.DESCRIPTION, transaction.getDescription())
+                .onConflict(TRANSACTION.INTERNAL_TRANSFER_ID)
+                .doNothing()
                 .returning()
-                .fetchSingle(MAPPER))
-                .peekLeft(failure -> log.error("Failed to insert new transaction", failure.cause()));
+                .fetchOptional(MAPPER);
     }
 
     public Either<Failure, Transaction> recordFailedEvent(Transaction transaction) {
@@ -98,15 +162,44 @@ public class TransactionRepositoryImpl implements TransactionRepository {
     }
 
     @Override
-    public Either<Failure, List<Transaction>> getSettlementEligibleTransactions(int limit) {
-        return Eithers.of(() -> dsl.selectFrom(TRANSACTION)
-                .where(TRANSACTION.SETTLEMENT_STATUS.isNull())
-                .and(TRANSACTION.SCHEDULED_SETTLEMENT_TIME.lessOrEqual(OffsetDateTime.now()))
-                .limit(limit)
-                .forUpdate()
-                .skipLocked()
-                .fetch(MAPPER));
+    public Either<Failure, List<Transaction>> claimSettlementEligibleTransactions(String nodeId, Duration lease, int maxAttempts, int limit) {
+        return claimSettlementEligibleTransactions(nodeId, lease, maxAttempts, limit, DSL.noCondition());
+    }
 
+    @Override
+    public Either<Failure, List<Transaction>> claimSettlementEligibleTransactions(String nodeId, Duration lease, int maxAttempts, int limit, Collection<Transaction.Status> statuses) {
+        return claimSettlementEligibleTransactions(nodeId, lease, maxAttempts, limit, TRANSACTION.STATUS.in(statuses.stream()
+                .map(status -> TransactionStatus.valueOf(status.getValue()))
+                .toList()));
+    }
+
+    private Either<Failure, List<Transaction>> claimSettlementEligibleTransactions(String nodeId, Duration lease, int maxAttempts, int limit, Condition condition) {
+        var now = OffsetDateTime.now();
+        // the claim is a single statement: rows locked by another claim are skipped and the claim is committed with it
+        return Eithers.of(() -> dsl.update(TRANSACTION)
+                .set(TRANSACTION.SETTLEMENT_CLAIMED_BY, nodeId)
+                .set(TRANSACTION.SETTLEMENT_CLAIM_EXPIRES_AT, now.plus(lease))
+                .where(TRANSACTION.ID.in(DSL.select(TRANSACTION.ID)
+                        .from(TRANSACTION)
+                        .where(TRANSACTION.SETTLEMENT_STATUS.isNull())
+                        .and(TRANSACTION.SCHEDULED_SETTLEMENT_TIME.lessOrEqual(now))
+                        .and(TRANSACTION.SETTLEMENT_CLAIM_EXPIRES_AT.isNull().or(TRANSACTION.SETTLEMENT_CLAIM_EXPIRES_AT.lessThan(now)))
+                        .and(maxAttempts > 0 ? DSL.coalesce(TRANSACTION.SETTLEMENT_ATTEMPTS, 0).lessThan(maxAttempts) : DSL.noCondition())
+                        .and(condition)
+                        // a transfer still waiting on the provider is not ready to settle
+                        .andNotExists(DSL.selectOne()
+                                .from(TRANSFER_OUTBOX)
+                                .where(TRANSFER_OUTBOX.TRANSACTION_ID.eq(TRANSACTION.ID)))
+                        // nor is one whose processing broke off, until recovery has given it its final status
+                        .andNotExists(DSL.selectOne()
+                                .from(RECOVERY_TASK)
+                                .where(RECOVERY_TASK.TRANSACTION_ID.eq(TRANSACTION.ID)))
+                        .orderBy(TRANSACTION.SCHEDULED_SETTLEMENT_TIME)
+                        .limit(limit)
+                        .forUpdate()
+                        .skipLocked()))
+                .returning()
+                .fetch(MAPPER));
     }
 
     @Override
@@ -150,13 +243,49 @@ public class TransactionRepositoryImpl implements TransactionRepository {
     }
 
     @Override
-    public Either<Failure, Void> incrementSettlementRetryCount(Long transactionId) {
+    public Either<Failure, Integer> markSettlementStatuses(Collection<Long> ids, String message, Transaction.SettlementStatus newStatus, Transaction.Status transactionStatus, Transaction.Status oldStatus) {
+        var marked = idsOf(ids);
         return Eithers.of(() -> dsl.update(TRANSACTION)
+                .set(TRANSACTION.SETTLEMENT_STATUS, newStatus.getValue())
+                .set(TRANSACTION.SETTLEMENT_MESSAGE, message)
                 .set(TRANSACTION.SETTLEMENT_ATTEMPTS, TRANSACTION.SETTLEMENT_ATTEMPTS.plus(1))
+                .set(TRANSACTION.STATUS, TransactionStatus.valueOf(transactionStatus.getValue()))
+                .set(TRANSACTION.UPDATED_AT, OffsetDateTime.now())
+                .from(marked)
+                .where(TRANSACTION.ID.eq(marked.field("id", Long.class)))
+                .and(TRANSACTION.STATUS.eq(TransactionStatus.valueOf(oldStatus.getValue())))
+                .execute());
+    }
+
+    @Override
+    public Either<Failure, Integer> markSuccessfulSettlementStatuses(Collection<Long> ids, Transaction.Status oldStatus) {
+        var settled = idsOf(ids);
+        var now = OffsetDateTime.now();
+        return Eithers.of(() -> dsl.update(TRANSACTION)
+                .set(TRANSACTION.SETTLEMENT_STATUS, Transaction.SettlementStatus.SETTLED.getValue())
+                .set(TRANSACTION.UPDATED_AT, now)
+                .set(TRANSACTION.SETTLEMENT_ATTEMPTS, TRANSACTION.SETTLEMENT_ATTEMPTS.plus(1))
+                .set(TRANSACTION.ACTUAL_SETTLEMENT_TIME, now)
+                .from(settled)
+                .where(TRANSACTION.ID.eq(settled.field("id", Long.class)))
+                .and(TRANSACTION.STATUS.eq(TransactionStatus.valueOf(oldStatus.getValue())))
+                .execute());
+    }
+
+    @Override
+    public Either<Failure, Transaction> incrementSettlementRetryCount(Long transactionId, int maxAttempts, String message) {
+        var attempts = DSL.coalesce(TRANSACTION.SETTLEMENT_ATTEMPTS, 0).plus(1);
+        var exhausted = maxAttempts > 0 ? attempts.ge(maxAttempts) : DSL.falseCondition();
+        return Eithers.of(() -> dsl.update(TRANSACTION)
+                .set(TRANSACTION.SETTLEMENT_ATTEMPTS, attempts)
+                .set(TRANSACTION.SETTLEMENT_STATUS, DSL.when(exhausted, DSL.inline(Transaction.SettlementStatus.REQUIRE_INTERVENTION.getValue()))
+                        .otherwise(TRANSACTION.SETTLEMENT_STATUS))
+                .set(TRANSACTION.SETTLEMENT_MESSAGE, DSL.when(exhausted, DSL.val(message))
+                        .otherwise(TRANSACTION.SETTLEMENT_MESSAGE))
                 .set(TRANSACTION.UPDATED_AT, OffsetDateTime.now())
                 .where(TRANSACTION.ID.eq(transactionId))
-                .execute())
-                .map(__ -> null);
+                .returning()
+                .fetchSingle(MAPPER));
     }
 
     @Override
@@ -171,6 +300,19 @@ public class TransactionRepositoryImpl implements TransactionRepository {
                 .fetchSingle(MAPPER));
     }
 
+    @Override
+    public Either<Failure, Transaction> updateLockStatus(Long id, Long lockId, String message, Transaction.Status newStatus, Transaction.Status oldStatus) {
+        return Eithers.of(() -> dsl.update(TRANSACTION)
+                .set(TRANSACTION.STATUS, DSL.val(newStatus.getValue(), TRANSACTION.STATUS))
+                .set(TRANSACTION.LOCKED_ID, lockId)
+                .set(TRANSACTION.FAILURE_REASON, message)
+                .set(TRANSACTION.UPDATED_AT, OffsetDateTime.now())
+                .where(TRANSACTION.ID.eq(id)
+                        .and(TRANSACTION.STATUS.eq(TransactionStatus.valueOf(oldStatus.getValue()))))
+                .returning()
+                .fetchSingle(MAPPER));
+    }
+
     @Override
     public Either<Failure, Transaction> updateStatus(Long id, String  message, Transaction.Status newStatus, Transaction.Status oldStatus) {
         return Eithers.of(() -> dsl.update(TRANSACTION)
@@ -190,6 +332,20 @@ public class TransactionRepositoryImpl implements TransactionRepository {
                 .fetchSingle(MAPPER));
     }
 
+    @Override
+    public Either<Failure, Optional<Transaction>> findTransaction(String internalId) {
+        return Eithers.of(() -> dsl.selectFrom(TRANSACTION)
+                .where(TRANSACTION.INTERNAL_TRANSFER_ID.eq(internalId))
+                .fetchOptional(MAPPER));
+    }
+
+    @Override
+    public Either<Failure, List<Transaction>> getTransactions(List<Long> ids) {
+        return Eithers.of(() -> dsl.selectFrom(TRANSACTION)
+                .where(TRANSACTION.ID.in(ids))
+                .fetch(MAPPER));
+    }
+
     public Either<Failure, Transaction> getTransaction(String referenceId, String fromCurrency, String toCurrency) {
         return Eithers.of(() -> dsl.selectFrom(TRANSACTION)
                 .where(TRANSACTION.TRANSFER_ID.eq(referenceId))
@@ -197,4 +353,31 @@ public class TransactionRepositoryImpl implements TransactionRepository {
                 .and(TRANSACTION.TO_CURRENCY.eq(toCurrency))
                 .fetchSingle(MAPPER));
     }
+
+    @Override
+    public Either<Failure, List<CompletedTransaction>> getCompletedAfter(OffsetDateTime completedAt, long id, int limit) {
+        // a range scan of idx_transaction_completed
+        return Eithers.of(() -> dsl.select(TRANSACTION.ID, TRANSACTION.TO_CURRENCY, TRANSACTION.TO_AMOUNT, TRANSACTION.MARGIN, TRANSACTION.COMPLETED_AT)
+                .from(TRANSACTION)
+                .where(TRANSACTION.STATUS.eq(TransactionStatus.completed))
+                .and(DSL.row(TRANSACTION.COMPLETED_AT, TRANSACTION.ID).gt(completedAt, id))
+                .orderBy(TRANSACTION.COMPLETED_AT, TRANSACTION.ID)
+                .limit(limit)
+                .fetch(record -> new CompletedTransaction(
+                        record.get(TRANSACTION.ID),
+                        record.get(TRANSACTION.TO_CURRENCY),
+                        record.get(TRANSACTION.TO_AMOUNT),
+                        record.get(TRANSACTION.MARGIN),
+                        record.get(TRANSACTION.COMPLETED_AT))));
+    }
+
+    /**
+     * Ids as a VALUES table to join an update with, one row per id
+     */
+    private static Table<?> idsOf(Collection<Long> ids) {
+        return DSL.values(ids.stream()
+                        .map(DSL::row)
+                        .toArray(Row1[]::new))
+                .as("ids", "id");
+    }
 }
@@ -0,0 +1,148 @@
+package com.spherelabs.repository.impl;
+
+import com.assetiq.jooq.enums.TransactionStatus;
+import com.assetiq.jooq.tables.records.TransferOutboxRecord;
+import com.spherelabs.error.Failure;
+import com.spherelabs.model.Transaction;
+import com.spherelabs.model.TransferOutboxEntry;
+import com.spherelabs.repository.TransferOutboxRepository;
+import com.spherelabs.utils.Eithers;
+import io.vavr.control.Either;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.jooq.DSLContext;
+import org.jooq.RecordMapper;
+import org.jooq.Row3;
+import org.jooq.Row4;
+import org.jooq.impl.DSL;
+import org.springframework.stereotype.Repository;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.List;
+
+import static com.assetiq.jooq.Tables.TRANSACTION;
+import static com.assetiq.jooq.Tables.TRANSFER_OUTBOX;
+
+@RequiredArgsConstructor
+@Repository
+@Slf4j
+public class TransferOutboxRepositoryImpl implements TransferOutboxRepository {
+    private final DSLContext dsl;
+    private static final RecordMapper<TransferOutboxRecord, TransferOutboxEntry> MAPPER = record -> new TransferOutboxEntry(
+            record.getId(),
+            record.getTransactionId(),
+            record.getAttempts(),
+            record.getNextAttemptAt(),
+            record.getLastError()
+    );
+
+    @Override
+    public Either<Failure, TransferOutboxEntry> enqueue(Long transactionId) {
+        return Eithers.of(() -> enqueue(dsl, transactionId));
+    }
+
+    @Override
+    public TransferOutboxEntry enqueue(DSLContext ctx, Long transactionId) {
+        return ctx.insertInto(TRANSFER_OUTBOX)
+                .set(TRANSFER_OUTBOX.TRANSACTION_ID, transactionId)
+                .returning()
+                .fetchSingle(MAPPER);
+    }
+
+    @Override
+    public Either<Failure, List<TransferOutboxEntry>> claimDue(int limit, Duration lease) {
+        var now = OffsetDateTime.now();
+        return Eithers.of(() -> dsl.update(TRANSFER_OUTBOX)
+                .set(TRANSFER_OUTBOX.NEXT_ATTEMPT_AT, now.plus(lease))
+                .where(TRANSFER_OUTBOX.ID.in(DSL.select(TRANSFER_OUTBOX.ID)
+                        .from(TRANSFER_OUTBOX)
+                        .where(TRANSFER_OUTBOX.NEXT_ATTEMPT_AT.lessOrEqual(now))
+                        .orderBy(TRANSFER_OUTBOX.NEXT_ATTEMPT_AT)
+                        .limit(limit)
+                        .forUpdate()
+                        .skipLocked()))
+                .returning()
+                .fetch(MAPPER));
+    }
+
+    @Override
+    public Either<Failure, Void> complete(List<Transaction> transactions) {
+        if (transactions.isEmpty()) {
+            return Either.right(null);
+        }
+
+        @SuppressWarnings("unchecked")
+        Row3<Long, TransactionStatus, String>[] rows = transactions.stream()
+                .map(transaction -> DSL.row(
+                        DSL.val(transaction.getId()),
+                        DSL.val(TransactionStatus.valueOf(transaction.getStatus().getValue())),
+                        DSL.val(transaction.getFailureReason(), String.class)))
+                .toArray(Row3[]::new);
+        var ids = transactions.stream().map(Transaction::getId).toList();
+
+        return Eithers.of(() -> {
+            dsl.transaction(config -> {
+                var results = DSL.values(rows).as("result", "id", "status", "failure_reason");
+                // one statement for the whole batch. Only transactions still waiting on the provider are touched
+                DSL.using(config)
+                        .update(TRANSACTION)
+                        .set(TRANSACTION.STATUS, results.field("status", TRANSACTION.STATUS.getDataType()))
+                        .set(TRANSACTION.FAILURE_REASON, results.field("failure_reason", String.class))
+                        .set(TRANSACTION.UPDATED_AT, OffsetDateTime.now())
+                        .from(results)
+                        .where(TRANSACTION.ID.eq(results.field("id", Long.class)))
+                        .and(TRANSACTION.STATUS.eq(TransactionStatus.funds_locked))
+                        .execute();
+
+                DSL.using(config)
+                        .deleteFrom(TRANSFER_OUTBOX)
+                        .where(TRANSFER_OUTBOX.TRANSACTION_ID.in(ids))
+                        .execute();
+            });
+            return null;
+        });
+    }
+
+    @Override
+    public Either<Failure, Void> reschedule(List<TransferOutboxEntry> entries) {
+        if (entries.isEmpty()) {
+            return Either.right(null);
+        }
+
+        @SuppressWarnings("unchecked")
+        Row4<Long, Integer, OffsetDateTime, String>[] rows = entries.stream()
+                .map(entry -> DSL.row(
+                        DSL.val(entry.id()),
+                        DSL.val(entry.attempts()),
+                        DSL.val(entry.nextAttemptAt()),
+                        DSL.val(entry.lastError(), String.class)))
+                .toArray(Row4[]::new);
+
+        return Eithers.of(() -> {
+            var retries = DSL.values(rows).as("retry", "id", "attempts", "next_attempt_at", "last_error");
+            dsl.update(TRANSFER_OUTBOX)
+                    .set(TRANSFER_OUTBOX.ATTEMPTS, retries.field("attempts", Integer.class))
+                    .set(TRANSFER_OUTBOX.NEXT_ATTEMPT_AT, retries.field("next_attempt_at", OffsetDateTime.class))
+                    .set(TRANSFER_OUTBOX.LAST_ERROR, retries.field("last_error", String.class))
+                    .from(retries)
+                    .where(TRANSFER_OUTBOX.ID.eq(retries.field("id", Long.class)))
+                    .execute();
+            return null;
+        });
+    }
+
+    @Override
+    public Either<Failure, Void> remove(List<TransferOutboxEntry> entries) {
+        if (entries.isEmpty()) {
+            return Either.right(null);
+        }
+
+        return Eithers.of(() -> {
+            dsl.deleteFrom(TRANSFER_OUTBOX)
+                    .where(TRANSFER_OUTBOX.ID.in(entries.stream().map(TransferOutboxEntry::id).toList()))
+                    .execute();
+            return null;
+        });
+    }
+}
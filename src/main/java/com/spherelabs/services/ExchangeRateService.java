@@ -7,6 +7,7 @@ import io.vavr.control.Either;
 import java.math.BigDecimal;
 import java.time.OffsetDateTime;
 import java.time.ZonedDateTime;
+import java.util.List;
 
 /**
  * Exchange rate service
@@ -24,6 +25,34 @@ public interface ExchangeRateService {
      */
     Either<Failure, ExchangeRate> getLatestRate(String currencyPair);
 
+    /**
+     * Get latest exchange rate from one currency to another, derived through a pivot currency when the pair is not quoted
+     *
+     * @param currencyPair  pair of currencies to exchange eg USD/EUR
+     * @return Either a Failure in case of an error or the exchange rate, as old as the older leg when derived
+     */
+    Either<Failure, ExchangeRate> getConversionRate(String currencyPair);
+
+    /**
+     * Get the exchange rate that was effective at an instant
+     *
+     * @param currencyPair  pair of currencies to exchange eg USD/EUR
+     * @param at the instant
+     * @return Either a Failure in case of an error or the exchange rate
+     */
+    Either<Failure, ExchangeRate> getRateAt(String currencyPair, OffsetDateTime at);
+
+    /**
+     * Get the exchange rates of a pair that became effective between two instants, both included
+     *
+     * @param currencyPair  pair of currencies to exchange eg USD/EUR
+     * @param from first instant
+     * @param to last instant
+     * @param limit most rates returned, oldest first
+     * @return Either a Failure in case of an error or the exchange rates
+     */
+    Either<Failure, List<ExchangeRate>> getRates(String currencyPair, OffsetDateTime from, OffsetDateTime to, int limit);
+
     /**
      * Add exchange rate pair
      *
@@ -34,4 +63,12 @@ public interface ExchangeRateService {
      */
 
     Either<Failure, ExchangeRate> addRate(String currencyPair, BigDecimal rate, OffsetDateTime timestamp);
+
+    /**
+     * Add exchange rates received together. Each rate is validated on its own
+     *
+     * @param exchangeRates rates in the order received
+     * @return the outcome of every rate, in the same order
+     */
+    List<Either<Failure, ExchangeRate>> addRates(List<ExchangeRate> exchangeRates);
 }
@@ -5,6 +5,8 @@ import com.spherelabs.model.LiquidityMovement;
 import io.vavr.control.Either;
 
 import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Set;
 
 public interface LiquidityService {
     /**
@@ -23,6 +25,13 @@ public interface LiquidityService {
      */
     Either<Failure, Long> debitLockedBalance(long lockId);
 
+    /**
+     * Debit the locked balance for several locks at once
+     * @param lockIds The lock ids
+     * @return Either a Failure or the ids of the locks that are debited
+     */
+    Either<Failure, Set<Long>> debitLockedBalances(Collection<Long> lockIds);
+
     /**
      * Return the locked funds to available balance
      *
@@ -30,4 +39,11 @@ public interface LiquidityService {
      */
 
     Either<Failure, Long> unlockBalance(Long lockedId);
+
+    /**
+     * Return the locked funds of several locks to available balance at once
+     * @param lockIds The lock ids
+     * @return Either a Failure or the ids of the locks that are unlocked
+     */
+    Either<Failure, Set<Long>> unlockBalances(Collection<Long> lockIds);
 }
@@ -1,7 +1,9 @@
 package com.spherelabs.services;
 
 import com.spherelabs.error.Failure;
+import com.spherelabs.model.Quote;
 import com.spherelabs.model.Transaction;
+import com.spherelabs.model.api.QuoteRequest;
 import com.spherelabs.model.api.TransferRequest;
 import io.vavr.control.Either;
 
@@ -16,5 +18,12 @@ public interface TransactionService {
      */
     Either<Failure, Transaction> transfer(TransferRequest request);
 
+    /**
+     * Price a transfer. A transfer referencing the quote before it expires gets this price
+     * @param request Quote request
+     * @return failure or the quote
+     */
+    Either<Failure, Quote> quote(QuoteRequest request);
+
 
 }
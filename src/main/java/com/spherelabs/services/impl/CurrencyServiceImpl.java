@@ -1,5 +1,6 @@
 package com.spherelabs.services.impl;
 
+import com.spherelabs.config.CacheConfig;
 import com.spherelabs.error.Failure;
 import com.spherelabs.model.Currency;
 import com.spherelabs.repository.CurrencyRepository;
@@ -18,7 +19,8 @@ import java.util.List;
 public class CurrencyServiceImpl implements CurrencyService {
     private final CurrencyRepository repository;
 
-    @Cacheable(value = "currencyCache", key = "'supportedCurrencies'",  condition = "#result.isRight()")
+    // failures are not cached. The result is not known yet when a condition is evaluated
+    @Cacheable(value = CacheConfig.CURRENCY_CACHE, key = "'supportedCurrencies'", unless = "#result.isLeft()")
     @Override
     public Either<Failure, List<Currency>> getSupportedCurrencies() {
         return repository.getAllCurrencies()
@@ -1,10 +1,14 @@
 package com.spherelabs.services.impl;
 
+import com.spherelabs.cache.CrossRateEngine;
+import com.spherelabs.cache.CurrencyRegistryCache;
+import com.spherelabs.cache.LatestRateCache;
+import com.spherelabs.cache.RateHistoryIndex;
 import com.spherelabs.error.Failure;
 import com.spherelabs.error.FailureCode;
+import com.spherelabs.model.CurrencyRegistry;
 import com.spherelabs.model.ExchangeRate;
 import com.spherelabs.repository.ExchangeRateRepository;
-import com.spherelabs.services.CurrencyService;
 import com.spherelabs.services.ExchangeRateService;
 import io.vavr.control.Either;
 import lombok.RequiredArgsConstructor;
@@ -13,6 +17,10 @@ import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
 import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static com.spherelabs.error.FailureCode.OLD_FX_RATE;
 import static com.spherelabs.error.FailureCode.UNSUPPORTED_CURRENCY_PAIR;
@@ -22,48 +30,126 @@ import static com.spherelabs.error.FailureCode.UNSUPPORTED_CURRENCY_PAIR;
 @Slf4j
 public class ExchangeRateServiceImpl implements ExchangeRateService {
     private final ExchangeRateRepository exchangeRateRepository;
-    private final CurrencyService currencyService;
+    private final CurrencyRegistryCache currencyRegistry;
+    private final LatestRateCache latestRateCache;
+    private final RateIngestionBuffer rateIngestionBuffer;
+    private final RateHistoryIndex rateHistoryIndex;
+    private final CrossRateEngine crossRateEngine;
+
+    // timestamp of the latest effective rate accepted per pair. Covers rates still waiting to be written
+    private final ConcurrentMap<String, OffsetDateTime> latestTimestamps = new ConcurrentHashMap<>();
 
     /**
-     * This method caches the successful result to avoid constant database reads (ideal case)
+     * Reads from the in-memory latest rate cache. The database is only hit when the pair has not been seen by this node yet
      */
     @Override
     public Either<Failure, ExchangeRate> getLatestRate(String currencyPair) {
-        return exchangeRateRepository.getLatestRate(currencyPair)
-                .map(exchangeRate -> new ExchangeRate(exchangeRate.getCurrencyPair(), exchangeRate.getRate(), exchangeRate.getEffectiveDate()));
+        return latestRateCache.get(currencyPair)
+                .<Either<Failure, ExchangeRate>>map(Either::right)
+                .orElseGet(() -> exchangeRateRepository.getLatestRate(currencyPair)
+                        .map(ExchangeRate::from)
+                        .peek(latestRateCache::put));
+    }
+
+    /**
+     * Quoted rates come first. A derived rate is only used when this node has no rate of the pair itself, the
+     * database is asked last in case the pair is quoted but has not been seen by this node yet
+     */
+    @Override
+    public Either<Failure, ExchangeRate> getConversionRate(String currencyPair) {
+        return latestRateCache.get(currencyPair)
+                .or(() -> crossRateEngine.get(currencyPair))
+                .<Either<Failure, ExchangeRate>>map(Either::right)
+                .orElseGet(() -> exchangeRateRepository.getLatestRate(currencyPair)
+                        .map(ExchangeRate::from)
+                        .peek(latestRateCache::put));
+    }
+
+    /**
+     * Reads from the in-memory rate history index. The database is only hit for instants the index does not cover
+     */
+    @Override
+    public Either<Failure, ExchangeRate> getRateAt(String currencyPair, OffsetDateTime at) {
+        return rateHistoryIndex.rateAt(currencyPair, at.toInstant())
+                .<Either<Failure, ExchangeRate>>map(Either::right)
+                .orElseGet(() -> exchangeRateRepository.getRateAt(currencyPair, at)
+                        .map(ExchangeRate::from));
+    }
+
+    @Override
+    public Either<Failure, List<ExchangeRate>> getRates(String currencyPair, OffsetDateTime from, OffsetDateTime to, int limit) {
+        return rateHistoryIndex.rates(currencyPair, from.toInstant(), to.toInstant(), limit)
+                .<Either<Failure, List<ExchangeRate>>>map(Either::right)
+                .orElseGet(() -> exchangeRateRepository.getRates(currencyPair, from, to, limit)
+                        .map(exchangeRates -> exchangeRates.stream().map(ExchangeRate::from).toList()));
     }
 
     /**
-     * This method caches the successful result to avoid constant database writes
+     * Successful inserts are written through to the latest rate cache
      */
     @Override
     public Either<Failure, ExchangeRate> addRate(String currencyPair, BigDecimal rate, OffsetDateTime timestamp) {
+        return addRates(List.of(new ExchangeRate(currencyPair, rate, timestamp))).getFirst();
+    }
+
+    /**
+     * Rates are checked against the latest accepted timestamp of their pair in memory and handed to the
+     * {@link RateIngestionBuffer}, which writes them in batches. Returns once every rate has been written or rejected
+     */
+    @Override
+    public List<Either<Failure, ExchangeRate>> addRates(List<ExchangeRate> exchangeRates) {
+        var currencies = currencyRegistry.get();
+        var pending = exchangeRates.stream()
+                .map(exchangeRate -> currencies
+                        .filterOrElse(supported -> isSupported(supported, exchangeRate.currencyPair()), ignored -> Failure.from(UNSUPPORTED_CURRENCY_PAIR))
+                        .flatMap(__ -> acceptTimestamp(exchangeRate))
+                        .map(previous -> submit(exchangeRate, previous)))
+                .toList();
+
+        return pending.stream()
+                .map(submitted -> submitted.flatMap(CompletableFuture::join))
+                .peek(added -> added
+                        .peekLeft(failure -> log.error("Failed to add rate. Reason: {}", failure.message()))
+                        .peek(exchangeRate -> log.debug("Added rate for currency pair: {}. Rate {}", exchangeRate.currencyPair(), exchangeRate)))
+                .toList();
+    }
+
+    private static boolean isSupported(CurrencyRegistry currencies, String currencyPair) {
         //this value has been validated at input in the controller
         String[] pair = currencyPair.split("/");
-        log.debug("Adding rate for currency pair: {}", currencyPair);
-        return currencyService.getSupportedCurrencies()
-                .filterOrElse(currencies -> currencies.stream().anyMatch(currency -> currency.code().equals(pair[0]) || currency.code().equals(pair[1])),
-                        ignored -> Failure.from(UNSUPPORTED_CURRENCY_PAIR))
-                .flatMap(__ -> validateTimestamp(currencyPair, timestamp) )
-                .filterOrElse(valid -> valid, __ -> Failure.from(OLD_FX_RATE))
-                .flatMap(__ -> exchangeRateRepository.addRate(currencyPair, rate, timestamp))
-                .map(exchangeRate -> new ExchangeRate(exchangeRate.getCurrencyPair(), exchangeRate.getRate(), exchangeRate.getEffectiveDate()))
-                .peekLeft(failure -> log.error("Failed to add rate for currency pair: {}. Reason: {}", currencyPair, failure.message()))
-                .peek(exchangeRate -> log.debug("Added rate for currency pair: {}. Rate {}", currencyPair, exchangeRate));
+        return currencies.contains(pair[0]) || currencies.contains(pair[1]);
     }
 
-    private Either<Failure, Boolean> validateTimestamp(String currencyPair, OffsetDateTime timestamp) {
+    /**
+     * A rate is accepted when it is newer than the latest effective rate of its pair, whether that rate is still
+     * waiting to be written or was loaded into the cache. Rates scheduled for the future do not move the mark,
+     * so rates in between can still be sent
+     *
+     * @return the mark of the pair before the rate was accepted
+     */
+    private Either<Failure, OffsetDateTime> acceptTimestamp(ExchangeRate exchangeRate) {
+        var currencyPair = exchangeRate.currencyPair();
         var latestRate = this.getLatestRate(currencyPair);
-        if (latestRate.isLeft()) {
-            if (FailureCode.NOT_FOUND.getCode().equals(latestRate.getLeft().code())) {
-                log.debug("No rate found for currency pair: {}. Safe to insert", currencyPair);
-                return Either.right(true);
-            }
+        if (latestRate.isLeft() && !FailureCode.NOT_FOUND.getCode().equals(latestRate.getLeft().code())) {
             log.error("Failed to get latest rate for currency pair: {}. Reason: {}", currencyPair, latestRate.getLeft().message(), latestRate.getLeft().cause());
             return Either.left(latestRate.getLeft());
         }
+        var stored = latestRate.map(ExchangeRate::timestamp).getOrElse(OffsetDateTime.MIN);
+
+        var previous = new OffsetDateTime[1];
+        var now = OffsetDateTime.now();
+        latestTimestamps.compute(currencyPair, (__, pending) -> {
+            var latest = pending == null || pending.isBefore(stored) ? stored : pending;
+            previous[0] = latest.isBefore(exchangeRate.timestamp()) ? latest : null;
+            return previous[0] != null && !exchangeRate.timestamp().isAfter(now) ? exchangeRate.timestamp() : latest;
+        });
+        return previous[0] != null ? Either.right(previous[0]) : Either.left(Failure.from(OLD_FX_RATE));
+    }
 
-        // returns true if timestamp sent in api is after the last timestamp in the database
-        return Either.right(latestRate.get().timestamp().isBefore(timestamp));
+    private CompletableFuture<Either<Failure, ExchangeRate>> submit(ExchangeRate exchangeRate, OffsetDateTime previous) {
+        // a rate that was not written must not block resending it, the mark goes back unless a newer rate moved it since
+        return rateIngestionBuffer.submit(exchangeRate)
+                .thenApply(added -> added.peekLeft(__ -> latestTimestamps.computeIfPresent(exchangeRate.currencyPair(),
+                        (pair, latest) -> latest.equals(exchangeRate.timestamp()) ? previous : latest)));
     }
 }
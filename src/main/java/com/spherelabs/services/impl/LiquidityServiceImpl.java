@@ -6,14 +6,29 @@ import com.spherelabs.repository.LiquidityRepository;
 import com.spherelabs.services.LiquidityService;
 import io.vavr.control.Either;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Repository;
 
 import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Set;
 
 @RequiredArgsConstructor
 @Repository
+@Slf4j
 public class LiquidityServiceImpl implements LiquidityService {
     private final LiquidityRepository liquidityRepository;
+    private final LockBatcher lockBatcher;
+
+    @Value("${app.liquidity-shards:8}")
+    private int shards;
+
+    @Value("${app.lock-batching-enabled:false}")
+    private boolean lockBatchingEnabled;
 
     @Override
     public Either<Failure, BigDecimal> getBalance(String currency) {
@@ -22,6 +37,9 @@ public class LiquidityServiceImpl implements LiquidityService {
 
     @Override
     public Either<Failure, Long> lockBalance(LiquidityMovement liquidityMovement) {
+        if (lockBatchingEnabled) {
+            return lockBatcher.lock(liquidityMovement);
+        }
         return liquidityRepository.lockBalance(liquidityMovement);
     }
 
@@ -30,8 +48,28 @@ public class LiquidityServiceImpl implements LiquidityService {
         return liquidityRepository.debitLockedBalance(lockId);
     }
 
+    @Override
+    public Either<Failure, Set<Long>> debitLockedBalances(Collection<Long> lockIds) {
+        return liquidityRepository.debitLockedBalances(lockIds);
+    }
+
     @Override
     public Either<Failure, Long> unlockBalance(Long lockedId) {
         return liquidityRepository.unlockBalance(lockedId);
     }
+
+    @Override
+    public Either<Failure, Set<Long>> unlockBalances(Collection<Long> lockIds) {
+        return liquidityRepository.unlockBalances(lockIds);
+    }
+
+    /**
+     * Locks drain shards unevenly over time. Spreading them again keeps most locks on the fast path
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(initialDelayString = "${app.liquidity-shard-spread-milliseconds:60000}", fixedRateString = "${app.liquidity-shard-spread-milliseconds:60000}")
+    public void spreadShards() {
+        liquidityRepository.spreadShards(shards)
+                .peekLeft(failure -> log.error("Failed to spread liquidity pool shards. Reason: {}", failure.message(), failure.cause()));
+    }
 }
@@ -0,0 +1,190 @@
+package com.spherelabs.services.impl;
+
+import com.spherelabs.error.Failure;
+import com.spherelabs.error.FailureCode;
+import com.spherelabs.model.LiquidityMovement;
+import com.spherelabs.repository.LiquidityRepository;
+import com.spherelabs.utils.Eithers;
+import io.vavr.control.Either;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Group commit for balance locks.
+ * <p>
+ *     Lock requests for the same currency wait for a short window and are applied together:
+ *     one shard update of the summed amount and one multi-row ledger insert.
+ *     Every caller still gets its own lock id. Requests that do not fit in the batch are locked one at a time
+ *     on the caller thread, which is also where INSUFFICIENT_FUNDS is decided, and so are requests for a transaction
+ *     that already has one in the batch since the lock ids of a batch are by transaction id.
+ *     A caller waits app.lock-batch-timeout for its batch. A request that no worker has taken by then is dropped
+ *     and fails, one that is being applied is waited for.
+ *     Only locks taken through LiquidityService go through the batcher. A transfer recorded with
+ *     app.single-transaction-transfer locks its funds in the database transaction that inserts it, outside any batch.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class LockBatcher {
+    private final LiquidityRepository liquidityRepository;
+    private final ConcurrentMap<String, BlockingQueue<PendingLock>> queues = new ConcurrentHashMap<>();
+    private final List<Thread> workers = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+    @Value("${app.lock-batch-window-micros:300}")
+    private long windowMicros;
+
+    @Value("${app.lock-batch-max-size:64}")
+    private int maxBatchSize;
+
+    @Value("${app.lock-batch-workers:2}")
+    private int workersPerCurrency;
+
+    @Value("${app.lock-batch-timeout:5s}")
+    private Duration timeout;
+
+    public Either<Failure, Long> lock(LiquidityMovement liquidityMovement) {
+        if (!running) {
+            return Either.left(Failure.from(FailureCode.UNKNOWN_ERROR));
+        }
+
+        var pending = new PendingLock(liquidityMovement, new CompletableFuture<>(), new AtomicBoolean());
+        var queue = queueFor(liquidityMovement.currencyCode());
+        queue.add(pending);
+        if (!running) {
+            // stop may have drained the queue before the request was added
+            abortQueued(queue);
+        }
+        return await(pending)
+                .flatMap(lockId -> lockId.<Either<Failure, Long>>map(Either::right)
+                        .orElseGet(() -> liquidityRepository.lockBalance(liquidityMovement)));
+    }
+
+    private Either<Failure, Optional<Long>> await(PendingLock pending) {
+        try {
+            return pending.result().get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            if (pending.take()) {
+                log.warn("No lock batch took the {} movement of transaction {} within {}", pending.liquidityMovement().currencyCode(),
+                        pending.liquidityMovement().transactionId(), timeout);
+                return Either.left(Failure.from(FailureCode.UNKNOWN_ERROR));
+            }
+            // a worker is applying the batch of the request, its result is on the way
+            return Eithers.of(() -> pending.result().join()).flatMap(locked -> locked);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Either.left(Failure.from(FailureCode.UNKNOWN_ERROR));
+        } catch (ExecutionException e) {
+            return Either.left(Failure.of(FailureCode.UNKNOWN_ERROR.getMessage(), FailureCode.UNKNOWN_ERROR.getCode(), e.getCause()));
+        }
+    }
+
+    private BlockingQueue<PendingLock> queueFor(String currency) {
+        return queues.computeIfAbsent(currency, __ -> {
+            var queue = new LinkedBlockingQueue<PendingLock>();
+            for (int i = 0; i < workersPerCurrency; i++) {
+                workers.add(Thread.ofVirtual()
+                        .name("lock-batcher-%s-%d".formatted(currency, i))
+                        .start(() -> drain(currency, queue)));
+            }
+            return queue;
+        });
+    }
+
+    private void drain(String currency, BlockingQueue<PendingLock> queue) {
+        var batch = new ArrayList<PendingLock>(maxBatchSize);
+        while (running) {
+            try {
+                batch.add(queue.take());
+                var deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(windowMicros);
+                while (batch.size() < maxBatchSize) {
+                    var next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                apply(currency, batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                batch.forEach(PendingLock::abort);
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+        // requests added while the last batch was applied
+        abortQueued(queue);
+    }
+
+    private void apply(String currency, List<PendingLock> batch) {
+        var transactionIds = new HashSet<String>();
+        var admitted = new ArrayList<PendingLock>(batch.size());
+        for (var pending : batch) {
+            if (!pending.take()) {
+                // its caller has stopped waiting
+                continue;
+            }
+            if (transactionIds.add(pending.liquidityMovement().transactionId())) {
+                admitted.add(pending);
+            } else {
+                pending.result().complete(Either.right(Optional.empty()));
+            }
+        }
+        if (admitted.isEmpty()) {
+            return;
+        }
+
+        var locked = liquidityRepository.lockBalances(currency, admitted.stream().map(PendingLock::liquidityMovement).toList())
+                .peekLeft(failure -> log.error("Failed to lock batch of {} {} movements. Reason: {}", admitted.size(), currency, failure.message(), failure.cause()));
+        log.debug("Locked {} of {} {} movements in one batch", locked.map(lockIds -> lockIds.size()).getOrElse(0), admitted.size(), currency);
+
+        admitted.forEach(pending -> pending.result().complete(
+                locked.map(lockIds -> Optional.ofNullable(lockIds.get(pending.liquidityMovement().transactionId())))));
+    }
+
+    private static void abortQueued(BlockingQueue<PendingLock> queue) {
+        var remaining = new ArrayList<PendingLock>();
+        queue.drainTo(remaining);
+        remaining.forEach(PendingLock::abort);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        workers.forEach(Thread::interrupt);
+        queues.values().forEach(LockBatcher::abortQueued);
+    }
+
+    /**
+     * @param taken set once by whichever of a worker applying it or its caller giving up on it gets there first
+     */
+    private record PendingLock(LiquidityMovement liquidityMovement, CompletableFuture<Either<Failure, Optional<Long>>> result, AtomicBoolean taken) {
+        boolean take() {
+            return taken.compareAndSet(false, true);
+        }
+
+        void abort() {
+            result.complete(Either.left(Failure.from(FailureCode.UNKNOWN_ERROR)));
+        }
+    }
+}
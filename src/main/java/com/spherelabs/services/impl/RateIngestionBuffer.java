@@ -0,0 +1,151 @@
+package com.spherelabs.services.impl;
+
+import com.spherelabs.cache.LatestRateCache;
+import com.spherelabs.cache.RateHistoryIndex;
+import com.spherelabs.error.Failure;
+import com.spherelabs.error.FailureCode;
+import com.spherelabs.model.ExchangeRate;
+import com.spherelabs.repository.ExchangeRateRepository;
+import io.vavr.control.Either;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Group commit for exchange rate ticks.
+ * <p>
+ *     A single writer collects the ticks that arrive within app.fx-ingest-linger-millis and writes them
+ *     with one multi-row insert, so a burst of ticks holds one connection instead of one per tick.
+ *     Within a batch only the newest tick of a pair is written. The ticks it supersedes are reported as added,
+ *     they would never have been the latest rate. Written rates go through to the latest rate cache and the rate
+ *     history index.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class RateIngestionBuffer {
+    private final ExchangeRateRepository exchangeRateRepository;
+    private final LatestRateCache latestRateCache;
+    private final RateHistoryIndex rateHistoryIndex;
+    private final BlockingQueue<PendingRate> queue = new LinkedBlockingQueue<>();
+    private volatile boolean running = true;
+    private Thread writer;
+
+    @Value("${app.fx-ingest-linger-millis:5}")
+    private long lingerMillis;
+
+    @Value("${app.fx-ingest-max-batch-size:1000}")
+    private int maxBatchSize;
+
+    @PostConstruct
+    public void start() {
+        writer = Thread.ofVirtual().name("rate-ingestion").start(this::drain);
+    }
+
+    public CompletableFuture<Either<Failure, ExchangeRate>> submit(ExchangeRate exchangeRate) {
+        var pending = new PendingRate(exchangeRate, new CompletableFuture<>());
+        if (!running) {
+            pending.abort();
+            return pending.result();
+        }
+
+        queue.add(pending);
+        // stopped in the meantime, the writer may already be gone
+        if (!running && queue.remove(pending)) {
+            pending.abort();
+        }
+        return pending.result();
+    }
+
+    private void drain() {
+        var batch = new ArrayList<PendingRate>(maxBatchSize);
+        while (running) {
+            try {
+                batch.add(queue.take());
+                var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                while (batch.size() < maxBatchSize) {
+                    var next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                write(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                batch.forEach(PendingRate::abort);
+                return;
+            } catch (Exception e) {
+                log.error("Failed to write batch of {} exchange rates", batch.size(), e);
+                batch.forEach(PendingRate::abort);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<PendingRate> batch) {
+        var newest = new HashMap<String, PendingRate>();
+        for (var pending : batch) {
+            newest.merge(pending.exchangeRate().currencyPair(), pending,
+                    (current, candidate) -> candidate.exchangeRate().timestamp().isAfter(current.exchangeRate().timestamp()) ? candidate : current);
+        }
+
+        var written = exchangeRateRepository.addRates(newest.values().stream().map(PendingRate::exchangeRate).toList())
+                .map(exchangeRates -> exchangeRates.stream()
+                        .map(ExchangeRate::from)
+                        .peek(latestRateCache::put)
+                        .peek(rateHistoryIndex::put)
+                        .collect(Collectors.toMap(RateIngestionBuffer::key, exchangeRate -> exchangeRate)))
+                .peekLeft(failure -> log.error("Failed to write {} exchange rates. Reason: {}", newest.size(), failure.message(), failure.cause()));
+        log.debug("Wrote {} of {} exchange rate ticks", newest.size(), batch.size());
+
+        for (var pending : batch) {
+            var exchangeRate = pending.exchangeRate();
+            if (written.isLeft()) {
+                pending.result().complete(Either.left(written.getLeft()));
+            } else if (newest.get(exchangeRate.currencyPair()) != pending) {
+                // superseded by a newer tick of the same batch
+                pending.result().complete(Either.right(exchangeRate));
+            } else {
+                var stored = written.get().get(key(exchangeRate));
+                pending.result().complete(stored == null ? Either.left(Failure.from(FailureCode.DUPLICATE)) : Either.right(stored));
+            }
+        }
+    }
+
+    /**
+     * The database keeps timestamps to the microsecond, so a tick is matched to its row on the truncated timestamp
+     */
+    private static String key(ExchangeRate exchangeRate) {
+        return exchangeRate.currencyPair() + exchangeRate.timestamp().toInstant().truncatedTo(ChronoUnit.MICROS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        writer.interrupt();
+        var remaining = new ArrayList<PendingRate>();
+        queue.drainTo(remaining);
+        remaining.forEach(PendingRate::abort);
+    }
+
+    private record PendingRate(ExchangeRate exchangeRate, CompletableFuture<Either<Failure, ExchangeRate>> result) {
+        void abort() {
+            result.complete(Either.left(Failure.from(FailureCode.UNKNOWN_ERROR)));
+        }
+    }
+}
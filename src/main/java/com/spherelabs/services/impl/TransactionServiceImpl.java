@@ -1,70 +1,107 @@
 package com.spherelabs.services.impl;
 
+import com.spherelabs.cache.CurrencyRegistryCache;
+import com.spherelabs.cache.QuoteStore;
 import com.spherelabs.config.AppConfiguration;
 import com.spherelabs.error.Failure;
 import com.spherelabs.error.FailureCode;
-import com.spherelabs.model.Currency;
+import com.spherelabs.metrics.TransferMetrics;
+import com.spherelabs.model.CurrencyRegistry;
 import com.spherelabs.model.ExchangeRate;
 import com.spherelabs.model.LiquidityMovement;
+import com.spherelabs.model.Quote;
 import com.spherelabs.model.Transaction;
+import com.spherelabs.model.api.QuoteRequest;
 import com.spherelabs.model.api.TransferRequest;
 import com.spherelabs.providers.TransferProvider;
+import com.spherelabs.repository.RecoveryTaskRepository;
 import com.spherelabs.repository.TransactionRepository;
-import com.spherelabs.services.CurrencyService;
+import com.spherelabs.repository.TransferOutboxRepository;
 import com.spherelabs.services.ExchangeRateService;
 import com.spherelabs.services.LiquidityService;
 import com.spherelabs.services.TransactionService;
 import io.vavr.control.Either;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Optional;
+import java.util.UUID;
 
 import static com.spherelabs.error.FailureCode.*;
+import static com.spherelabs.metrics.TransferMetrics.*;
 
 
 @RequiredArgsConstructor
 @Slf4j
 @Service
 public class TransactionServiceImpl implements TransactionService {
-    private final CurrencyService currencyService;
+    // pair tag of transfers whose currencies are not supported, so bad requests do not each get their own series
+    private static final String UNSUPPORTED_PAIR = "unsupported";
+
+    private final CurrencyRegistryCache currencyRegistry;
     private final ExchangeRateService exchangeRateService;
     private final AppConfiguration appConfiguration;
     private final TransactionRepository transactionRepository;
     private final LiquidityService liquidityService;
     private final TransferProvider transferProvider;
-    private static final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE = Executors.newScheduledThreadPool(1);
-
+    private final TransferOutboxRepository transferOutboxRepository;
+    private final RecoveryTaskRepository recoveryTaskRepository;
+    private final TransferMetrics transferMetrics;
+    private final QuoteStore quoteStore;
+
+    // processing that broke off may still be committing. Recovery waits this long before looking at the transaction
+    @Value("${app.recovery-initial-delay:30s}")
+    private Duration recoveryInitialDelay;
+
+    @Value("${app.quote-ttl:30s}")
+    private Duration quoteTtl;
+
+    @Value("${app.lock-batching-enabled:false}")
+    private boolean lockBatchingEnabled;
+
+    @PostConstruct
+    public void init() {
+        if (appConfiguration.isSingleTransactionTransfer() && lockBatchingEnabled) {
+            // the funds of a transfer are locked in the database transaction that inserts it, which a batch cannot share
+            log.warn("app.lock-batching-enabled has no effect on transfers while app.single-transaction-transfer is on");
+        }
+    }
 
     @Override
     public Either<Failure, Transaction> transfer(TransferRequest request) {
         log.info("Processing transfer request {}" , request);
         var transaction = Transaction.newTransaction(request);
+        // the happy path is a single insert. An existing transaction is only fetched when the insert conflicts
+        return processTransaction(transaction, request.quoteId());
+    }
 
-        // another better option is to insert where transaction id is not equal, saves double query
-        var previousRecord = transactionRepository.getTransaction(transaction.getInternalTransferId());
-        // checks if an error occurred while fetching the transaction. Could be not found error
-        if (previousRecord.isLeft()) {
-            if (previousRecord.getLeft().code().equals(NOT_FOUND.getCode())) {
-                log.debug("Transaction {} not found. Proceeding to process transaction", transaction.getInternalTransferId());
-                return processTransaction(transaction);
-            }
-            log.error("Failed to fetch transaction {}. Reason: {}", transaction.getInternalTransferId(), previousRecord.getLeft().message(), previousRecord.getLeft().cause());
-            return Either.left(Failure.from(UNKNOWN_ERROR));
+    @Override
+    public Either<Failure, Quote> quote(QuoteRequest request) {
+        var currencies = currencyRegistry.get()
+                .peekLeft(failure -> log.error("Failed to get supported currencies. Reason: {}", failure.message(), failure.cause()));
+        if (currencies.isLeft()) {
+            return Either.left(currencies.getLeft());
         }
 
-        log.info("Transaction {} exist", transaction.getInternalTransferId());
-        return previousRecord.map(this::markAsProcessingIfApplicable);
+        var transaction = new Transaction();
+        transaction.setFromCurrency(request.fromCurrency());
+        transaction.setToCurrency(request.toCurrency());
+        transaction.setFromAmount(request.amount());
+        return validateCurrencies(transaction, currencies.get())
+                .flatMap(__ -> priceTransaction(currencies.get(), transaction))
+                .map(__ -> Quote.from(UUID.randomUUID().toString(), transaction, OffsetDateTime.now().plus(quoteTtl)))
+                .peek(quoteStore::put);
     }
 
-    private Either<Failure, Transaction> processTransaction(Transaction transaction) {
-        var currencies = currencyService.getSupportedCurrencies();
+    private Either<Failure, Transaction> processTransaction(Transaction transaction, String quoteId) {
+        var currencies = currencyRegistry.get();
         if (currencies.isLeft()) {
             // we could not get the supported currencies. No need to continue to process.
             // we still want to keep a copy of the transaction in the database
@@ -73,11 +110,13 @@ public class TransactionServiceImpl implements TransactionService {
             transaction.setStatus(Transaction.Status.RETRY);
             transactionRepository.recordFailedEvent(transaction)
                     .peekLeft(failure -> log.error("Failed to insert failed transaction {}. Reason: {}", transaction.getInternalTransferId(), failure.message(), failure.cause()));
-            return Either.left(currencies.getLeft());
+            return existingTransactionOr(transaction, currencies.getLeft())
+                    .peekLeft(failure -> transferMetrics.failure(STAGE_VALIDATE, UNSUPPORTED_PAIR, failure));
         }
 
         // validate every other information
-        var validation =  validate(transaction, currencies.get());
+        var pair = pairOf(transaction, currencies.get());
+        var validation = transferMetrics.time(STAGE_VALIDATE, pair, () -> validate(transaction, currencies.get()));
 
         // in case the validation fails, we still want to keep a copy of the transaction in the database
         if (validation.isLeft()) {
@@ -85,19 +124,43 @@ public class TransactionServiceImpl implements TransactionService {
             transaction.setStatus(Transaction.Status.RETRY);
             transactionRepository.recordFailedEvent(transaction)
                     .peekLeft(failure -> log.error("Failed to insert failed transaction {}. Reason: {}", transaction.getInternalTransferId(), failure.message(), failure.cause()));
-            return Either.left(validation.getLeft());
+            return existingTransactionOr(transaction, validation.getLeft())
+                    .peekLeft(failure -> transferMetrics.failure(STAGE_VALIDATE, pair, failure));
         }
 
         log.debug("Transaction {} passed validation", transaction.getInternalTransferId());
 
         // modify the transaction with the exchange rate, fees and settlement info
-        var recordedMessage =  modifyTransaction(currencies.get(), transaction)
-            // insert the transaction. This sets the status as INITIATED
-            .flatMap(__ -> transactionRepository.insertNew(transaction))
+        var modified = transferMetrics.time(STAGE_RATE_LOOKUP, pair, () -> modifyTransaction(currencies.get(), transaction, quoteId));
+        if (modified.isLeft()) {
+            return existingTransactionOr(transaction, modified.getLeft())
+                    .peekLeft(failure -> transferMetrics.failure(STAGE_RATE_LOOKUP, pair, failure));
+        }
+        var quote = modified.get();
+
+        // insert the transaction. This sets the status as INITIATED.
+        // In single transaction mode the funds are locked in the same database transaction as the insert
+        var singleTransaction = appConfiguration.isSingleTransactionTransfer();
+        var asyncTransfer = appConfiguration.isAsyncTransfer();
+        var inserted = transferMetrics.time(STAGE_INSERT, pair, () -> singleTransaction
+                        ? transactionRepository.insertAndLock(transaction, asyncTransfer)
+                        : transactionRepository.insertIfAbsent(transaction))
+                .peekLeft(failure -> transferMetrics.failure(STAGE_INSERT, pair, failure));
+        if (inserted.isLeft() || inserted.get().isEmpty()) {
+            // the transfer was not recorded with the quote, it can still be used
+            quote.ifPresent(quoteStore::restore);
+        }
+        if (inserted.isRight() && inserted.get().isEmpty()) {
+            log.info("Transaction {} exist", transaction.getInternalTransferId());
+            return transactionRepository.getTransaction(transaction.getInternalTransferId())
+                    .peekLeft(failure -> log.error("Failed to fetch transaction {}. Reason: {}", transaction.getInternalTransferId(), failure.message(), failure.cause()))
+                    .map(this::markAsProcessingIfApplicable);
+        }
+
+        var recordedMessage = inserted.map(Optional::get)
             .peek(transaction1 -> transaction.setId(transaction1.getId()))
             // lock the funds
-            .flatMap(transaction1 -> liquidityService.lockBalance(LiquidityMovement.lockFrom(transaction1)))
-            .flatMap(id -> transactionRepository.updateLockStatus(transaction.getId(), id, Transaction.Status.FUNDS_LOCKED, Transaction.Status.INITIATED))
+            .flatMap(transaction1 -> singleTransaction ? Either.<Failure, Transaction>right(transaction1) : lockFunds(transaction1, pair))
             .peekLeft(failure -> log.error("Failed to process transaction. Reason: {}", failure.message(), failure.cause()));
 
         if (recordedMessage.isLeft()) {
@@ -105,10 +168,23 @@ public class TransactionServiceImpl implements TransactionService {
                     . map(this::markAsProcessingIfApplicable);
         }
 
+        if (recordedMessage.get().getStatus() == Transaction.Status.FAILED) {
+            // the pool could not cover the transfer. It was recorded as failed together with the insert
+            transferMetrics.failure(STAGE_LOCK, pair, Failure.from(INSUFFICIENT_FUNDS));
+            return recordedMessage;
+        }
+
         var savedTransaction = recordedMessage.get();
 
-        // ideally, we will use an async medium to process, but this is a test, so we would leave like this
-        Either<Failure, Transaction.Status> transferResponse =  transferProvider.transfer(transaction)
+        if (asyncTransfer && (singleTransaction || enqueueTransfer(savedTransaction))) {
+            // the transfer dispatcher submits it to the provider and records the outcome
+            log.info("Transaction {} queued for transfer", savedTransaction.getInternalTransferId());
+            return Either.right(markAsProcessingIfApplicable(savedTransaction));
+        }
+
+        // synchronous mode, or the transfer could not be queued
+        Either<Failure, Transaction.Status> transferResponse = transferMetrics.time(STAGE_PROVIDER_CALL, pair, () -> transferProvider.transfer(transaction))
+                .peekLeft(failure -> transferMetrics.failure(STAGE_PROVIDER_CALL, pair, failure))
                 .peekLeft(failure -> log.error("Failed to initiate transfer. Reason: {}", failure.message(), failure.cause()));
         if (transferResponse.isLeft()) {
             savedTransaction.setStatus(Transaction.Status.PROCESSING);
@@ -117,12 +193,43 @@ public class TransactionServiceImpl implements TransactionService {
             savedTransaction.setStatus(transferResponse.get());
         }
 
-        return transactionRepository.updateStatus(transaction.getId(), savedTransaction.getFailureReason(), savedTransaction.getStatus(), Transaction.Status.FUNDS_LOCKED)
+        return transferMetrics.time(STAGE_STATUS_UPDATE, pair, () -> transactionRepository.updateStatus(transaction.getId(), savedTransaction.getFailureReason(), savedTransaction.getStatus(), Transaction.Status.FUNDS_LOCKED))
+            .peekLeft(failure -> transferMetrics.failure(STAGE_STATUS_UPDATE, pair, failure))
             .peek(transaction1 -> log.info("Transaction {} initiated successfully", transaction1.getInternalTransferId()))
             .peekLeft(failure -> log.error("Failed to process transaction. Reason: {}", failure.message(), failure.cause()));
 
     }
 
+    private Either<Failure, Transaction> lockFunds(Transaction transaction, String pair) {
+        return transferMetrics.time(STAGE_LOCK, pair, () -> liquidityService.lockBalance(LiquidityMovement.lockFrom(transaction))
+                        .flatMap(id -> transactionRepository.updateLockStatus(transaction.getId(), id, Transaction.Status.FUNDS_LOCKED, Transaction.Status.INITIATED)))
+                .peekLeft(failure -> transferMetrics.failure(STAGE_LOCK, pair, failure));
+    }
+
+    private static String pairOf(Transaction transaction, CurrencyRegistry currencies) {
+        if (!currencies.contains(transaction.getFromCurrency()) || !currencies.contains(transaction.getToCurrency())) {
+            return UNSUPPORTED_PAIR;
+        }
+        return transaction.getFromCurrency() + "/" + transaction.getToCurrency();
+    }
+
+    private boolean enqueueTransfer(Transaction transaction) {
+        return transferOutboxRepository.enqueue(transaction.getId())
+                .peekLeft(failure -> log.error("Failed to queue transaction {}. Submitting it directly. Reason: {}", transaction.getInternalTransferId(), failure.message(), failure.cause()))
+                .isRight();
+    }
+
+    // a retried request that can no longer be processed still gets the transaction it created the first time.
+    // Only a request that is not a retry fails, so only its failure is counted
+    private Either<Failure, Transaction> existingTransactionOr(Transaction transaction, Failure failure) {
+        return transactionRepository.findTransaction(transaction.getInternalTransferId())
+                .peekLeft(failure1 -> log.error("Failed to look up transaction {}. Reason: {}", transaction.getInternalTransferId(), failure1.message(), failure1.cause()))
+                .getOrElse(Optional.empty())
+                .map(this::markAsProcessingIfApplicable)
+                .<Either<Failure, Transaction>>map(Either::right)
+                .orElseGet(() -> Either.left(failure));
+    }
+
     private Transaction markAsProcessingIfApplicable(Transaction transaction1) {
         if (transaction1.getStatus().ordinal() <= Transaction.Status.PROCESSING.ordinal()) {
             transaction1.setStatus(Transaction.Status.PROCESSING);
@@ -132,7 +239,7 @@ public class TransactionServiceImpl implements TransactionService {
     }
 
     //just basic validations
-    private Either<Failure, Void> validate(Transaction transaction, List<Currency> currencies) {
+    Either<Failure, Void> validate(Transaction transaction, CurrencyRegistry currencies) {
         if (transaction.getSenderAccount().endsWith("111")) {
             return Either.left(Failure.from(INVALID_SENDER_ACCOUNT));
         }
@@ -141,21 +248,20 @@ public class TransactionServiceImpl implements TransactionService {
             return Either.left(Failure.from(INVALID_RECEIVER_ACCOUNT));
         }
 
-        var fromCurrency = currencies.stream()
-                .filter(currency -> currency.code().equals(transaction.getFromCurrency()))
-                .findFirst();
-        if (fromCurrency.isEmpty()) {
+        return validateCurrencies(transaction, currencies);
+    }
+
+    private Either<Failure, Void> validateCurrencies(Transaction transaction, CurrencyRegistry currencies) {
+        if (!currencies.contains(transaction.getFromCurrency())) {
             return Either.left(Failure.from(SENDING_CURRENCY_NOT_SUPPORTED));
         }
 
-        var toCurrency = currencies.stream()
-                .filter(currency -> currency.code().equals(transaction.getToCurrency()))
-                .findFirst();
-        if (toCurrency.isEmpty()) {
+        var toCurrency = currencies.indexOf(transaction.getToCurrency());
+        if (toCurrency == CurrencyRegistry.UNKNOWN) {
             return Either.left(Failure.from(RECEIVING_CURRENCY_NOT_SUPPORTED));
         }
 
-        if (!appConfiguration.getMarginRates().containsKey(transaction.getToCurrency())) {
+        if (currencies.marginRate(toCurrency) == null) {
             return Either.left(Failure.from(UNSUPPORTED_CURRENCY_PAIR));
         }
 
@@ -171,24 +277,63 @@ public class TransactionServiceImpl implements TransactionService {
                     .peekLeft(failure1 -> log.error("Failed to update transaction {}. Reason: {}", transaction.getInternalTransferId(), failure1.message(), failure1.cause()));
         }
 
-        SCHEDULED_EXECUTOR_SERVICE.scheduleWithFixedDelay(() -> determineFinalStatus(transaction.getInternalTransferId()), 0, 3, TimeUnit.MINUTES);
+        if (transaction.getId() == null) {
+            // nothing was stored, there is nothing to recover
+            return Either.left(failure);
+        }
+
+        // the recovery processor determines the final status of the transaction
+        recoveryTaskRepository.enqueue(transaction.getId(), recoveryInitialDelay)
+                .peekLeft(failure1 -> log.error("Failed to queue transaction {} for recovery. Reason: {}", transaction.getInternalTransferId(), failure1.message(), failure1.cause()));
         return Either.left(failure);
     }
 
-    private void determineFinalStatus(String transferId) {
-        // check if the transaction is still in the INITIATED state
+    /**
+     * @return the quote the transaction was priced with, taken from the store until the transaction is recorded
+     */
+    private Either<Failure, Optional<Quote>> modifyTransaction(CurrencyRegistry currencies, Transaction transaction, String quoteId) {
+        if (quoteId == null) {
+            return priceTransaction(currencies, transaction)
+                    .peek(__ -> modifySettlementInfo(transaction, currencies))
+                    .map(__ -> Optional.empty());
+        }
+
+        // taken so that no other transfer uses it meanwhile. A retried transfer finds its transaction
+        return quoteStore.take(quoteId)
+                .<Either<Failure, Quote>>map(Either::right)
+                .orElseGet(() -> Either.left(Failure.from(QUOTE_NOT_FOUND)))
+                .flatMap(quote -> {
+                    if (quote.matches(transaction)) {
+                        return Either.right(quote);
+                    }
+                    quoteStore.restore(quote);
+                    return Either.left(Failure.from(QUOTE_MISMATCH));
+                })
+                .peekLeft(failure -> log.error("Failed to use quote {} for transaction {}. Reason: {}", quoteId, transaction.getInternalTransferId(), failure.message()))
+                .peek(quote -> quote.applyTo(transaction))
+                .peek(__ -> modifySettlementInfo(transaction, currencies))
+                .map(Optional::of);
     }
 
-    private Either<Failure, Void> modifyTransaction(List<Currency> currencies,  Transaction transaction) {
-        var pair = "%s/%s".formatted(transaction.getFromCurrency(), transaction.getToCurrency());
-        return exchangeRateService.getLatestRate(pair)
+    private Either<Failure, Void> priceTransaction(CurrencyRegistry currencies, Transaction transaction) {
+        var pair = transaction.getFromCurrency() + "/" + transaction.getToCurrency();
+        return exchangeRateService.getConversionRate(pair)
                 .peekLeft(failure -> log.error("Failed to get latest rate for currency pair: {}. Reason: {}", pair, failure.message(), failure.cause()))
                 .mapLeft(failure -> mapNotFoundToSpecificFailure(failure, NO_AVAILABLE_RATE))
-                .peek(exchangeRate -> modifyTransactionFees(transaction, appConfiguration.getMarginRates().get(transaction.getToCurrency()), currencies, exchangeRate))
-                .peek(exchangeRate -> modifySettlementInfo(transaction, currencies))
+                .flatMap(this::checkRateAge)
+                .peek(exchangeRate -> modifyTransactionFees(transaction, currencies, exchangeRate))
                 .map(__ -> null);
     }
 
+    private Either<Failure, ExchangeRate> checkRateAge(ExchangeRate exchangeRate) {
+        var maxRateAge = appConfiguration.getMaxRateAge();
+        if (maxRateAge == null || !exchangeRate.timestamp().isBefore(OffsetDateTime.now().minus(maxRateAge))) {
+            return Either.right(exchangeRate);
+        }
+        log.warn("Latest rate of {} from {} is older than {}", exchangeRate.currencyPair(), exchangeRate.timestamp(), maxRateAge);
+        return Either.left(Failure.from(STALE_FX_RATE));
+    }
+
     private Failure mapNotFoundToSpecificFailure(Failure failure, FailureCode failureCode) {
         if (failure.code().equals(NOT_FOUND.getCode())) {
             return Failure.from(failureCode);
@@ -196,31 +341,27 @@ public class TransactionServiceImpl implements TransactionService {
         return failure;
     }
 
-    private void modifySettlementInfo(Transaction transaction, List<Currency> currencies) {
+    private void modifySettlementInfo(Transaction transaction, CurrencyRegistry currencies) {
         // i expect to see a fee here since we validated the currency pair against the fees map already
-        currencies.stream()
-                .filter(currency -> currency.code().equals(transaction.getFromCurrency()))
-                .findFirst()
-                .ifPresentOrElse(currency -> {
-                            transaction.setSettlementWindow(currency.settlementTime());
-                            transaction.setScheduledSettlementTime(transaction.getCreatedAt().plus(currency.settlementTime()));
-                        },
-                        () -> log.warn("CUnexpected currency {} not found in the list of supported currencies", transaction.getFromCurrency()));
+        var fromCurrency = currencies.indexOf(transaction.getFromCurrency());
+        if (fromCurrency == CurrencyRegistry.UNKNOWN) {
+            log.warn("CUnexpected currency {} not found in the list of supported currencies", transaction.getFromCurrency());
+            return;
+        }
+        transaction.setSettlementWindow(currencies.settlementTime(fromCurrency));
+        transaction.setScheduledSettlementTime(transaction.getCreatedAt().plus(currencies.settlementTime(fromCurrency)));
     }
 
-    private void modifyTransactionFees(Transaction transaction, BigDecimal marginRate, List<Currency> currencies, ExchangeRate exchangeRate) {
-        int precision = currencies.stream()
-                .filter(currency -> currency.code().equals(transaction.getToCurrency()))
-                .findFirst()
-                .map(Currency::precision)
-                .orElse(2);
-
+    void modifyTransactionFees(Transaction transaction, CurrencyRegistry currencies, ExchangeRate exchangeRate) {
+        // validated already, the currency is known and has a margin rate
+        var toCurrency = currencies.indexOf(transaction.getToCurrency());
+        int precision = currencies.precision(toCurrency);
+        BigDecimal marginRate = currencies.marginRate(toCurrency);
 
         BigDecimal exchangeAmount = transaction.getFromAmount()
                 .multiply(exchangeRate.rate())
                 .setScale(precision, RoundingMode.HALF_UP);
 
-
         BigDecimal margin = exchangeAmount
                 .multiply(marginRate)
                 .setScale(precision, RoundingMode.HALF_UP);
@@ -0,0 +1,13 @@
+package com.spherelabs
+
+import org.springframework.test.context.TestPropertySource
+
+/**
+ * Specs that put transactions due for settlement in the shared database and settle or claim them by calling the
+ * processors and repositories. Their context does not settle on schedule, so nothing else claims those transactions.
+ * Contexts of specs with the application defaults are dirtied after their spec, so their scheduled settlement
+ * does not keep running while these specs do
+ */
+@TestPropertySource(properties = "app.settlement-poll-size=0")
+abstract class ManualSettlementSpecification extends AbstractSpecification {
+}
@@ -0,0 +1,56 @@
+package com.spherelabs.cache
+
+import com.spherelabs.model.ExchangeRate
+import com.spherelabs.repository.ExchangeRateRepository
+import io.vavr.control.Either
+import spock.lang.Specification
+
+import java.time.OffsetDateTime
+
+class LatestRateCacheSpec extends Specification {
+    ExchangeRateRepository exchangeRateRepository = Stub()
+    LatestRateCache latestRateCache = new LatestRateCache(exchangeRateRepository)
+    List<ExchangeRate> notified = []
+    OffsetDateTime now = OffsetDateTime.now()
+
+    def setup() {
+        latestRateCache.onPut { notified.add(it) }
+    }
+
+    def "The latest effective rate is returned and scheduled rates wait until they are effective"() {
+        given:
+            latestRateCache.put(rate(1.10, now.minusMinutes(2)))
+            latestRateCache.put(rate(1.11, now.minusMinutes(1)))
+            latestRateCache.put(rate(1.12, now.plusMinutes(1)))
+
+        expect:
+            latestRateCache.get("EUR/USD").get().rate() == 1.11
+            latestRateCache.get("GBP/USD").isEmpty()
+            notified*.rate() == [1.10, 1.11, 1.12]
+    }
+
+    def "A reload of rates the node already holds or that are older than the effective rate notifies no one"() {
+        given:
+            def older = rate(1.10, now.minusMinutes(2))
+            def effective = rate(1.11, now.minusMinutes(1))
+            exchangeRateRepository.getLatestRates() >> Either.right([pojo(older), pojo(effective)])
+            latestRateCache.put(effective)
+            notified.clear()
+
+        when:
+            latestRateCache.refresh()
+            latestRateCache.refresh()
+
+        then:
+            notified.isEmpty()
+            latestRateCache.get("EUR/USD").get() == effective
+    }
+
+    private ExchangeRate rate(BigDecimal rate, OffsetDateTime timestamp) {
+        new ExchangeRate("EUR/USD", rate, timestamp)
+    }
+
+    private static com.assetiq.jooq.tables.pojos.ExchangeRate pojo(ExchangeRate exchangeRate) {
+        new com.assetiq.jooq.tables.pojos.ExchangeRate(exchangeRate.currencyPair(), exchangeRate.rate(), exchangeRate.timestamp(), exchangeRate.timestamp(), false)
+    }
+}
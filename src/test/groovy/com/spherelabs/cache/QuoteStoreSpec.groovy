@@ -0,0 +1,94 @@
+package com.spherelabs.cache
+
+import com.spherelabs.model.Quote
+import org.springframework.test.util.ReflectionTestUtils
+import spock.lang.Specification
+
+import java.time.OffsetDateTime
+
+class QuoteStoreSpec extends Specification {
+    QuoteStore quoteStore = new QuoteStore()
+    OffsetDateTime now = OffsetDateTime.now()
+
+    def setup() {
+        ReflectionTestUtils.setField(quoteStore, "maxSize", 2)
+    }
+
+    def "A quote is taken once and only until it expires"() {
+        given:
+            quoteStore.put(quote("live", 30))
+            quoteStore.put(quote("expired", -1))
+
+        expect:
+            quoteStore.take("live").get().id() == "live"
+            quoteStore.take("live").isEmpty()
+            quoteStore.take("expired").isEmpty()
+            quoteStore.take("unknown").isEmpty()
+    }
+
+    def "A taken quote is no longer held for its expiry"() {
+        given:
+            (1..10).each { quoteStore.put(quote("taken-$it", 30)) }
+            (1..10).each { quoteStore.take("taken-$it") }
+
+        expect:
+            held() == 0
+    }
+
+    def "A restored quote is held once and expires when it would have"() {
+        given:
+            quoteStore.put(quote("older", 10))
+            quoteStore.put(quote("newer", 20))
+            def older = quoteStore.take("older").get()
+
+        when:
+            quoteStore.restore(older)
+            quoteStore.restore(older)
+
+        then:
+            held() == 2
+
+        when: "the store is full"
+            quoteStore.put(quote("newest", 30))
+
+        then: "the restored quote is the oldest and is dropped first"
+            held() == 2
+            quoteStore.take("older").isEmpty()
+            quoteStore.take("newer").isPresent()
+            quoteStore.take("newest").isPresent()
+    }
+
+    def "A quote that expired while it was taken is not restored"() {
+        given:
+            def quote = quote("expired", -1)
+
+        when:
+            quoteStore.restore(quote)
+
+        then:
+            held() == 0
+            quoteStore.take("expired").isEmpty()
+    }
+
+    def "Expired quotes are evicted"() {
+        given:
+            quoteStore.put(quote("expiring", 0.2))
+            quoteStore.put(quote("live", 30))
+
+        when:
+            Thread.sleep(300)
+            quoteStore.evictExpired()
+
+        then:
+            held() == 1
+            quoteStore.take("live").isPresent()
+    }
+
+    private int held() {
+        (ReflectionTestUtils.getField(quoteStore, "expiry") as Collection).size()
+    }
+
+    private Quote quote(String id, BigDecimal expiresInSeconds) {
+        new Quote(id, "USD", "EUR", 100, 0.92, 0.03, 2.76, 89.24, now, now.plusNanos((expiresInSeconds * 1_000_000_000) as long))
+    }
+}
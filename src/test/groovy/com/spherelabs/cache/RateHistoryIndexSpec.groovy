@@ -0,0 +1,113 @@
+package com.spherelabs.cache
+
+import com.spherelabs.model.ExchangeRate
+import com.spherelabs.repository.ExchangeRateRepository
+import io.vavr.control.Either
+import org.springframework.test.util.ReflectionTestUtils
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.OffsetDateTime
+import java.time.ZoneOffset
+
+class RateHistoryIndexSpec extends Specification {
+    ExchangeRateRepository exchangeRateRepository = Mock()
+    RateHistoryIndex rateHistoryIndex = new RateHistoryIndex(exchangeRateRepository)
+    OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC).withNano(0)
+
+    def setup() {
+        ReflectionTestUtils.setField(rateHistoryIndex, "window", Duration.ofHours(1))
+        ReflectionTestUtils.setField(rateHistoryIndex, "maxTicksPerPair", 1000)
+        ReflectionTestUtils.setField(rateHistoryIndex, "refreshOverlap", Duration.ZERO)
+        exchangeRateRepository.getCurrencyPairs() >> Either.right(["EUR/USD"])
+        exchangeRateRepository.getRatesSince(_) >> Either.right([])
+    }
+
+    def "The effective rate is the last tick at or before the instant, whatever order the ticks came in"() {
+        given:
+            rateHistoryIndex.load()
+            [50, 30, 10, 40, 20].each { put(minutesAgo(it), it) }
+            put(minutesAgo(20), 21)
+
+        expect:
+            rateHistoryIndex.rateAt("EUR/USD", minutesAgo(40).toInstant()).get().rate() == 40
+            rateHistoryIndex.rateAt("EUR/USD", minutesAgo(35).toInstant()).get().rate() == 40
+            rateHistoryIndex.rateAt("EUR/USD", minutesAgo(20).plusNanos(1_000).toInstant()).get().rate() == 21
+            rateHistoryIndex.rateAt("EUR/USD", minutesAgo(20).minusNanos(1_000).toInstant()).get().rate() == 30
+            rateHistoryIndex.rateAt("EUR/USD", minutesAgo(10).toInstant()).get().timestamp() == minutesAgo(10)
+
+        and: "no tick was effective yet"
+            rateHistoryIndex.rateAt("EUR/USD", minutesAgo(55).toInstant()).isEmpty()
+
+        and: "before the index was loaded"
+            rateHistoryIndex.rateAt("EUR/USD", minutesAgo(90).toInstant()).isEmpty()
+
+        and: "a pair the index does not hold"
+            rateHistoryIndex.rateAt("GBP/USD", minutesAgo(30).toInstant()).isEmpty()
+    }
+
+    def "A range includes both of its ends and is cut at the limit"() {
+        given:
+            rateHistoryIndex.load()
+            [50, 40, 30, 20, 10].each { put(minutesAgo(it), it) }
+
+        expect:
+            rateHistoryIndex.rates("EUR/USD", minutesAgo(40).toInstant(), minutesAgo(20).toInstant(), 10).get()*.rate() == [40, 30, 20]
+            rateHistoryIndex.rates("EUR/USD", minutesAgo(45).toInstant(), minutesAgo(5).toInstant(), 2).get()*.rate() == [40, 30]
+            rateHistoryIndex.rates("EUR/USD", minutesAgo(39).toInstant(), minutesAgo(31).toInstant(), 10).get().isEmpty()
+            rateHistoryIndex.rates("EUR/USD", minutesAgo(90).toInstant(), minutesAgo(5).toInstant(), 10).isEmpty()
+    }
+
+    def "A pair over its most ticks drops its oldest and no longer answers before the ticks it keeps"() {
+        given:
+            ReflectionTestUtils.setField(rateHistoryIndex, "maxTicksPerPair", 3)
+            rateHistoryIndex.load()
+
+        when:
+            [50, 40, 30, 20].each { put(minutesAgo(it), it) }
+
+        then:
+            rateHistoryIndex.rateAt("EUR/USD", minutesAgo(35).toInstant()).isEmpty()
+            rateHistoryIndex.rateAt("EUR/USD", minutesAgo(30).toInstant()).get().rate() == 30
+            rateHistoryIndex.rates("EUR/USD", minutesAgo(30).toInstant(), minutesAgo(0).toInstant(), 10).get()*.rate() == [30, 20]
+    }
+
+    def "Ticks older than the window are evicted except the one still effective at its start"() {
+        given:
+            rateHistoryIndex.load()
+            [50, 40, 30, 20].each { put(minutesAgo(it), it) }
+
+        when:
+            ReflectionTestUtils.setField(rateHistoryIndex, "window", Duration.ofMinutes(25))
+            rateHistoryIndex.refresh()
+
+        then:
+            rateHistoryIndex.rateAt("EUR/USD", minutesAgo(35).toInstant()).isEmpty()
+            rateHistoryIndex.rateAt("EUR/USD", minutesAgo(24).toInstant()).get().rate() == 30
+            rateHistoryIndex.rateAt("EUR/USD", minutesAgo(20).toInstant()).get().rate() == 20
+    }
+
+    def "A series keeps its ticks in order as it grows past its arrays and reclaims the evicted ones"() {
+        given:
+            ReflectionTestUtils.setField(rateHistoryIndex, "maxTicksPerPair", 100)
+            rateHistoryIndex.load()
+            def base = minutesAgo(50)
+
+        when:
+            (0..<1000).each { put(base.plusSeconds(it), it) }
+
+        then:
+            rateHistoryIndex.rateAt("EUR/USD", base.plusSeconds(999).toInstant()).get().rate() == 999
+            rateHistoryIndex.rateAt("EUR/USD", base.plusSeconds(950).plusNanos(500_000_000).toInstant()).get().rate() == 950
+            rateHistoryIndex.rates("EUR/USD", base.plusSeconds(901).toInstant(), base.plusSeconds(1000).toInstant(), 1000).get()*.rate() == (901..999).toList()
+            rateHistoryIndex.rateAt("EUR/USD", base.plusSeconds(900).toInstant()).isEmpty()
+    }
+
+    private OffsetDateTime minutesAgo(int minutes) {
+        now.minusMinutes(minutes)
+    }
+
+    private void put(OffsetDateTime timestamp, int rate) {
+        rateHistoryIndex.put(new ExchangeRate("EUR/USD", rate as BigDecimal, timestamp))
+    }
+}
@@ -6,6 +6,7 @@ import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc
 import org.springframework.boot.test.context.SpringBootTest
 import org.springframework.http.HttpStatus
+import org.springframework.test.annotation.DirtiesContext
 import org.springframework.test.web.servlet.MockMvc
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers
@@ -17,6 +18,7 @@ import static org.springframework.http.MediaType.APPLICATION_JSON
 
 @SpringBootTest
 @AutoConfigureMockMvc
+@DirtiesContext
 class FxRateControllerSpec extends AbstractSpecification {
     @Autowired
     ExchangeRateRepository exchangeRateRepository
@@ -0,0 +1,136 @@
+package com.spherelabs.controllers
+
+import com.spherelabs.AbstractSpecification
+import com.spherelabs.services.ExchangeRateService
+import com.spherelabs.services.TransactionService
+import io.micrometer.core.instrument.MeterRegistry
+import org.jooq.DSLContext
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.http.MediaType
+import org.springframework.mock.web.MockHttpServletResponse
+import org.springframework.test.annotation.DirtiesContext
+import org.springframework.test.util.AopTestUtils
+import org.springframework.test.util.ReflectionTestUtils
+import org.springframework.test.web.servlet.MockMvc
+
+import java.time.Duration
+import java.time.OffsetDateTime
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post
+
+@SpringBootTest
+@AutoConfigureMockMvc
+@DirtiesContext
+class QuoteControllerSpec extends AbstractSpecification {
+
+    @Autowired
+    MockMvc mockMvc
+
+    @Autowired
+    ExchangeRateService exchangeRateService
+
+    @Autowired
+    TransactionService transactionService
+
+    @Autowired
+    DSLContext dsl
+
+    @Autowired
+    MeterRegistry meterRegistry
+
+    def setup() {
+        exchangeRateService.addRate("GBP/JPY", 190.5, OffsetDateTime.now())
+    }
+
+    def cleanup() {
+        ReflectionTestUtils.setField(AopTestUtils.getTargetObject(transactionService), "quoteTtl", Duration.ofSeconds(30))
+    }
+
+    def "A transfer with a quote gets the quoted price and uses the quote up"() {
+        given:
+            def quoteId = quote(100)
+            exchangeRateService.addRate("GBP/JPY", 195.0, OffsetDateTime.now())
+
+        when:
+            def transferred = transfer(quoteId, 100)
+            def again = transfer(quoteId, 100)
+
+        then:
+            transferred.status == 200
+            fxRateOf(transferred) == 190.5
+            again.status == 404
+            again.contentAsString.contains("quote_not_found")
+    }
+
+    def "A transfer that does not match its quote leaves the quote to the transfer it was made for"() {
+        given:
+            def quoteId = quote(100)
+
+        when:
+            def mismatch = transfer(quoteId, 101)
+            def matching = transfer(quoteId, 100)
+
+        then:
+            mismatch.status == 422
+            mismatch.contentAsString.contains("quote_mismatch")
+            matching.status == 200
+            fxRateOf(matching) == 190.5
+    }
+
+    def "A retried quoted transfer gets its transaction back and is not counted as failed"() {
+        given:
+            def quoteId = quote(100)
+            def reference = "quote-retry-${System.nanoTime()}"
+            def transferred = transfer(quoteId, 100, reference)
+            def failures = quoteNotFoundFailures()
+
+        when: "the quote is used up by the first attempt"
+            def retried = transfer(quoteId, 100, reference)
+
+        then:
+            transferred.status == 200
+            retried.status == 200
+            fxRateOf(retried) == 190.5
+            quoteNotFoundFailures() == failures
+    }
+
+    def "A quote can no longer be used once its time to live is over"() {
+        given:
+            ReflectionTestUtils.setField(AopTestUtils.getTargetObject(transactionService), "quoteTtl", Duration.ofMillis(200))
+            def quoteId = quote(100)
+
+        when:
+            Thread.sleep(300)
+            def expired = transfer(quoteId, 100)
+
+        then:
+            expired.status == 404
+            expired.contentAsString.contains("quote_not_found")
+    }
+
+    private String quote(int amount) {
+        def response = perform("/quote", """{"from_currency":"GBP","to_currency":"JPY","amount":$amount}""")
+        assert response.status == 200
+        (response.contentAsString =~ /"quote_id":"([^"]+)"/)[0][1]
+    }
+
+    private MockHttpServletResponse transfer(String quoteId, int amount, String reference = "quote-${System.nanoTime()}") {
+        perform("/transfer", """{"sender_account":"q1234567","receiver_account":"r1234567","from_currency":"GBP","to_currency":"JPY",
+                "amount":$amount,"description":"Quoted","reference":"$reference","quote_id":"$quoteId"}""")
+    }
+
+    private double quoteNotFoundFailures() {
+        meterRegistry.find("transfer.failures").tags("stage", "rate_lookup", "code", "quote_not_found").counters().sum { it.count() } ?: 0
+    }
+
+    private MockHttpServletResponse perform(String path, String body) {
+        mockMvc.perform(post(path).contentType(MediaType.APPLICATION_JSON).content(body)).andReturn().response
+    }
+
+    private BigDecimal fxRateOf(MockHttpServletResponse response) {
+        def internalId = (response.contentAsString =~ /"internal_id":"([^"]+)"/)[0][1]
+        dsl.fetchValue("SELECT fx_rate FROM transaction WHERE internal_transfer_id = ?", internalId) as BigDecimal
+    }
+}
@@ -0,0 +1,90 @@
+package com.spherelabs.processors
+
+import com.spherelabs.ManualSettlementSpecification
+import com.spherelabs.model.LiquidityMovement
+import com.spherelabs.model.Transaction
+import com.spherelabs.repository.LiquidityRepository
+import com.spherelabs.repository.TransactionRepository
+import com.spherelabs.services.LiquidityService
+import org.jooq.DSLContext
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.context.TestPropertySource
+
+import java.time.OffsetDateTime
+
+@SpringBootTest
+@TestPropertySource(properties = "app.settlement-bulk=true")
+class BulkSettlementSpec extends ManualSettlementSpecification {
+    @Autowired
+    SettlementProcessor settlementProcessor
+
+    @Autowired
+    LiquidityService liquidityService
+
+    @Autowired
+    LiquidityRepository liquidityRepository
+
+    @Autowired
+    TransactionRepository transactionRepository
+
+    @Autowired
+    DSLContext dsl
+
+    def "Locked balances are debited in bulk once, a second debit changes nothing"() {
+        given:
+            def prefix = "bulk-debit-${System.nanoTime()}|".toString()
+            def lockIds = (1..10).collect { lock(prefix + it, 10.50, 0.30) }
+            def before = lockedBalance("EUR")
+
+        when:
+            def debited = liquidityService.debitLockedBalances(lockIds).get()
+            def after = lockedBalance("EUR")
+            def again = liquidityService.debitLockedBalances(lockIds).get()
+
+        then:
+            debited == lockIds.toSet()
+            before - after == 108.00
+            again == lockIds.toSet()
+            lockedBalance("EUR") == after
+            dsl.fetchValue("SELECT count(*) FROM ledger WHERE transaction_id LIKE ? AND transaction_type = 'debit'", prefix + "%") == 20
+            dsl.fetchValue("SELECT sum(amount) FROM ledger WHERE transaction_id LIKE ? AND transaction_type = 'debit'", prefix + "%") == 108.00
+    }
+
+    def "Completed transactions of a currency are settled in bulk along with the rest of its batch"() {
+        given:
+            def prefix = "bulk-settle-${System.nanoTime()}|".toString()
+            (1..20).each { insertDue(prefix + it, "completed", 10.50, lock(prefix + it, 10.50, 0.30)) }
+            insertDue(prefix + "mismatch", "completed", 11.00, lock(prefix + "mismatch", 10.50, 0.30))
+            (1..5).each { insertDue(prefix + "failed-" + it, "failed", 10.50, lock(prefix + "failed-" + it, 10.50, 0.30)) }
+
+        when: "the batch holds only the transactions of this spec"
+            def ids = dsl.fetch("SELECT id FROM transaction WHERE internal_transfer_id LIKE ?", prefix + "%").collect { it.get(0) as Long }
+            settlementProcessor.processBatch(transactionRepository.getTransactions(ids).get())
+
+        then:
+            dsl.fetchValue("SELECT count(*) FROM transaction WHERE internal_transfer_id LIKE ? AND settlement_status IS NOT NULL", prefix + "%") == 26
+            dsl.fetchValue("SELECT count(*) FROM transaction WHERE internal_transfer_id LIKE ? AND settlement_status = 'settled' AND actual_settlement_time IS NOT NULL", prefix + "%") == 20
+            dsl.fetchValue("SELECT settlement_status FROM transaction WHERE internal_transfer_id = ?", prefix + "mismatch") == "require_intervention"
+            dsl.fetchValue("SELECT count(*) FROM transaction WHERE internal_transfer_id LIKE ? AND settlement_status = 'settlement_stopped'", prefix + "failed-%") == 5
+            dsl.fetchValue("SELECT count(*) FROM ledger WHERE transaction_id LIKE ? AND transaction_type = 'debit'", prefix + "%") == 40
+    }
+
+    private Long lock(String transactionId, BigDecimal amount, BigDecimal margin) {
+        liquidityRepository.lockBalance(new LiquidityMovement(transactionId, "EUR", Transaction.Type.LOCK, amount, OffsetDateTime.now(), "Lock funds", margin)).get()
+    }
+
+    private BigDecimal lockedBalance(String currency) {
+        dsl.fetchValue("SELECT sum(locked_balance) FROM liquidity_pool_shard WHERE currency_code = ?", currency) as BigDecimal
+    }
+
+    private void insertDue(String internalTransferId, String status, BigDecimal toAmount, Long lockId) {
+        dsl.execute("""
+            INSERT INTO transaction (transfer_id, internal_transfer_id, sender_account, receiver_account, from_amount, from_currency,
+                                     to_amount, to_currency, margin, margin_currency, fx_rate, rate_effective_date, margin_rate, status,
+                                     scheduled_settlement_time, settlement_window, created_at, description, locked_id)
+            VALUES (?, ?, 'sender', 'receiver', 10, 'USD', ?, 'EUR', 0.30, 'EUR', 1, now(), 0.03, ?::transaction_status,
+                    now() - interval '1 second', interval '1 hour', now() - interval '1 hour', 'Bulk settlement', ?)""",
+                internalTransferId, internalTransferId, toAmount, status, lockId)
+    }
+}
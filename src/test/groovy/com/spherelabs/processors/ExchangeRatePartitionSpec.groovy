@@ -0,0 +1,174 @@
+package com.spherelabs.processors
+
+import com.spherelabs.AbstractSpecification
+import com.spherelabs.model.ExchangeRate
+import com.spherelabs.repository.ExchangeRateHistoryRepository
+import com.spherelabs.repository.ExchangeRateRepository
+import org.jooq.DSLContext
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.annotation.DirtiesContext
+
+import java.time.LocalDate
+import java.time.OffsetDateTime
+import java.time.ZoneOffset
+import java.time.format.DateTimeFormatter
+
+@SpringBootTest
+@DirtiesContext
+class ExchangeRatePartitionSpec extends AbstractSpecification {
+    // a pair of its own, so the ticks and bars checked here are not written by other specs
+    static final String PAIR = "XPS/USD"
+
+    @Autowired
+    ExchangeRateRepository exchangeRateRepository
+
+    @Autowired
+    ExchangeRateHistoryRepository exchangeRateHistoryRepository
+
+    @Autowired
+    ExchangeRatePartitionProcessor exchangeRatePartitionProcessor
+
+    @Autowired
+    DSLContext dsl
+
+    // long past the tick retention, the migration and the maintainer never make its partition
+    LocalDate day = LocalDate.now(ZoneOffset.UTC).minusDays(30)
+    OffsetDateTime start = day.atTime(10, 0).atOffset(ZoneOffset.UTC)
+
+    def cleanup() {
+        dsl.execute("SELECT drop_exchange_rate_partition(?::date)", day.toString())
+        dsl.execute("DELETE FROM exchange_rate WHERE currency_pair = ?", PAIR)
+        dsl.execute("DELETE FROM exchange_rate_bar WHERE currency_pair = ?", PAIR)
+        dsl.execute("DELETE FROM latest_rate WHERE currency_pair = ?", PAIR)
+    }
+
+    def "Creating the partition of a day moves its ticks out of the default partition"() {
+        given:
+            addTicks()
+            def neighbour = new ExchangeRate(PAIR, 2.0, day.plusDays(1).atStartOfDay().atOffset(ZoneOffset.UTC))
+            exchangeRateRepository.addRates([neighbour]).get()
+
+        expect:
+            defaultTicks() == 7
+
+        when:
+            def created = exchangeRateHistoryRepository.createPartition(day).get()
+
+        then: "only the ticks of that day are moved"
+            created
+            defaultTicks() == 1
+            dsl.fetchValue("SELECT count(*) FROM ${partition()} WHERE currency_pair = ?".toString(), PAIR) == 6
+            exchangeRateHistoryRepository.getPartitionDays().get().contains(day)
+
+        and: "the ticks are still read through the parent table"
+            exchangeRateRepository.getRates(PAIR, start, start.plusHours(2), 10).get()*.rate == [1.0, 1.1, 1.2, 1.3, 1.4, 0.5]
+            exchangeRateRepository.getRateAt(PAIR, start.plusSeconds(70)).get().rate == 1.3
+
+        when:
+            def again = exchangeRateHistoryRepository.createPartition(day).get()
+
+        then:
+            !again
+            dsl.fetchValue("SELECT count(*) FROM exchange_rate WHERE currency_pair = ?", PAIR) == 7
+    }
+
+    def "The ticks of a partition are rolled up into bars before it is dropped"() {
+        given:
+            addTicks()
+            exchangeRateHistoryRepository.createPartition(day).get()
+
+        when:
+            def dropped = exchangeRateHistoryRepository.dropPartition(day, true).get()
+
+        then:
+            dropped
+            !exchangeRateHistoryRepository.getPartitionDays().get().contains(day)
+            dsl.fetchValue("SELECT count(*) FROM exchange_rate WHERE currency_pair = ?", PAIR) == 0
+
+        and: "a minute bar per minute and an hour bar per hour with ticks"
+            bars("minute") == [
+                    [start, 1.0, 1.2, 1.0, 1.2, 3],
+                    [start.plusMinutes(1), 1.3, 1.4, 1.3, 1.4, 2],
+                    [start.plusMinutes(61), 0.5, 0.5, 0.5, 0.5, 1]]
+            bars("hour") == [
+                    [start, 1.0, 1.4, 1.0, 1.4, 5],
+                    [start.plusHours(1), 0.5, 0.5, 0.5, 0.5, 1]]
+    }
+
+    def "The rate at an instant whose tick was rolled up is the close of its bar"() {
+        given:
+            addTicks()
+            exchangeRateHistoryRepository.createPartition(day).get()
+            exchangeRateHistoryRepository.dropPartition(day, true).get()
+
+        expect: "the last minute bar closed by then"
+            exchangeRateRepository.getRateAt(PAIR, start.plusSeconds(50)).get().rate == 1.2
+            exchangeRateRepository.getRateAt(PAIR, start.plusMinutes(30)).get().rate == 1.4
+            exchangeRateRepository.getRateAt(PAIR, start.plusHours(3)).get().rate == 0.5
+
+        when: "the minute bars are past their retention"
+            dsl.execute("DELETE FROM exchange_rate_bar WHERE currency_pair = ? AND resolution = 'minute'", PAIR)
+
+        then: "the last hour bar closed by then"
+            exchangeRateRepository.getRateAt(PAIR, start.plusMinutes(30)).get().rate == 1.4
+            exchangeRateRepository.getRateAt(PAIR, start.plusHours(3)).get().rate == 0.5
+            exchangeRateRepository.getRateAt(PAIR, start.minusSeconds(1)).isLeft()
+    }
+
+    def "A day without a partition is not dropped and its ticks are not rolled up"() {
+        given:
+            addTicks()
+
+        when:
+            def dropped = exchangeRateHistoryRepository.dropPartition(day, true)
+
+        then:
+            dropped.isLeft()
+            defaultTicks() == 6
+            bars("minute").isEmpty()
+            bars("hour").isEmpty()
+    }
+
+    def "Maintenance rolls up and drops the partitions past the retention and makes the coming ones"() {
+        given:
+            addTicks()
+            exchangeRateHistoryRepository.createPartition(day).get()
+            def today = LocalDate.now(ZoneOffset.UTC)
+
+        when:
+            exchangeRatePartitionProcessor.maintainPartitions()
+
+        then:
+            def days = exchangeRateHistoryRepository.getPartitionDays().get()
+            !days.contains(day)
+            days.first() >= today.minusDays(7)
+            (0..7).every { days.contains(today.plusDays(it)) }
+            dsl.fetchValue("SELECT count(*) FROM exchange_rate WHERE currency_pair = ?", PAIR) == 0
+            bars("hour").collect { it[5] } == [5, 1]
+    }
+
+    /**
+     * Adds six ticks over two hours of the day to the default partition
+     */
+    private void addTicks() {
+        def ticks = (0..4).collect { new ExchangeRate(PAIR, 1.0 + it * 0.1, start.plusSeconds(it * 20)) } +
+                [new ExchangeRate(PAIR, 0.5, start.plusMinutes(61))]
+        exchangeRateRepository.addRates(ticks).get()
+    }
+
+    private String partition() {
+        "exchange_rate_p" + day.format(DateTimeFormatter.BASIC_ISO_DATE)
+    }
+
+    private int defaultTicks() {
+        dsl.fetchValue("SELECT count(*) FROM exchange_rate_default WHERE currency_pair = ?", PAIR) as int
+    }
+
+    private List<List> bars(String resolution) {
+        dsl.fetch("""
+            SELECT bucket_start, open, high, low, close, tick_count FROM exchange_rate_bar
+            WHERE currency_pair = ? AND resolution = ? ORDER BY bucket_start""", PAIR, resolution)
+                .collect { [it.get(0, OffsetDateTime).withOffsetSameInstant(ZoneOffset.UTC), it.get(1), it.get(2), it.get(3), it.get(4), it.get(5)] }
+    }
+}
@@ -0,0 +1,212 @@
+package com.spherelabs.processors
+
+import com.spherelabs.ManualSettlementSpecification
+import com.spherelabs.config.AppConfiguration
+import com.spherelabs.model.LiquidityMovement
+import com.spherelabs.model.Transaction
+import com.spherelabs.repository.LedgerRepository
+import com.spherelabs.repository.LiquidityRepository
+import com.spherelabs.repository.TransactionRepository
+import com.spherelabs.services.LiquidityService
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.jooq.DSLContext
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.util.ReflectionTestUtils
+
+import java.time.OffsetDateTime
+
+@SpringBootTest
+class ExpirySweeperSpec extends ManualSettlementSpecification {
+    // a currency of its own, so the shard balances checked here are not moved by other specs
+    static final String CURRENCY = "XSW"
+
+    @Autowired
+    TransactionRepository transactionRepository
+
+    @Autowired
+    LedgerRepository ledgerRepository
+
+    @Autowired
+    LiquidityRepository liquidityRepository
+
+    @Autowired
+    LiquidityService liquidityService
+
+    @Autowired
+    DSLContext dsl
+
+    String prefix = "sweep-${System.nanoTime()}|".toString()
+
+    def setup() {
+        dsl.execute("INSERT INTO currency (code, precision, settlement_time) VALUES (?, 2, interval '1 hour')", CURRENCY)
+        dsl.execute("INSERT INTO liquidity_pool (currency_code, available_balance, locked_balance) VALUES (?, 0, 0)", CURRENCY)
+        dsl.execute("INSERT INTO liquidity_pool_shard (currency_code, shard_id, available_balance, locked_balance) VALUES (?, 0, 500, 0), (?, 1, 500, 0)", CURRENCY, CURRENCY)
+    }
+
+    def cleanup() {
+        // transactions of other specs claimed along the way are due again right away
+        dsl.execute("UPDATE transaction SET settlement_claimed_by = NULL, settlement_claim_expires_at = NULL WHERE settlement_claimed_by = ?", prefix + "node")
+        dsl.execute("DELETE FROM transaction WHERE internal_transfer_id LIKE ?", prefix + "%")
+        dsl.execute("DELETE FROM ledger WHERE currency_code = ?", CURRENCY)
+        dsl.execute("DELETE FROM liquidity_pool_shard WHERE currency_code = ?", CURRENCY)
+        dsl.execute("DELETE FROM liquidity_pool WHERE currency_code = ?", CURRENCY)
+        dsl.execute("DELETE FROM currency WHERE code = ?", CURRENCY)
+    }
+
+    def "Failed and expired transactions get their funds back once, on the shards they were locked on"() {
+        given:
+            def shards = shardBalances()
+            def failed = (1..4).collect { insert("failed-$it", "failed", lock("failed-$it", 10 * it, 0.50)) }
+            def expired = (1..4).collect { insert("expired-$it", "funds_locked", lock("expired-$it", 5 * it, 0.25)) }
+            def lockedShards = lockedByShard()
+
+        when:
+            sweeper(5, 100).sweep()
+
+        then: "each shard got back exactly what was locked on it"
+            lockedShards.values().sum() == 153.00
+            shardBalances() == shards
+            ledgerCount("unlock") == 8
+            ledgerCount("margin_unlock") == 8
+            ledgerUnlockedByShard() == lockedShards
+
+        and:
+            failed.every { settlement(it) == [status: "failed", settlement_status: "settlement_stopped", settlement_message: "Transaction failed"] }
+            expired.every { settlement(it) == [status: "expired", settlement_status: "settlement_stopped", settlement_message: "Transaction failed"] }
+
+        when: "the same locks are unlocked again"
+            def lockIds = (failed + expired).collect { dsl.fetchValue("SELECT locked_id FROM transaction WHERE id = ?", it) as Long }
+            def again = liquidityService.unlockBalances(lockIds).get()
+            sweeper(5, 100).sweep()
+
+        then: "they are reported as unlocked without being unlocked twice"
+            again == lockIds.toSet()
+            shardBalances() == shards
+            ledgerCount("unlock") == 8
+            ledgerCount("margin_unlock") == 8
+    }
+
+    def "A transaction that was already unlocked or whose lock is missing requires intervention"() {
+        given:
+            def unlocked = insert("unlocked", "funds_locked", lock("unlocked", 10, 0.50), 0, 42)
+            def missing = insert("missing", "failed", Long.MAX_VALUE)
+            def shards = lockedByShard()
+
+        when:
+            sweeper(5, 100).sweep()
+
+        then:
+            settlement(unlocked) == [status: "expired", settlement_status: "require_intervention", settlement_message: "Amount unlocked does not match expected amount"]
+            settlement(missing) == [status: "failed", settlement_status: "require_intervention", settlement_message: "weird but the lock id is not found"]
+            lockedByShard() == shards
+            ledgerCount("unlock") == 0
+    }
+
+    def "Locks their shard no longer covers are retried until the attempts run out"() {
+        given:
+            insert("first", "failed", lock("first", 10, 0.50))
+            def last = insert("last", "funds_locked", lock("last", 20, 0.50), 1)
+
+        and: "the locked balance of the shards was lost"
+            dsl.execute("UPDATE liquidity_pool_shard SET available_balance = available_balance + locked_balance, locked_balance = 0 WHERE currency_code = ?", CURRENCY)
+            def shards = shardBalances()
+
+        when:
+            sweeper(5, 100).sweep()
+
+        then:
+            with(transactionRepository.getTransaction(prefix + "first").get()) {
+                it.status == Transaction.Status.FAILED
+                it.settlementStatus == null
+                it.settlementAttempts == 1
+            }
+            settlement(last) == [status: "funds_locked", settlement_status: "require_intervention", settlement_message: "Failed to return locked funds"]
+            dsl.fetchValue("SELECT settlement_attempts FROM transaction WHERE id = ?", last) == 2
+            shardBalances() == shards
+            ledgerCount("unlock") == 0
+    }
+
+    def "A sweep handles no more transactions than its budget, in batches"() {
+        given:
+            (1..10).each { insert("budget-$it", "failed", lock("budget-$it", 1, 0)) }
+
+        when: "the budget is 7 transactions a second and the sweep runs every second"
+            sweeper(3, 7).sweep()
+
+        then:
+            stopped() == 7
+            ledgerCount("unlock") == 7
+
+        when:
+            sweeper(3, 7).sweep()
+
+        then:
+            stopped() == 10
+            ledgerCount("unlock") == 10
+            shardBalances() == [500.00, 500.00]
+    }
+
+    /**
+     * A sweeper of its own, so the budget can be set per feature without changing the sweeper of the context
+     */
+    private ExpirySweeper sweeper(int batchSize, int maxPerSecond) {
+        def appConfiguration = new AppConfiguration()
+        appConfiguration.expirySweeper = true
+        appConfiguration.maxSettlementAttempts = 2
+        appConfiguration.nodeId = prefix + "node"
+        def sweeper = new ExpirySweeper(transactionRepository, ledgerRepository, liquidityService, appConfiguration, new SimpleMeterRegistry())
+        ReflectionTestUtils.setField(sweeper, "batchSize", batchSize)
+        ReflectionTestUtils.setField(sweeper, "maxPerSecond", maxPerSecond)
+        ReflectionTestUtils.setField(sweeper, "sweepMilliseconds", 1000L)
+        sweeper.init()
+        sweeper
+    }
+
+    private Long lock(String name, BigDecimal amount, BigDecimal margin) {
+        liquidityRepository.lockBalance(new LiquidityMovement(prefix + name, CURRENCY, Transaction.Type.LOCK, amount, OffsetDateTime.now(), "Lock funds", margin)).get()
+    }
+
+    /**
+     * Inserts a transaction due long before those of any other spec, so a sweep claims the inserted ones first
+     */
+    private Long insert(String name, String status, Long lockedId, int attempts = 0, Long unlockedId = null) {
+        dsl.fetchValue("""
+            INSERT INTO transaction (transfer_id, internal_transfer_id, sender_account, receiver_account, from_amount, from_currency,
+                                     to_amount, to_currency, margin, margin_currency, fx_rate, rate_effective_date, margin_rate, status,
+                                     locked_id, unlocked_id, scheduled_settlement_time, settlement_window, settlement_attempts, created_at, description)
+            VALUES (?, ?, 'sender', 'receiver', 1, 'USD', 1, ?, 0, ?, 1, timestamptz '2000-01-01', 0, ?::transaction_status,
+                    ?, ?, timestamptz '2000-01-01 01:00', interval '1 hour', ?, timestamptz '2000-01-01', 'Sweep')
+            RETURNING id""", prefix + name, prefix + name, CURRENCY, CURRENCY, status, lockedId, unlockedId, attempts) as Long
+    }
+
+    private Map settlement(Long transactionId) {
+        def record = dsl.fetchOne("SELECT status::text, settlement_status, settlement_message FROM transaction WHERE id = ?", transactionId)
+        [status: record.get(0), settlement_status: record.get(1), settlement_message: record.get(2)]
+    }
+
+    private int stopped() {
+        dsl.fetchValue("SELECT count(*) FROM transaction WHERE internal_transfer_id LIKE ? AND settlement_status = 'settlement_stopped'", prefix + "%") as int
+    }
+
+    private int ledgerCount(String type) {
+        dsl.fetchValue("SELECT count(*) FROM ledger WHERE currency_code = ? AND transaction_type = ?", CURRENCY, type) as int
+    }
+
+    private List<BigDecimal> shardBalances() {
+        dsl.fetch("SELECT available_balance FROM liquidity_pool_shard WHERE currency_code = ? ORDER BY shard_id", CURRENCY)
+                .collect { it.get(0) as BigDecimal }
+    }
+
+    private Map<Integer, BigDecimal> lockedByShard() {
+        dsl.fetch("SELECT shard_id, locked_balance FROM liquidity_pool_shard WHERE currency_code = ? AND locked_balance > 0 ORDER BY shard_id", CURRENCY)
+                .collectEntries { [(it.get(0) as Integer): it.get(1) as BigDecimal] }
+    }
+
+    private Map<Integer, BigDecimal> ledgerUnlockedByShard() {
+        dsl.fetch("""
+            SELECT shard_id, sum(amount) FROM ledger WHERE currency_code = ? AND transaction_type IN ('unlock', 'margin_unlock')
+            GROUP BY shard_id ORDER BY shard_id""", CURRENCY)
+                .collectEntries { [(it.get(0) as Integer): it.get(1) as BigDecimal] }
+    }
+}
@@ -0,0 +1,99 @@
+package com.spherelabs.processors
+
+import com.spherelabs.cache.CrossRateEngine
+import com.spherelabs.cache.LatestRateCache
+import com.spherelabs.config.AppConfiguration
+import com.spherelabs.model.ExchangeRate
+import com.spherelabs.processors.RebalanceOptimizer.Position
+import org.springframework.test.util.ReflectionTestUtils
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.OffsetDateTime
+
+class RebalanceOptimizerSpec extends Specification {
+    LatestRateCache latestRateCache = Stub()
+    CrossRateEngine crossRateEngine = Stub()
+    AppConfiguration appConfiguration = new AppConfiguration()
+    RebalanceOptimizer rebalanceOptimizer = new RebalanceOptimizer(latestRateCache, crossRateEngine, appConfiguration)
+    Map<String, ExchangeRate> rates = [:]
+
+    def setup() {
+        ReflectionTestUtils.setField(rebalanceOptimizer, "pivots", ["USD", "EUR"])
+        ReflectionTestUtils.setField(rebalanceOptimizer, "minimumRebalanceAmount", 1000 as BigDecimal)
+        ReflectionTestUtils.setField(rebalanceOptimizer, "donorMaxRatio", 0.5)
+        latestRateCache.get(_) >> { arguments -> Optional.ofNullable(rates[arguments[0]]) }
+        crossRateEngine.get(_) >> Optional.empty()
+        rate("EUR/USD", 1.1)
+        rate("USD/JPY", 150)
+        rate("GBP/USD", 1.25)
+    }
+
+    def "Surpluses cover the deficits largest first"() {
+        when:
+            def plan = rebalanceOptimizer.plan([
+                    new Position("USD", 1000, 5000, 10000),
+                    new Position("EUR", 100000, 10000, 20000),
+                    new Position("JPY", 100, 1000000, 2000000),
+                    new Position("GBP", 4000, 1000, 2000)])
+
+        then: "the JPY deficit is worth the most, through the inverse of USD/JPY, and EUR has the largest surplus"
+            plan.moves().size() == 2
+            plan.moves()[0] == new RebalanceOptimizer.Move("EUR", 12120.606061, "JPY", 1999900.000000)
+            plan.moves()[1] == new RebalanceOptimizer.Move("EUR", 8181.818182, "USD", 9000.000000)
+            plan.topUps().isEmpty()
+
+        and: "a donor gives at most its share of its available balance"
+            plan.moves().sum { it.fromAmount() } <= 50000
+    }
+
+    def "What the surpluses cannot cover is topped up from the master pool"() {
+        when:
+            def plan = rebalanceOptimizer.plan([
+                    new Position("USD", 0, 50000, 100000),
+                    new Position("GBP", 10000, 1000, 2000)])
+
+        then:
+            plan.moves() == [new RebalanceOptimizer.Move("GBP", 5000.000000, "USD", 6250.000000)]
+            plan.topUps() == [USD: 93750.000000]
+    }
+
+    def "A pool without a usable rate is only topped up"() {
+        given:
+            appConfiguration.maxRateAge = Duration.ofMinutes(1)
+            rate("GBP/USD", 1.25, OffsetDateTime.now().minusMinutes(5))
+
+        when:
+            def plan = rebalanceOptimizer.plan([
+                    new Position("CHF", 0, 5000, 10000),
+                    new Position("GBP", 0, 5000, 10000),
+                    new Position("EUR", 100000, 10000, 20000)])
+
+        then:
+            plan.moves().isEmpty()
+            plan.topUps() == [CHF: 10000.000000, GBP: 10000.000000]
+    }
+
+    def "Deficits and moves below the minimum amount are left out"() {
+        when:
+            def plan = rebalanceOptimizer.plan([
+                    new Position("USD", 4500, 5000, 5200),
+                    new Position("GBP", 1500, 1000, 1000),
+                    new Position("EUR", 0, 5000, 1500)])
+
+        then: "USD is short by less than the minimum and the GBP surplus is worth less than the EUR deficit needs"
+            plan.moves().isEmpty()
+            plan.topUps() == [EUR: 1500.000000]
+    }
+
+    def "Nothing is planned when no pool is short"() {
+        expect:
+            rebalanceOptimizer.plan([
+                    new Position("USD", 10000, 5000, 10000),
+                    new Position("EUR", 100000, 10000, 20000)]).isEmpty()
+    }
+
+    private void rate(String currencyPair, BigDecimal rate, OffsetDateTime timestamp = OffsetDateTime.now()) {
+        rates[currencyPair] = new ExchangeRate(currencyPair, rate, timestamp)
+    }
+}
@@ -0,0 +1,101 @@
+package com.spherelabs.processors
+
+import com.spherelabs.ManualSettlementSpecification
+import com.spherelabs.model.LiquidityMovement
+import com.spherelabs.model.Transaction
+import com.spherelabs.repository.LiquidityRepository
+import com.spherelabs.repository.RecoveryTaskRepository
+import com.spherelabs.repository.TransactionRepository
+import org.jooq.DSLContext
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import spock.util.concurrent.PollingConditions
+
+import java.time.Duration
+import java.time.OffsetDateTime
+
+@SpringBootTest
+class RecoveryProcessorSpec extends ManualSettlementSpecification {
+    @Autowired
+    RecoveryProcessor recoveryProcessor
+
+    @Autowired
+    RecoveryTaskRepository recoveryTaskRepository
+
+    @Autowired
+    TransactionRepository transactionRepository
+
+    @Autowired
+    LiquidityRepository liquidityRepository
+
+    @Autowired
+    DSLContext dsl
+
+    String prefix = "recovery-${System.nanoTime()}|".toString()
+
+    def cleanup() {
+        dsl.execute("DELETE FROM recovery_task WHERE transaction_id IN (SELECT id FROM transaction WHERE internal_transfer_id LIKE ?)", prefix + "%")
+        dsl.execute("UPDATE transaction SET settlement_claimed_by = NULL, settlement_claim_expires_at = NULL WHERE settlement_claimed_by = ?", prefix)
+        dsl.execute("DELETE FROM transaction WHERE internal_transfer_id LIKE ?", prefix + "%")
+    }
+
+    def "An INITIATED transaction is failed with its lock by recovery before settlement claims it"() {
+        given: "a transfer that broke off after locking its funds and is already due for settlement"
+            def transaction = insertInitiated(prefix + "locked")
+            def lockId = liquidityRepository.lockBalance(new LiquidityMovement(transaction.internalTransferId, "EUR", Transaction.Type.LOCK,
+                    10.0, OffsetDateTime.now(), "Lock funds", 0.5)).get()
+            recoveryTaskRepository.enqueue(transaction.id, Duration.ZERO).get()
+
+        expect: "settlement leaves it to recovery"
+            !claimed(transaction.id)
+
+        when:
+            recoveryProcessor.processRecoveries()
+
+        then:
+            new PollingConditions(timeout: 10).eventually {
+                def recovered = transactionRepository.getTransaction(transaction.internalTransferId).get()
+                assert recovered.status == Transaction.Status.FAILED
+                assert recovered.lockedId == lockId
+                assert recovered.failureReason == "Processing was interrupted before the transfer was submitted"
+                assert dsl.fetchCount(dsl.selectFrom("recovery_task").where("transaction_id = ?", transaction.id)) == 0
+            }
+
+        and: "settlement then returns its funds"
+            claimed(transaction.id)
+    }
+
+    def "An INITIATED transaction without a lock is failed with settlement stopped"() {
+        given:
+            def transaction = insertInitiated(prefix + "unlocked")
+            recoveryTaskRepository.enqueue(transaction.id, Duration.ZERO).get()
+
+        when:
+            recoveryProcessor.processRecoveries()
+
+        then:
+            new PollingConditions(timeout: 10).eventually {
+                def recovered = transactionRepository.getTransaction(transaction.internalTransferId).get()
+                assert recovered.status == Transaction.Status.FAILED
+                assert recovered.lockedId == null
+                assert recovered.settlementStatus == Transaction.SettlementStatus.SETTLEMENT_STOPPED
+            }
+            !claimed(transaction.id)
+    }
+
+    // the transaction is due long before those of other specs, so a small claim holds it when it is claimable
+    private boolean claimed(Long transactionId) {
+        transactionRepository.claimSettlementEligibleTransactions(prefix, Duration.ofMinutes(1), 0, 10).get()
+                .any { it.id == transactionId }
+    }
+
+    private Transaction insertInitiated(String internalTransferId) {
+        dsl.execute("""
+            INSERT INTO transaction (transfer_id, internal_transfer_id, sender_account, receiver_account, from_amount, from_currency,
+                                     to_amount, to_currency, margin, margin_currency, fx_rate, rate_effective_date, margin_rate, status,
+                                     scheduled_settlement_time, settlement_window, created_at, description)
+            VALUES (?, ?, 'sender', 'receiver', 10, 'USD', 10, 'EUR', 0.5, 'EUR', 1, now(), 0.05, 'initiated',
+                    timestamptz '2000-01-01 01:00', interval '3 seconds', timestamptz '2000-01-01', 'Recovery')""", internalTransferId, internalTransferId)
+        transactionRepository.getTransaction(internalTransferId).get()
+    }
+}
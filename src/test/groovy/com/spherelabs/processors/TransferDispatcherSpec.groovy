@@ -0,0 +1,163 @@
+package com.spherelabs.processors
+
+import com.spherelabs.ManualSettlementSpecification
+import com.spherelabs.model.Transaction
+import com.spherelabs.repository.TransactionRepository
+import com.spherelabs.repository.TransferOutboxRepository
+import org.jooq.DSLContext
+import org.jooq.impl.DSL
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.context.TestPropertySource
+
+import java.time.OffsetDateTime
+
+// the outbox is only drained when the spec dispatches
+@SpringBootTest
+@TestPropertySource(properties = [
+        "app.async-transfer=true",
+        "app.transfer-dispatch-poll-milliseconds=3600000",
+        "app.transfer-dispatch-max-attempts=3",
+        "app.transfer-dispatch-retry-backoff=10s"])
+class TransferDispatcherSpec extends ManualSettlementSpecification {
+    @Autowired
+    TransferDispatcher transferDispatcher
+
+    @Autowired
+    TransferOutboxRepository transferOutboxRepository
+
+    @Autowired
+    TransactionRepository transactionRepository
+
+    @Autowired
+    DSLContext dsl
+
+    String prefix = "dispatch-${System.nanoTime()}|".toString()
+
+    def cleanup() {
+        dsl.execute("DELETE FROM transfer_outbox WHERE transaction_id IN (SELECT id FROM transaction WHERE internal_transfer_id LIKE ?) OR transaction_id < 0", prefix + "%")
+        dsl.execute("DELETE FROM transaction WHERE internal_transfer_id LIKE ?", prefix + "%")
+    }
+
+    def "The provider result of every queued transfer is recorded and its entry removed"() {
+        given: "the dummy provider answers by the prefix of the sender account"
+            def completed = queue("completed", "44412345")
+            def processing = queue("processing", "22212345")
+            def failed = queue("failed", "11112345")
+
+        when:
+            transferDispatcher.dispatch()
+
+        then:
+            status(completed) == Transaction.Status.COMPLETED
+            status(processing) == Transaction.Status.PROCESSING
+            status(failed) == Transaction.Status.FAILED
+            entry(completed) == null
+            entry(processing) == null
+            entry(failed) == null
+    }
+
+    def "A failed submission is retried with a growing backoff and left PROCESSING once its attempts run out"() {
+        given:
+            def transaction = queue("retried", "33312345")
+
+        when:
+            def before = OffsetDateTime.now()
+            transferDispatcher.dispatch()
+
+        then: "the first retry waits the backoff"
+            status(transaction) == Transaction.Status.FUNDS_LOCKED
+            with(entry(transaction)) {
+                it.attempts == 1
+                it.last_error == "Unexpected error occurred. Please try again later"
+                !it.next_attempt_at.isBefore(before.plusSeconds(10))
+                it.next_attempt_at.isBefore(OffsetDateTime.now().plusSeconds(11))
+            }
+
+        when: "the entry is not due yet"
+            transferDispatcher.dispatch()
+
+        then:
+            entry(transaction).attempts == 1
+
+        when:
+            makeDue(transaction)
+            before = OffsetDateTime.now()
+            transferDispatcher.dispatch()
+
+        then: "the second retry waits twice as long"
+            entry(transaction).attempts == 2
+            !entry(transaction).next_attempt_at.isBefore(before.plusSeconds(20))
+            status(transaction) == Transaction.Status.FUNDS_LOCKED
+
+        when:
+            makeDue(transaction)
+            transferDispatcher.dispatch()
+
+        then: "the last attempt fails like a failed synchronous submission"
+            entry(transaction) == null
+            with(transactionRepository.getTransaction(prefix + "retried").get()) {
+                it.status == Transaction.Status.PROCESSING
+                it.failureReason == "Failed to initiate transfer. unknown_error"
+            }
+    }
+
+    def "An entry whose transaction does not exist is removed"() {
+        given: "an entry left behind without its transaction"
+            def transactionId = -System.nanoTime()
+            dsl.transaction { config ->
+                DSL.using(config).execute("SET LOCAL session_replication_role = replica")
+                DSL.using(config).execute("INSERT INTO transfer_outbox (transaction_id) VALUES (?)", transactionId)
+            }
+
+        when:
+            transferDispatcher.dispatch()
+
+        then:
+            dsl.fetchValue("SELECT count(*) FROM transfer_outbox WHERE transaction_id = ?", transactionId) == 0
+    }
+
+    def "Only transactions still waiting on the provider get its result"() {
+        given: "a transaction failed by recovery while its transfer was queued"
+            def waiting = queue("waiting", "44412345")
+            def recovered = queue("recovered", "44412345")
+            dsl.execute("UPDATE transaction SET status = 'failed', failure_reason = 'Recovered' WHERE id = ?", recovered)
+
+        when:
+            transferDispatcher.dispatch()
+
+        then:
+            status(waiting) == Transaction.Status.COMPLETED
+            status(recovered) == Transaction.Status.FAILED
+            transactionRepository.getTransaction(prefix + "recovered").get().failureReason == "Recovered"
+            entry(waiting) == null
+            entry(recovered) == null
+    }
+
+    private Long queue(String name, String senderAccount) {
+        def id = dsl.fetchValue("""
+            INSERT INTO transaction (transfer_id, internal_transfer_id, sender_account, receiver_account, from_amount, from_currency,
+                                     to_amount, to_currency, margin, margin_currency, fx_rate, rate_effective_date, margin_rate, status,
+                                     scheduled_settlement_time, settlement_window, created_at, description)
+            VALUES (?, ?, ?, 'receiver', 10, 'USD', 10, 'EUR', 0.5, 'EUR', 1, now(), 0.05, 'funds_locked',
+                    now() + interval '1 hour', interval '1 hour', now(), 'Dispatch')
+            RETURNING id""", prefix + name, prefix + name, senderAccount) as Long
+        transferOutboxRepository.enqueue(id).get()
+        id
+    }
+
+    private Transaction.Status status(Long transactionId) {
+        Transaction.Status.from(dsl.fetchValue("SELECT status::text FROM transaction WHERE id = ?", transactionId) as String)
+    }
+
+    private Map entry(Long transactionId) {
+        def record = dsl.fetchOne("SELECT attempts, next_attempt_at, last_error FROM transfer_outbox WHERE transaction_id = ?", transactionId)
+        record == null ? null : [attempts       : record.get(0) as int,
+                                 next_attempt_at: record.get(1, OffsetDateTime),
+                                 last_error     : record.get(2) as String]
+    }
+
+    private void makeDue(Long transactionId) {
+        dsl.execute("UPDATE transfer_outbox SET next_attempt_at = now() WHERE transaction_id = ?", transactionId)
+    }
+}
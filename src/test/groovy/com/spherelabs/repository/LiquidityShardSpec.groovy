@@ -0,0 +1,154 @@
+package com.spherelabs.repository
+
+import com.spherelabs.ManualSettlementSpecification
+import com.spherelabs.error.FailureCode
+import com.spherelabs.model.LiquidityMovement
+import com.spherelabs.model.Transaction
+import io.vavr.control.Either
+import org.jooq.DSLContext
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.test.context.SpringBootTest
+
+import java.time.OffsetDateTime
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+
+@SpringBootTest
+class LiquidityShardSpec extends ManualSettlementSpecification {
+    // a currency of its own, so the balances checked here are not moved by other specs
+    static final String CURRENCY = "XTS"
+
+    @Autowired
+    LiquidityRepository liquidityRepository
+
+    @Autowired
+    DSLContext dsl
+
+    @Value('${app.liquidity-shards:8}')
+    int shards
+
+    def setup() {
+        dsl.execute("INSERT INTO currency (code, precision, settlement_time) VALUES (?, 2, interval '1 hour')", CURRENCY)
+        dsl.execute("INSERT INTO liquidity_pool (currency_code, available_balance, locked_balance) VALUES (?, 0, 0)", CURRENCY)
+        dsl.execute("INSERT INTO liquidity_pool_shard (currency_code, shard_id, available_balance, locked_balance) VALUES (?, 0, 1000, 0)", CURRENCY)
+        liquidityRepository.spreadShards(shards).get()
+    }
+
+    def cleanup() {
+        dsl.execute("DELETE FROM ledger WHERE currency_code = ?", CURRENCY)
+        dsl.execute("DELETE FROM liquidity_pool_shard WHERE currency_code = ?", CURRENCY)
+        dsl.execute("DELETE FROM liquidity_pool WHERE currency_code = ?", CURRENCY)
+        dsl.execute("DELETE FROM currency WHERE code = ?", CURRENCY)
+    }
+
+    def "The pool is spread evenly across its shards"() {
+        expect:
+            shardBalances().size() == shards
+            shardBalances().every { it == 1000 / shards }
+            available() == 1000
+    }
+
+    def "Concurrent locks on the same shards keep the pool exact"() {
+        when: "more locks at once than there are shards"
+            def results = concurrently((1..40).collect { index -> { -> lock("shard-fast-$index", 10, 0.50) } })
+
+        then:
+            results.every { it.isRight() }
+            results*.get().toSet().size() == 40
+            locked() == 420
+            available() == 580
+            ledgerLocked() == locked()
+            shardBalances().every { it >= 0 }
+    }
+
+    def "A lock no single shard can cover consolidates the shards, also while smaller locks run"() {
+        when:
+            def results = concurrently(
+                    (1..3).collect { index -> { -> lock("shard-large-$index", 250, 0) } } +
+                    (1..10).collect { index -> { -> lock("shard-small-$index", 10, 0) } })
+
+        then:
+            results.every { it.isRight() }
+            locked() == 850
+            available() == 150
+            ledgerLocked() == locked()
+            shardBalances().every { it >= 0 }
+
+        and: "each large lock was taken from a single shard"
+            dsl.fetchValue("""
+                SELECT count(*) FROM ledger l JOIN liquidity_pool_shard s ON s.currency_code = l.currency_code AND s.shard_id = l.shard_id
+                WHERE l.currency_code = ? AND l.transaction_type = 'lock' AND l.amount = 250 AND s.locked_balance >= 250""", CURRENCY) == 3
+    }
+
+    def "A lock the whole pool cannot cover fails without changing any shard"() {
+        given:
+            lock("shard-before", 100, 0).get()
+            def before = shardBalances()
+
+        when:
+            def result = lock("shard-too-large", 900, 0)
+
+        then:
+            result.getLeft().code() == FailureCode.INSUFFICIENT_FUNDS.code
+            shardBalances() == before
+            locked() == 100
+            ledgerLocked() == locked()
+    }
+
+    def "Spreading the shards again keeps locked funds where they are and the pool exact"() {
+        given:
+            concurrently((1..5).collect { index -> { -> lock("shard-spread-$index", 300 - index * 50, 0.25) } })
+            def lockedShards = lockedBalances()
+
+        when:
+            liquidityRepository.spreadShards(shards).get()
+
+        then:
+            lockedBalances() == lockedShards
+            locked() == 751.25
+            available() == 248.75
+            ledgerLocked() == locked()
+            shardBalances().max() - shardBalances().min() <= 0.000008
+    }
+
+    private Either lock(String transactionId, BigDecimal amount, BigDecimal margin) {
+        liquidityRepository.lockBalance(new LiquidityMovement("$transactionId-${System.nanoTime()}".toString(), CURRENCY, Transaction.Type.LOCK,
+                amount, OffsetDateTime.now(), "Lock funds", margin))
+    }
+
+    private <T> List<T> concurrently(List<Closure<T>> tasks) {
+        def executor = Executors.newFixedThreadPool(tasks.size())
+        def start = new CountDownLatch(1)
+        try {
+            def futures = tasks.collect { task -> executor.submit({ start.await(); task() } as Callable<T>) }
+            start.countDown()
+            futures*.get()
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    private List<BigDecimal> shardBalances() {
+        dsl.fetch("SELECT available_balance FROM liquidity_pool_shard WHERE currency_code = ? ORDER BY shard_id", CURRENCY)
+                .collect { it.get(0) as BigDecimal }
+    }
+
+    private List<BigDecimal> lockedBalances() {
+        dsl.fetch("SELECT locked_balance FROM liquidity_pool_shard WHERE currency_code = ? ORDER BY shard_id", CURRENCY)
+                .collect { it.get(0) as BigDecimal }
+    }
+
+    private BigDecimal available() {
+        dsl.fetchValue("SELECT sum(available_balance) FROM liquidity_pool_shard WHERE currency_code = ?", CURRENCY) as BigDecimal
+    }
+
+    private BigDecimal locked() {
+        dsl.fetchValue("SELECT sum(locked_balance) FROM liquidity_pool_shard WHERE currency_code = ?", CURRENCY) as BigDecimal
+    }
+
+    private BigDecimal ledgerLocked() {
+        dsl.fetchValue("SELECT coalesce(sum(amount), 0) FROM ledger WHERE currency_code = ? AND transaction_type IN ('lock', 'margin_lock')", CURRENCY) as BigDecimal
+    }
+}
@@ -0,0 +1,122 @@
+package com.spherelabs.repository
+
+import com.spherelabs.ManualSettlementSpecification
+import com.spherelabs.model.Transaction
+import org.jooq.DSLContext
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+
+import java.time.Duration
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+@SpringBootTest
+class SettlementClaimSpec extends ManualSettlementSpecification {
+    @Autowired
+    TransactionRepository transactionRepository
+
+    @Autowired
+    DSLContext dsl
+
+    // prefix of the internal transfer ids and of the nodes of a feature
+    String prefix = "claim-${System.nanoTime()}|".toString()
+
+    def cleanup() {
+        // transactions of other specs claimed along the way are due again right away
+        dsl.execute("UPDATE transaction SET settlement_claimed_by = NULL, settlement_claim_expires_at = NULL WHERE settlement_claimed_by LIKE ?", prefix + "%")
+        dsl.execute("DELETE FROM transaction WHERE internal_transfer_id LIKE ?", prefix + "%")
+    }
+
+    def "Concurrent claims never take the same transaction"() {
+        given:
+            insertDue(400, 0)
+            def executor = Executors.newFixedThreadPool(8)
+
+        when: "the nodes together claim exactly as many transactions as are inserted, which are due before any other"
+            def claims = (1..8).collect { node ->
+                executor.submit({
+                    transactionRepository.claimSettlementEligibleTransactions(prefix + "node-$node", Duration.ofMinutes(1), 3, 50).get()
+                } as Callable<List<Transaction>>)
+            }
+            def claimed = claims.collectMany { it.get(30, TimeUnit.SECONDS) }
+
+        then:
+            claimed.size() == 400
+            claimed.every { it.internalTransferId.startsWith(prefix) }
+            claimed*.id.toSet().size() == 400
+
+        cleanup:
+            executor.shutdown()
+    }
+
+    def "A claimed transaction is claimed again only once its lease has expired"() {
+        given:
+            insertDue(1, 0)
+
+        when:
+            def first = claimMine("node-1", Duration.ofMillis(500), 3)
+            def whileLeased = claimMine("node-2", Duration.ofMinutes(1), 3)
+            Thread.sleep(600)
+            def afterLease = claimMine("node-2", Duration.ofMinutes(1), 3)
+
+        then:
+            first.size() == 1
+            whileLeased.isEmpty()
+            afterLease*.id == first*.id
+    }
+
+    def "A transaction that fails its last attempt requires intervention and is not claimed anymore"() {
+        given:
+            insertDue(2, 1)
+            def transactions = claimMine("node-1", Duration.ofMillis(1), 3)
+
+        when:
+            def once = transactionRepository.incrementSettlementRetryCount(transactions[0].id, 3, "Failed to return locked funds").get()
+            def last = transactionRepository.incrementSettlementRetryCount(transactions[1].id, 3, "Failed to return locked funds").get()
+            transactionRepository.incrementSettlementRetryCount(last.id, 3, "Failed to return locked funds").get()
+            Thread.sleep(10)
+            def claimable = claimMine("node-2", Duration.ofMinutes(1), 3)
+
+        then:
+            once.settlementAttempts == 2
+            once.settlementStatus == null
+            dsl.fetchValue("SELECT settlement_status FROM transaction WHERE id = ?", last.id) == "require_intervention"
+            dsl.fetchValue("SELECT settlement_message FROM transaction WHERE id = ?", last.id) == "Failed to return locked funds"
+            claimable*.id == [once.id]
+    }
+
+    def "Attempts are not limited when the maximum is 0"() {
+        given:
+            insertDue(1, 10)
+
+        when:
+            def claimed = claimMine("node-1", Duration.ofMillis(1), 0)
+            def counted = transactionRepository.incrementSettlementRetryCount(claimed[0].id, 0, "Failed to return locked funds").get()
+
+        then:
+            claimed.size() == 1
+            counted.settlementAttempts == 11
+            counted.settlementStatus == null
+    }
+
+    // the inserted transactions are claimed first, so a small claim holds all of them
+    private List<Transaction> claimMine(String node, Duration lease, int maxAttempts) {
+        transactionRepository.claimSettlementEligibleTransactions(prefix + node, lease, maxAttempts, 10).get()
+                .findAll { it.internalTransferId.startsWith(prefix) }
+                .sort { it.id }
+    }
+
+    /**
+     * Inserts transactions due long before those of any other spec
+     */
+    private void insertDue(int count, int attempts) {
+        dsl.execute("""
+            INSERT INTO transaction (transfer_id, internal_transfer_id, sender_account, receiver_account, from_amount, from_currency,
+                                     to_amount, to_currency, margin, margin_currency, fx_rate, rate_effective_date, margin_rate, status,
+                                     scheduled_settlement_time, settlement_window, settlement_attempts, created_at, description)
+            SELECT ? || g, ? || g, 'sender', 'receiver', 1, 'USD', 1, 'EUR', 0, 'USD', 1, timestamptz '2000-01-01', 0, 'failed',
+                   timestamptz '2000-01-01 01:00', interval '1 hour', ?, timestamptz '2000-01-01', 'Claim'
+            FROM generate_series(1, ?) g""", prefix, prefix, attempts, count)
+    }
+}
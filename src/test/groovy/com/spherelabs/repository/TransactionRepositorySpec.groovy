@@ -0,0 +1,102 @@
+package com.spherelabs.repository
+
+import com.spherelabs.ManualSettlementSpecification
+import com.spherelabs.model.Transaction
+import org.jooq.DSLContext
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+
+import java.time.Duration
+import java.time.OffsetDateTime
+
+@SpringBootTest
+class TransactionRepositorySpec extends ManualSettlementSpecification {
+    @Autowired
+    TransactionRepository transactionRepository
+
+    @Autowired
+    DSLContext dsl
+
+    String prefix = "insert-lock-${System.nanoTime()}|".toString()
+
+    def cleanup() {
+        dsl.execute("DELETE FROM transfer_outbox WHERE transaction_id IN (SELECT id FROM transaction WHERE internal_transfer_id LIKE ?)", prefix + "%")
+    }
+
+    def "A new transaction is inserted with its funds locked and queued for transfer in one go"() {
+        when:
+            def inserted = transactionRepository.insertAndLock(transaction("locked", 10.50), true).get()
+
+        then:
+            inserted.isPresent()
+            inserted.get().status == Transaction.Status.FUNDS_LOCKED
+            inserted.get().lockedId != null
+            dsl.fetchValue("SELECT amount FROM ledger WHERE id = ?", inserted.get().lockedId) == 10.50
+            dsl.fetchValue("SELECT count(*) FROM ledger WHERE transaction_id = ?", prefix + "locked") == 2
+            dsl.fetchValue("SELECT count(*) FROM transfer_outbox WHERE transaction_id = ?", inserted.get().id) == 1
+    }
+
+    def "A transaction is not queued for transfer unless asked to"() {
+        when:
+            def inserted = transactionRepository.insertAndLock(transaction("not-queued", 10.50), false).get()
+
+        then:
+            inserted.get().status == Transaction.Status.FUNDS_LOCKED
+            dsl.fetchValue("SELECT count(*) FROM transfer_outbox WHERE transaction_id = ?", inserted.get().id) == 0
+    }
+
+    def "A transaction that exists already is neither inserted nor locked again"() {
+        given:
+            def first = transactionRepository.insertAndLock(transaction("conflict", 10.50), true).get().get()
+
+        when:
+            def again = transactionRepository.insertAndLock(transaction("conflict", 10.50), true)
+
+        then:
+            again.get().isEmpty()
+            dsl.fetchValue("SELECT count(*) FROM ledger WHERE transaction_id = ?", prefix + "conflict") == 2
+            dsl.fetchValue("SELECT count(*) FROM transfer_outbox WHERE transaction_id = ?", first.id) == 1
+            transactionRepository.getTransaction(prefix + "conflict").get().lockedId == first.lockedId
+    }
+
+    def "A transaction the pool cannot cover is recorded as failed in the same database transaction"() {
+        when:
+            def inserted = transactionRepository.insertAndLock(transaction("insufficient", 900_000_000_000), true).get()
+
+        then:
+            inserted.get().status == Transaction.Status.FAILED
+            inserted.get().settlementStatus == Transaction.SettlementStatus.SETTLEMENT_STOPPED
+            inserted.get().lockedId == null
+            dsl.fetchValue("SELECT count(*) FROM ledger WHERE transaction_id = ?", prefix + "insufficient") == 0
+            dsl.fetchValue("SELECT count(*) FROM transfer_outbox WHERE transaction_id = ?", inserted.get().id) == 0
+
+        and:
+            def stored = transactionRepository.getTransaction(prefix + "insufficient").get()
+            stored.status == Transaction.Status.FAILED
+            stored.settlementStatus == Transaction.SettlementStatus.SETTLEMENT_STOPPED
+    }
+
+    private Transaction transaction(String name, BigDecimal toAmount) {
+        def now = OffsetDateTime.now()
+        def transaction = new Transaction()
+        transaction.transferId = prefix + name
+        transaction.internalTransferId = prefix + name
+        transaction.senderAccount = "sender"
+        transaction.receiverAccount = "receiver"
+        transaction.fromAmount = 10
+        transaction.fromCurrency = "USD"
+        transaction.toAmount = toAmount
+        transaction.toCurrency = "EUR"
+        transaction.margin = 0.30
+        transaction.marginCurrency = "EUR"
+        transaction.marginRate = 0.03
+        transaction.fxRate = 1.08
+        transaction.effectiveRateDate = now
+        transaction.status = Transaction.Status.INITIATED
+        transaction.settlementWindow = Duration.ofHours(1)
+        transaction.scheduledSettlementTime = now.plusHours(1)
+        transaction.createdAt = now
+        transaction.description = "Insert and lock"
+        transaction
+    }
+}
@@ -0,0 +1,121 @@
+package com.spherelabs.services.impl
+
+import com.spherelabs.error.FailureCode
+import com.spherelabs.model.LiquidityMovement
+import com.spherelabs.model.Transaction
+import com.spherelabs.repository.LiquidityRepository
+import io.vavr.control.Either
+import org.springframework.test.util.ReflectionTestUtils
+import spock.lang.Specification
+
+import java.time.Duration
+import java.time.OffsetDateTime
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class LockBatcherSpec extends Specification {
+    LiquidityRepository liquidityRepository = Mock()
+    LockBatcher lockBatcher = new LockBatcher(liquidityRepository)
+
+    def setup() {
+        ReflectionTestUtils.setField(lockBatcher, "windowMicros", 200_000L)
+        ReflectionTestUtils.setField(lockBatcher, "maxBatchSize", 64)
+        ReflectionTestUtils.setField(lockBatcher, "workersPerCurrency", 1)
+        ReflectionTestUtils.setField(lockBatcher, "timeout", Duration.ofSeconds(5))
+    }
+
+    def cleanup() {
+        lockBatcher.stop()
+    }
+
+    def "Concurrent locks of a currency are applied in one batch and each caller gets its own lock id"() {
+        given:
+            def batches = new CopyOnWriteArrayList<List<LiquidityMovement>>()
+            liquidityRepository.lockBalances("USD", _) >> { String currency, List<LiquidityMovement> movements ->
+                batches.add(movements)
+                Either.right(movements.collectEntries { [(it.transactionId()): it.transactionId().replace("tx-", "") as Long] })
+            }
+
+        when:
+            def results = lockAll((1..10).collect { movement("tx-$it", "USD") })
+
+        then:
+            results.collect { it.get() } as Set == (1L..10L) as Set
+            batches.size() < 10
+            batches.sum { it.size() } == 10
+            0 * liquidityRepository.lockBalance(_)
+    }
+
+    def "A transaction already in the batch is locked on its own"() {
+        given:
+            def batches = new CopyOnWriteArrayList<List<LiquidityMovement>>()
+            liquidityRepository.lockBalances("USD", _) >> { String currency, List<LiquidityMovement> movements ->
+                batches.add(movements)
+                Either.right(movements.collectEntries { [(it.transactionId()): 1L] })
+            }
+
+        when:
+            def results = lockAll([movement("tx-1", "USD"), movement("tx-1", "USD")])
+
+        then:
+            results*.get() as Set == [1L, 2L] as Set
+            batches.every { batch -> batch*.transactionId().unique().size() == batch.size() }
+            1 * liquidityRepository.lockBalance(_) >> Either.right(2L)
+    }
+
+    def "A lock that no batch takes in time fails and is never applied"() {
+        given:
+            ReflectionTestUtils.setField(lockBatcher, "workersPerCurrency", 0)
+            ReflectionTestUtils.setField(lockBatcher, "timeout", Duration.ofMillis(200))
+
+        when:
+            def result = lockBatcher.lock(movement("tx-1", "USD"))
+
+        then:
+            result.isLeft()
+            result.getLeft().code() == FailureCode.UNKNOWN_ERROR.code
+            0 * liquidityRepository._
+    }
+
+    def "Stopping fails the locks still waiting for a batch"() {
+        given:
+            ReflectionTestUtils.setField(lockBatcher, "workersPerCurrency", 0)
+            def executor = Executors.newVirtualThreadPerTaskExecutor()
+            def waiting = executor.submit({ lockBatcher.lock(movement("tx-1", "USD")) } as java.util.concurrent.Callable)
+
+        when:
+            Thread.sleep(100)
+            lockBatcher.stop()
+            def result = waiting.get(1, TimeUnit.SECONDS)
+
+        then:
+            result.isLeft()
+            0 * liquidityRepository._
+
+        cleanup:
+            executor.close()
+    }
+
+    private List<Either> lockAll(List<LiquidityMovement> movements) {
+        def start = new CountDownLatch(1)
+        def executor = Executors.newVirtualThreadPerTaskExecutor()
+        try {
+            def futures = movements.collect { movement ->
+                executor.submit({
+                    start.await()
+                    lockBatcher.lock(movement)
+                } as java.util.concurrent.Callable<Either>)
+            }
+            start.countDown()
+            return futures*.get(10, TimeUnit.SECONDS)
+        } finally {
+            executor.close()
+        }
+    }
+
+    private static LiquidityMovement movement(String transactionId, String currency) {
+        new LiquidityMovement(transactionId, currency, Transaction.Type.LOCK, 100.0, OffsetDateTime.now(), "Lock funds", 1.0)
+    }
+}
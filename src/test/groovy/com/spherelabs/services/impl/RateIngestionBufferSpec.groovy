@@ -0,0 +1,102 @@
+package com.spherelabs.services.impl
+
+import com.spherelabs.cache.LatestRateCache
+import com.spherelabs.cache.RateHistoryIndex
+import com.spherelabs.error.Failure
+import com.spherelabs.error.FailureCode
+import com.spherelabs.model.ExchangeRate
+import com.spherelabs.repository.ExchangeRateRepository
+import io.vavr.control.Either
+import org.springframework.test.util.ReflectionTestUtils
+import spock.lang.Specification
+
+import java.time.OffsetDateTime
+import java.time.temporal.ChronoUnit
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+
+class RateIngestionBufferSpec extends Specification {
+    ExchangeRateRepository exchangeRateRepository = Mock()
+    LatestRateCache latestRateCache = Mock()
+    RateHistoryIndex rateHistoryIndex = Mock()
+    RateIngestionBuffer rateIngestionBuffer = new RateIngestionBuffer(exchangeRateRepository, latestRateCache, rateHistoryIndex)
+    List<List<ExchangeRate>> batches = new CopyOnWriteArrayList<>()
+
+    def setup() {
+        ReflectionTestUtils.setField(rateIngestionBuffer, "lingerMillis", 200L)
+        ReflectionTestUtils.setField(rateIngestionBuffer, "maxBatchSize", 1000)
+    }
+
+    def cleanup() {
+        rateIngestionBuffer.stop()
+    }
+
+    def "Only the newest tick of a pair in a batch is written and every tick is answered"() {
+        given: "ticks with nanoseconds the database does not keep"
+            def base = OffsetDateTime.now().minusMinutes(1).withNano(123_456_789)
+            exchangeRateRepository.addRates(_) >> { arguments -> stored(arguments[0]) }
+            rateIngestionBuffer.start()
+
+        when:
+            def older = rateIngestionBuffer.submit(new ExchangeRate("EUR/USD", 1.10, base))
+            def newest = rateIngestionBuffer.submit(new ExchangeRate("EUR/USD", 1.12, base.plusSeconds(2)))
+            def old = rateIngestionBuffer.submit(new ExchangeRate("EUR/USD", 1.11, base.plusSeconds(1)))
+            def other = rateIngestionBuffer.submit(new ExchangeRate("GBP/USD", 1.30, base))
+
+        then:
+            newest.get(5, TimeUnit.SECONDS).get() == new ExchangeRate("EUR/USD", 1.12, base.plusSeconds(2).truncatedTo(ChronoUnit.MICROS))
+            other.get(5, TimeUnit.SECONDS).get().rate() == 1.30
+            older.get(5, TimeUnit.SECONDS).get().rate() == 1.10
+            old.get(5, TimeUnit.SECONDS).get().rate() == 1.11
+            batches.size() == 1
+            batches[0].collect { it.currencyPair() + " " + it.rate() } as Set == ["EUR/USD 1.12", "GBP/USD 1.30"] as Set
+    }
+
+    def "A tick the database already holds is reported as a duplicate"() {
+        given:
+            exchangeRateRepository.addRates(_) >> Either.right([])
+            rateIngestionBuffer.start()
+
+        when:
+            def result = rateIngestionBuffer.submit(new ExchangeRate("EUR/USD", 1.10, OffsetDateTime.now())).get(5, TimeUnit.SECONDS)
+
+        then:
+            result.getLeft().code() == FailureCode.DUPLICATE.code
+            0 * latestRateCache.put(_)
+    }
+
+    def "A batch that fails to be written fails every tick in it"() {
+        given:
+            exchangeRateRepository.addRates(_) >> Either.left(Failure.from(FailureCode.UNKNOWN_ERROR))
+            rateIngestionBuffer.start()
+            def now = OffsetDateTime.now()
+
+        when:
+            def first = rateIngestionBuffer.submit(new ExchangeRate("EUR/USD", 1.10, now.minusSeconds(1)))
+            def second = rateIngestionBuffer.submit(new ExchangeRate("EUR/USD", 1.11, now))
+
+        then:
+            first.get(5, TimeUnit.SECONDS).isLeft()
+            second.get(5, TimeUnit.SECONDS).isLeft()
+    }
+
+    def "Ticks submitted once stopped fail without being written"() {
+        given:
+            rateIngestionBuffer.start()
+            rateIngestionBuffer.stop()
+
+        when:
+            def result = rateIngestionBuffer.submit(new ExchangeRate("EUR/USD", 1.10, OffsetDateTime.now())).get(1, TimeUnit.SECONDS)
+
+        then:
+            result.isLeft()
+            0 * exchangeRateRepository._
+    }
+
+    private Either<Failure, List<com.assetiq.jooq.tables.pojos.ExchangeRate>> stored(List<ExchangeRate> exchangeRates) {
+        batches.add(exchangeRates)
+        Either.right(exchangeRates.collect {
+            new com.assetiq.jooq.tables.pojos.ExchangeRate(it.currencyPair(), it.rate(), it.timestamp().truncatedTo(ChronoUnit.MICROS), OffsetDateTime.now(), false)
+        })
+    }
+}